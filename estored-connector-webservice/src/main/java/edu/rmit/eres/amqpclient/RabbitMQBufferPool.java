@@ -0,0 +1,274 @@
+package edu.rmit.eres.amqpclient;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of the byte arrays used to download, encode and publish the replies, so that the large buffers
+ * (chunk buffers of a few MB, allocated by G1 as humongous objects) are reused from one reply to the next
+ * instead of being allocated for every request.
+ *
+ * The size classes are the exact lengths leased: AMQP bodies are published as whole arrays, so a chunk buffer
+ * cannot be larger than its chunk. As the chunk and block sizes are fixed by the configuration, only a few
+ * classes are ever used. Arrays shorter than the minimum pooled size are cheap to allocate and never pooled.
+ * The arrays kept for reuse are bounded in total size: extra arrays released are left to the garbage collector.
+ *
+ * A leased array must be released exactly once, once nothing reads it anymore (e.g. once the last chunk is published).
+ * With leak detection on (by default when debug logging is enabled), the arrays garbage collected without being
+ * released are reported along with the stack trace of their lease, and so are the arrays released twice.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQChunkedReplyStream
+ */
+public class RabbitMQBufferPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQBufferPool.class);
+
+	/**
+	 * Default maximum total size of the arrays kept for reuse, in bytes
+	 */
+	public final static long DEFAULT_MAX_RETAINED_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Length under which arrays are allocated and left to the garbage collector instead of being pooled, in bytes
+	 */
+	public final static int MIN_POOLED_SIZE = 16 * 1024;
+
+	/**
+	 * Pool shared by all the replies
+	 */
+	private static volatile RabbitMQBufferPool defaultPool = new RabbitMQBufferPool(DEFAULT_MAX_RETAINED_SIZE);
+
+	/**
+	 * Arrays available for reuse, by length
+	 */
+	private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<byte[]>> sizeClasses = new ConcurrentHashMap<Integer, ConcurrentLinkedDeque<byte[]>>();
+
+	private final long maxRetainedSize;
+
+	/**
+	 * Total size of the arrays available for reuse, in bytes
+	 */
+	private final AtomicLong retainedSize = new AtomicLong();
+
+	private final AtomicLong leaseCount = new AtomicLong();
+
+	private final AtomicLong allocationCount = new AtomicLong();
+
+	private volatile boolean leakDetection = logger.isDebugEnabled();
+
+	/**
+	 * Leases not released yet, by identity hash code of their array, when leak detection is on
+	 */
+	private final Map<Integer, List<Lease>> leases = new HashMap<Integer, List<Lease>>();
+
+	/**
+	 * Queue of the leases whose array has been garbage collected
+	 */
+	private final ReferenceQueue<byte[]> collected = new ReferenceQueue<byte[]>();
+
+	/**
+	 * Constructor of the pool
+	 *
+	 * @param maxRetainedSize: the maximum total size of the arrays kept for reuse, in bytes (0 not to reuse any array)
+	 */
+	public RabbitMQBufferPool(long maxRetainedSize) {
+		this.maxRetainedSize = maxRetainedSize;
+	}
+
+	/**
+	 * Getter for the pool shared by all the replies
+	 * @return the pool shared by all the replies
+	 */
+	public static RabbitMQBufferPool getDefault() {
+		return defaultPool;
+	}
+
+	/**
+	 * Replaces the pool shared by all the replies. The arrays leased from the previous pool can still be released to it.
+	 *
+	 * @param pool: the pool shared by all the replies
+	 */
+	public static void setDefault(RabbitMQBufferPool pool) {
+		defaultPool = pool;
+	}
+
+	/**
+	 * Leases an array, reused if one of that length has been released before
+	 *
+	 * @param length: the length of the array
+	 * @return the array, whose content is undefined, to be released with #release
+	 */
+	public byte[] lease(int length) {
+		if (length < MIN_POOLED_SIZE)
+			return new byte[length];
+
+		this.leaseCount.incrementAndGet();
+		byte[] array = null;
+		ConcurrentLinkedDeque<byte[]> sizeClass = this.sizeClasses.get(length);
+		if (sizeClass != null) {
+			array = sizeClass.pollFirst();
+			if (array != null)
+				this.retainedSize.addAndGet(-length);
+		}
+		if (array == null) {
+			this.allocationCount.incrementAndGet();
+			array = new byte[length];
+		}
+
+		if (this.leakDetection)
+			this.track(array);
+		return array;
+	}
+
+	/**
+	 * Releases an array leased from this pool, to be reused by the next lease of the same length.
+	 * The array must not be read nor written anymore.
+	 *
+	 * @param array: the array to release, or null
+	 */
+	public void release(byte[] array) {
+		if (array == null || array.length < MIN_POOLED_SIZE)
+			return;
+		if (this.leakDetection && !this.untrack(array))
+			return;
+
+		if (this.retainedSize.addAndGet(array.length) > this.maxRetainedSize) {
+			this.retainedSize.addAndGet(-array.length);
+			return;
+		}
+		this.sizeClasses.computeIfAbsent(array.length, (length) -> new ConcurrentLinkedDeque<byte[]>()).offerFirst(array);
+	}
+
+	/**
+	 * Turns the leak detection on or off, before any array is leased
+	 *
+	 * @param leakDetection: true to report the arrays not released, and the arrays released twice
+	 */
+	public void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+
+	/**
+	 * Getter for the number of arrays leased
+	 * @return the number of arrays leased, not counting the arrays too short to be pooled
+	 */
+	public long getLeaseCount() {
+		return this.leaseCount.get();
+	}
+
+	/**
+	 * Getter for the number of arrays allocated because none was available for reuse
+	 * @return the number of arrays allocated
+	 */
+	public long getAllocationCount() {
+		return this.allocationCount.get();
+	}
+
+	/**
+	 * Getter for the total size of the arrays available for reuse
+	 * @return the total size of the arrays available for reuse, in bytes
+	 */
+	public long getRetainedSize() {
+		return this.retainedSize.get();
+	}
+
+	/**
+	 * Reports the arrays garbage collected without being released
+	 * @return the number of leaks found since the last call
+	 */
+	public int reportLeaks() {
+		int leakCount = 0;
+		Reference<? extends byte[]> reference;
+		while ((reference = this.collected.poll()) != null) {
+			Lease lease = (Lease) reference;
+			synchronized (this.leases) {
+				List<Lease> bucket = this.leases.get(lease.hashCode);
+				if (bucket == null || !bucket.remove(lease))
+					continue;
+				if (bucket.isEmpty())
+					this.leases.remove(lease.hashCode);
+			}
+			leakCount++;
+			logger.error("Buffer of " + lease.length + " bytes garbage collected without being released to the pool, leased at:", lease.trace);
+		}
+		return leakCount;
+	}
+
+	@Override
+	public String toString() {
+		return this.leaseCount.get() + " buffers leased, " + this.allocationCount.get() + " allocated, "
+				+ this.retainedSize.get() + "/" + this.maxRetainedSize + " bytes retained";
+	}
+
+	private void track(byte[] array) {
+		this.reportLeaks();
+		Lease lease = new Lease(array, this.collected);
+		synchronized (this.leases) {
+			this.leases.computeIfAbsent(lease.hashCode, (hashCode) -> new ArrayList<Lease>(1)).add(lease);
+		}
+	}
+
+	/**
+	 * Stops tracking a released array
+	 *
+	 * @param array: the array released
+	 * @return false if the array is not leased, i.e. released twice or not leased from this pool
+	 */
+	private boolean untrack(byte[] array) {
+		int hashCode = System.identityHashCode(array);
+		synchronized (this.leases) {
+			List<Lease> bucket = this.leases.get(hashCode);
+			if (bucket != null) {
+				Iterator<Lease> iterator = bucket.iterator();
+				while (iterator.hasNext()) {
+					Lease lease = iterator.next();
+					if (lease.get() == array) {
+						iterator.remove();
+						lease.clear();
+						if (bucket.isEmpty())
+							this.leases.remove(hashCode);
+						return true;
+					}
+				}
+			}
+		}
+		logger.error("Buffer of " + array.length + " bytes released twice, or not leased from this pool", new Throwable("Released at"));
+		return false;
+	}
+
+	/**
+	 * Lease of an array, tracked for leak detection
+	 */
+	private static class Lease extends WeakReference<byte[]> {
+
+		final int hashCode;
+
+		final int length;
+
+		/**
+		 * Stack trace of the lease
+		 */
+		final Throwable trace;
+
+		Lease(byte[] array, ReferenceQueue<byte[]> queue) {
+			super(array, queue);
+			this.hashCode = System.identityHashCode(array);
+			this.length = array.length;
+			this.trace = new Throwable("Leased at");
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coalesces identical requests in flight (single-flight): while the content for a request key is being fetched,
+ * identical requests join the fetch in progress instead of fetching the same content again. Each of them still
+ * gets its own reply, written by the fetching thread as the content is downloaded.
+ *
+ * The first bytes of the content are kept, up to the replay limit, so that a request joining after the download
+ * has started gets them replayed into its reply. Once more bytes than the replay limit are downloaded, the fetch
+ * cannot be joined anymore and later requests fetch the content on their own: memory stays bounded by the replay
+ * limit per fetch in flight, whatever the size of the content.
+ *
+ * The content is either read from a stream by the fetching thread (see #reply), or pushed by an asynchronous source
+ * as it arrives (see #replyAsync), in which case no thread waits for the content.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQClient#sendReply(String, String, com.rabbitmq.client.AMQP.BasicProperties, String, RabbitMQReplySource.Opener)
+ */
+public class RabbitMQReplyCoalescer {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQReplyCoalescer.class);
+
+	/**
+	 * Default number of bytes kept to be replayed to the requests joining a fetch
+	 */
+	public final static int DEFAULT_REPLAY_LIMIT = 1024 * 1024;
+
+	/**
+	 * Size of the blocks in which the content is read, in bytes
+	 */
+	private final static int READ_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Opens the reply to a request, once the content type, length and headers of the content are known
+	 */
+	@FunctionalInterface
+	public interface ReplyOpener {
+		RabbitMQChunkedReplyStream open(RabbitMQReplySource source) throws IOException;
+	}
+
+	/**
+	 * Fetches in flight, by request key
+	 */
+	private final Map<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	/**
+	 * Number of bytes kept to be replayed to the requests joining a fetch
+	 */
+	private final int replayLimit;
+
+	/**
+	 * Constructor of the coalescer
+	 *
+	 * @param replayLimit: the number of bytes kept to be replayed to the requests joining a fetch
+	 */
+	public RabbitMQReplyCoalescer(int replayLimit) {
+		this.replayLimit = replayLimit;
+	}
+
+	/**
+	 * Replies to a request with the content of a source, sharing the fetch of the content with the identical requests
+	 * in flight. Returns once the reply is published, after the whole content has been fetched.
+	 *
+	 * @param requestKey: the key identifying identical requests (e.g. the URL requested)
+	 * @param sourceOpener: opens the source of the content, if no identical request is in flight
+	 * @param replyOpener: opens the reply of this request
+	 * @return a future completed once the reply is confirmed by the broker (see RabbitMQClient#publish)
+	 *
+	 * @throws Exception: if the source could not be opened or read, or the reply could not be published
+	 */
+	public CompletableFuture<Void> reply(String requestKey, RabbitMQReplySource.Opener sourceOpener, ReplyOpener replyOpener) throws Exception {
+		Subscriber subscriber = new Subscriber(replyOpener);
+
+		Flight flight = new Flight(requestKey);
+		Flight inFlight = this.flights.putIfAbsent(requestKey, flight);
+		if (inFlight != null) {
+			if (inFlight.join(subscriber)) {
+				logger.debug("Joined the fetch in flight for " + requestKey);
+				return subscriber.await();
+			}
+			// Too late to join: fetches on its own
+			return replyAlone(sourceOpener, replyOpener);
+		}
+
+		flight.join(subscriber);
+		flight.fetch(sourceOpener);
+		return subscriber.await();
+	}
+
+	/**
+	 * Replies to a request with the content of an asynchronous source, sharing the fetch of the content with the identical
+	 * requests in flight. Returns as soon as the source is opened: the reply is written as the content is pushed by the source.
+	 *
+	 * @param requestKey: the key identifying identical requests (e.g. the URL requested), or null not to share the fetch
+	 * @param sourceOpener: opens the source of the content, if no identical request is in flight
+	 * @param replyOpener: opens the reply of this request
+	 * @return a future completed once the reply is published and confirmed by the broker (see RabbitMQClient#publish),
+	 * or completed exceptionally if the content could not be fetched or the reply could not be published
+	 */
+	public CompletableFuture<Void> replyAsync(String requestKey, RabbitMQReplySource.AsyncOpener sourceOpener, ReplyOpener replyOpener) {
+		Subscriber subscriber = new Subscriber(replyOpener);
+
+		Flight flight = new Flight(requestKey);
+		Flight inFlight = (requestKey != null) ? this.flights.putIfAbsent(requestKey, flight) : null;
+		if (inFlight != null) {
+			if (inFlight.join(subscriber)) {
+				logger.debug("Joined the fetch in flight for " + requestKey);
+				return subscriber.confirmation();
+			}
+			// Too late to join: fetches on its own
+			flight = new Flight(null);
+		}
+
+		flight.join(subscriber);
+		try {
+			sourceOpener.open(flight);
+		} catch (Exception e) {
+			flight.fail(e);
+		}
+		return subscriber.confirmation();
+	}
+
+	/**
+	 * Replies to a request with the content of an asynchronous source, without coalescing
+	 *
+	 * @param sourceOpener: opens the source of the content
+	 * @param replyOpener: opens the reply of the request
+	 * @return a future completed once the reply is published and confirmed by the broker (see RabbitMQClient#publish)
+	 */
+	public static CompletableFuture<Void> replyAloneAsync(RabbitMQReplySource.AsyncOpener sourceOpener, ReplyOpener replyOpener) {
+		return new RabbitMQReplyCoalescer(0).replyAsync(null, sourceOpener, replyOpener);
+	}
+
+	/**
+	 * Replies to a request with the content of a source, without coalescing
+	 *
+	 * @param sourceOpener: opens the source of the content
+	 * @param replyOpener: opens the reply of the request
+	 * @return a future completed once the reply is confirmed by the broker (see RabbitMQClient#publish)
+	 *
+	 * @throws Exception: if the source could not be opened or read, or the reply could not be published
+	 */
+	public static CompletableFuture<Void> replyAlone(RabbitMQReplySource.Opener sourceOpener, ReplyOpener replyOpener) throws Exception {
+		try (RabbitMQReplySource source = sourceOpener.open()) {
+			RabbitMQChunkedReplyStream reply = replyOpener.open(source);
+			try {
+				reply.writeFrom(source.getContent());
+				reply.close();
+			} catch (IOException e) {
+				abortQuietly(reply, e);
+				throw e;
+			}
+			return reply.getConfirmation();
+		}
+	}
+
+	/**
+	 * Getter for the number of fetches in flight
+	 * @return the number of fetches in flight
+	 */
+	public int getFlightCount() {
+		return this.flights.size();
+	}
+
+	/**
+	 * Aborts a reply, letting the requester know that no more chunks will come
+	 *
+	 * @param reply: the reply to abort
+	 * @param cause: the reason why the reply is aborted
+	 */
+	private static void abortQuietly(RabbitMQChunkedReplyStream reply, Exception cause) {
+		try {
+			reply.abort(cause.getMessage());
+		} catch (IOException e) {
+			logger.debug("Could not abort the reply: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * A fetch in flight, with the replies of the requests it serves.
+	 * Receives the content from the source, and writes it to the replies of all the requests served.
+	 */
+	private class Flight implements RabbitMQReplyReceiver {
+
+		/**
+		 * Key of the requests served, or null if the fetch is not shared
+		 */
+		private final String requestKey;
+
+		private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+
+		/**
+		 * Source of the content, once opened
+		 */
+		private RabbitMQReplySource source;
+
+		/**
+		 * First bytes of the content, replayed to the requests joining, or null once over the replay limit
+		 */
+		private ByteArrayOutputStream replay;
+
+		private boolean joinable = true;
+
+		Flight(String requestKey) {
+			this.requestKey = requestKey;
+			this.replay = (requestKey != null) ? new ByteArrayOutputStream() : null;
+		}
+
+		/**
+		 * Adds a request to the fetch, replaying the content already fetched into its reply
+		 *
+		 * @param subscriber: the request to add
+		 * @return false if the fetch cannot be joined anymore
+		 */
+		synchronized boolean join(Subscriber subscriber) {
+			if (!this.joinable)
+				return false;
+			if (this.source != null) {
+				try {
+					subscriber.open(this.source);
+					if (this.replay != null)
+						this.replay.writeTo(subscriber.reply);
+				} catch (IOException e) {
+					if (subscriber.reply != null)
+						abortQuietly(subscriber.reply, e);
+					subscriber.fail(e);
+					return true;
+				}
+			}
+			this.subscribers.add(subscriber);
+			return true;
+		}
+
+		/**
+		 * Fetches the content from the source, writing it to the replies of all the requests served
+		 *
+		 * @param sourceOpener: opens the source of the content
+		 */
+		void fetch(RabbitMQReplySource.Opener sourceOpener) {
+			RabbitMQReplySource openedSource = null;
+			byte[] block = null;
+			try {
+				openedSource = sourceOpener.open();
+				this.start(openedSource);
+
+				block = RabbitMQBufferPool.getDefault().lease(READ_BLOCK_SIZE);
+				int read;
+				while ((read = openedSource.getContent().read(block)) >= 0)
+					this.write(block, 0, read);
+				this.finish();
+			} catch (Exception e) {
+				this.fail(e);
+			} finally {
+				RabbitMQBufferPool.getDefault().release(block);
+				if (openedSource != null) {
+					try {
+						openedSource.close();
+					} catch (IOException e) {
+						logger.debug("Could not close the source: " + e.getMessage());
+					}
+				}
+			}
+		}
+
+		@Override
+		public synchronized void start(RabbitMQReplySource openedSource) {
+			this.source = openedSource;
+			Iterator<Subscriber> iterator = this.subscribers.iterator();
+			while (iterator.hasNext()) {
+				Subscriber subscriber = iterator.next();
+				try {
+					subscriber.open(openedSource);
+				} catch (IOException e) {
+					subscriber.fail(e);
+					iterator.remove();
+				}
+			}
+		}
+
+		@Override
+		public synchronized void write(byte[] block, int offset, int length) {
+			if (this.replay != null) {
+				if (this.replay.size() + length <= RabbitMQReplyCoalescer.this.replayLimit)
+					this.replay.write(block, offset, length);
+				else
+					this.close();
+			}
+
+			Iterator<Subscriber> iterator = this.subscribers.iterator();
+			while (iterator.hasNext()) {
+				Subscriber subscriber = iterator.next();
+				try {
+					subscriber.reply.write(block, offset, length);
+				} catch (IOException e) {
+					abortQuietly(subscriber.reply, e);
+					subscriber.fail(e);
+					iterator.remove();
+				}
+			}
+		}
+
+		@Override
+		public synchronized void finish() {
+			this.close();
+			for (Subscriber subscriber : this.subscribers) {
+				try {
+					subscriber.reply.close();
+					subscriber.published.complete(subscriber.reply.getConfirmation());
+				} catch (IOException e) {
+					abortQuietly(subscriber.reply, e);
+					subscriber.fail(e);
+				}
+			}
+			if (this.subscribers.size() > 1)
+				logger.debug("Served " + this.subscribers.size() + " requests with a single fetch for " + this.requestKey);
+		}
+
+		@Override
+		public synchronized void fail(Exception cause) {
+			this.close();
+			for (Subscriber subscriber : this.subscribers) {
+				if (subscriber.reply != null)
+					abortQuietly(subscriber.reply, cause);
+				subscriber.fail(cause);
+			}
+		}
+
+		/**
+		 * Stops the fetch from being joined by more requests
+		 */
+		private void close() {
+			this.joinable = false;
+			this.replay = null;
+			if (this.requestKey != null)
+				RabbitMQReplyCoalescer.this.flights.remove(this.requestKey, this);
+		}
+	}
+
+	/**
+	 * A request served by a fetch
+	 */
+	private static class Subscriber {
+
+		private final ReplyOpener replyOpener;
+
+		private RabbitMQChunkedReplyStream reply;
+
+		/**
+		 * Completed once the reply is published, with the confirmation of the reply
+		 */
+		private final CompletableFuture<CompletableFuture<Void>> published = new CompletableFuture<CompletableFuture<Void>>();
+
+		Subscriber(ReplyOpener replyOpener) {
+			this.replyOpener = replyOpener;
+		}
+
+		void open(RabbitMQReplySource source) throws IOException {
+			this.reply = this.replyOpener.open(source);
+		}
+
+		void fail(Exception cause) {
+			this.published.completeExceptionally(cause);
+		}
+
+		/**
+		 * Getter for the confirmation of the reply, without waiting for it to be published
+		 *
+		 * @return a future completed once the reply is published and confirmed by the broker
+		 */
+		CompletableFuture<Void> confirmation() {
+			return this.published.thenCompose((confirmation) -> confirmation);
+		}
+
+		/**
+		 * Waits for the reply to be published
+		 *
+		 * @return a future completed once the reply is confirmed by the broker
+		 *
+		 * @throws Exception: the reason why the reply could not be published
+		 */
+		CompletableFuture<Void> await() throws Exception {
+			try {
+				return this.published.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the reply", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package edu.rmit.eres.amqpclient;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands the content pushed by an asynchronous source (e.g. the I/O threads of a non-blocking HTTP client) over to
+ * threads that may block, so that publishing the reply (borrowing a channel, basicPublish, writing to a disk cache)
+ * never holds up the I/O threads. The tasks of a dispatcher run one after the other, in the order they were handed
+ * over, on a pool of threads shared by all the dispatchers.
+ *
+ * The bytes handed over and not written yet are bounded: once over the limit, the source is suspended, and it is
+ * resumed once the backlog is down to half the limit.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQReplyReceiver
+ */
+public class RabbitMQReplyDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQReplyDispatcher.class);
+
+	/**
+	 * Default maximum number of threads running the tasks of the dispatchers, all the replies together
+	 */
+	public final static int DEFAULT_THREAD_COUNT = RabbitMQListener.DEFAULT_WORKER_POOL_SIZE;
+
+	/**
+	 * Default maximum number of bytes handed over and not written yet, before the source is suspended
+	 */
+	public final static int DEFAULT_MAX_BACKLOG = 1024 * 1024;
+
+	/**
+	 * Number of tasks run in a row for a dispatcher, before the thread is given to the other dispatchers
+	 */
+	private static final int BATCH_SIZE = 16;
+
+	/**
+	 * Threads running the tasks, shared by all the dispatchers: the idle threads are stopped after a minute
+	 */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREAD_COUNT, DEFAULT_THREAD_COUNT,
+			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), (runnable) -> {
+		Thread thread = new Thread(runnable, "estored-reply-dispatcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Handler of a block of content, run by the threads of the dispatcher
+	 */
+	@FunctionalInterface
+	public interface BlockHandler {
+		void handle(byte[] block, int length);
+	}
+
+	/**
+	 * Tasks handed over and not run yet, in order
+	 */
+	private final Queue<Task> tasks = new ArrayDeque<Task>();
+
+	private final Runnable suspend;
+
+	private final Runnable resume;
+
+	private final int maxBacklog;
+
+	/**
+	 * Number of bytes handed over and not written yet
+	 */
+	private long backlog = 0;
+
+	/**
+	 * Whether a thread of the pool is running the tasks, or is about to
+	 */
+	private boolean running = false;
+
+	private boolean suspended = false;
+
+	/**
+	 * Constructor of the dispatcher
+	 *
+	 * @param suspend: suspends the source, once the backlog is over the limit (e.g. IOControl#suspendInput)
+	 * @param resume: resumes the source, once the backlog is down to half the limit (e.g. IOControl#requestInput)
+	 */
+	public RabbitMQReplyDispatcher(Runnable suspend, Runnable resume) {
+		this(suspend, resume, DEFAULT_MAX_BACKLOG);
+	}
+
+	/**
+	 * Constructor of the dispatcher
+	 *
+	 * @param suspend: suspends the source, once the backlog is over the limit
+	 * @param resume: resumes the source, once the backlog is down to half the limit
+	 * @param maxBacklog: the maximum number of bytes handed over and not written yet, before the source is suspended
+	 */
+	public RabbitMQReplyDispatcher(Runnable suspend, Runnable resume, int maxBacklog) {
+		this.suspend = suspend;
+		this.resume = resume;
+		this.maxBacklog = maxBacklog;
+	}
+
+	/**
+	 * Sets the maximum number of threads running the tasks of the dispatchers, before or after the first reply
+	 *
+	 * @param threadCount: the maximum number of tasks running at the same time, all the replies together
+	 */
+	public static synchronized void configureThreads(int threadCount) {
+		// The core size may never exceed the maximum size, whichever way it changes
+		if (threadCount > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threadCount);
+			executor.setCorePoolSize(threadCount);
+		} else {
+			executor.setCorePoolSize(threadCount);
+			executor.setMaximumPoolSize(threadCount);
+		}
+	}
+
+	/**
+	 * Runs a task once the tasks handed over before have run
+	 *
+	 * @param task: the task to run
+	 */
+	public void execute(Runnable task) {
+		this.enqueue(new Task(task, 0));
+	}
+
+	/**
+	 * Hands a block of content over, to be handled once the tasks handed over before have run.
+	 * The bytes are copied, so that the buffer can be reused by the source as soon as this returns.
+	 *
+	 * @param buffer: the block of content, from its position to its limit
+	 * @param handler: the handler of the block, which must not keep the array once it returns
+	 */
+	public void write(ByteBuffer buffer, BlockHandler handler) {
+		int length = buffer.remaining();
+		byte[] block = RabbitMQBufferPool.getDefault().lease(length);
+		buffer.get(block, 0, length);
+		this.enqueue(new Task(() -> {
+			try {
+				handler.handle(block, length);
+			} finally {
+				RabbitMQBufferPool.getDefault().release(block);
+			}
+		}, length));
+	}
+
+	/**
+	 * Getter for the number of bytes handed over and not written yet
+	 * @return the number of bytes waiting to be written
+	 */
+	public synchronized long getBacklog() {
+		return this.backlog;
+	}
+
+	private synchronized void enqueue(Task task) {
+		this.tasks.add(task);
+		this.backlog += task.size;
+		if (!this.suspended && this.backlog > this.maxBacklog && this.suspend != null) {
+			this.suspended = true;
+			this.suspend.run();
+		}
+		if (!this.running) {
+			this.running = true;
+			executor.execute(this::runBatch);
+		}
+	}
+
+	/**
+	 * Runs the tasks waiting, up to a batch, then gives the thread back to the pool
+	 */
+	private void runBatch() {
+		for (int count = 0; count < BATCH_SIZE; count++) {
+			Task task;
+			synchronized (this) {
+				task = this.tasks.poll();
+				if (task == null) {
+					this.running = false;
+					return;
+				}
+			}
+			try {
+				task.runnable.run();
+			} catch (RuntimeException e) {
+				logger.error("Reply task failed: " + e.getMessage(), e);
+			}
+			synchronized (this) {
+				this.backlog -= task.size;
+				if (this.suspended && this.backlog <= this.maxBacklog / 2) {
+					this.suspended = false;
+					this.resume.run();
+				}
+			}
+		}
+		// More tasks may be waiting: runs them after the other dispatchers waiting for a thread
+		executor.execute(this::runBatch);
+	}
+
+	/**
+	 * A task handed over, with the number of bytes it writes
+	 */
+	private static class Task {
+
+		final Runnable runnable;
+
+		final int size;
+
+		Task(Runnable runnable, int size) {
+			this.runnable = runnable;
+			this.size = size;
+		}
+	}
+}
@@ -0,0 +1,50 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.IOException;
+
+/**
+ * Receives the content of a reply as it is pushed by an asynchronous source (e.g. the callbacks of a non-blocking
+ * HTTP client), instead of reading it from a stream. The calls are made in order, possibly from another thread than
+ * the one which opened the source: start once, then write for each block of content, then finish once;
+ * or fail at any time, after which no other call is made.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQReplySource.AsyncOpener
+ */
+public interface RabbitMQReplyReceiver {
+
+	/**
+	 * Starts the reply, once the content type, length and headers of the content are known
+	 *
+	 * @param source: the source of the content, whose content is pushed through #write rather than read from the source
+	 *
+	 * @throws IOException: if the reply could not be started
+	 */
+	void start(RabbitMQReplySource source) throws IOException;
+
+	/**
+	 * Writes a block of content to the reply
+	 *
+	 * @param bytes: the bytes of the block
+	 * @param offset: the offset of the block in the bytes
+	 * @param length: the length of the block
+	 *
+	 * @throws IOException: if the block could not be written
+	 */
+	void write(byte[] bytes, int offset, int length) throws IOException;
+
+	/**
+	 * Completes the reply, once all the content has been written
+	 *
+	 * @throws IOException: if the reply could not be completed
+	 */
+	void finish() throws IOException;
+
+	/**
+	 * Aborts the reply, as the content could not be retrieved entirely
+	 *
+	 * @param cause: the reason why the content could not be retrieved
+	 */
+	void fail(Exception cause);
+}
@@ -0,0 +1,172 @@
+package edu.rmit.eres.estored.connectors;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.rmit.eres.amqpclient.RabbitMQBackoff;
+
+/**
+ * Stream of a content that resumes the download from the last byte received when the connection fails:
+ * the rest of the content is requested again as a byte range, validated with If-Range so that the parts
+ * of a content changed in the meantime are never mixed (see SegmentedDownload.RangeSource).
+ * The number of resumptions of a download is bounded, and they are spaced out by an exponential backoff.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.estored.connectors.SegmentedDownload
+ */
+public class ResumableDownload extends InputStream {
+
+	private static final Logger logger = LoggerFactory.getLogger(ResumableDownload.class);
+
+	/**
+	 * Default maximum number of times a download is resumed after a failure
+	 */
+	public final static int DEFAULT_MAX_RETRIES = 3;
+
+	/**
+	 * Delays before resuming a download, in milliseconds
+	 */
+	private static final RabbitMQBackoff backoff = new RabbitMQBackoff(500, 10000);
+
+	private final SegmentedDownload.RangeSource ranges;
+
+	/**
+	 * Position of the end of the content, excluded
+	 */
+	private final long end;
+
+	private final int maxRetries;
+
+	/**
+	 * Stream of the current connection, or null until the next range is requested
+	 */
+	private volatile InputStream content;
+
+	/**
+	 * Position of the next byte to read
+	 */
+	private long position;
+
+	private int retries = 0;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Constructor of the stream
+	 *
+	 * @param content: the stream of the content from its start position, or null to request it as a range on the first read
+	 * @param start: the position of the first byte of the content
+	 * @param end: the position of the end of the content, excluded
+	 * @param ranges: the source of the rest of the content after a failure
+	 * @param maxRetries: the maximum number of times the download is resumed
+	 */
+	public ResumableDownload(InputStream content, long start, long end, SegmentedDownload.RangeSource ranges, int maxRetries) {
+		this.content = content;
+		this.position = start;
+		this.end = end;
+		this.ranges = ranges;
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Getter for the number of times the download has been resumed
+	 * @return the number of resumptions
+	 */
+	public int getRetryCount() {
+		return this.retries;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		int read = this.read(single, 0, 1);
+		return (read < 0) ? -1 : (single[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (this.position >= this.end)
+			return -1;
+		if (length == 0)
+			return 0;
+
+		int count = (int) Math.min(length, this.end - this.position);
+		while (true) {
+			IOException failure;
+			try {
+				if (this.content == null) {
+					this.content = this.ranges.open(this.position, this.end - 1);
+					// Aborted while the range was being requested
+					if (this.closed) {
+						this.content.close();
+						throw new InterruptedIOException("Download aborted");
+					}
+				}
+				int read = this.content.read(bytes, offset, count);
+				if (read >= 0) {
+					this.position += read;
+					return read;
+				}
+				failure = new IOException("Connection closed at byte " + this.position + " of " + this.end);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				failure = e;
+			}
+			this.resume(failure);
+		}
+	}
+
+	/**
+	 * Closes the current connection, which is kept alive only if the content has been read entirely.
+	 * May be called by another thread to abort the download.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.closed = true;
+		InputStream content = this.content;
+		if (content == null)
+			return;
+		// Reaches the end of the response, if it ends with the content, so that its connection is reused
+		if (this.position >= this.end) {
+			try {
+				content.read();
+			} catch (IOException e) {
+				logger.debug("Could not read the end of the response: " + e.getMessage());
+			}
+		}
+		content.close();
+	}
+
+	/**
+	 * Aborts the current connection and waits before the rest of the content is requested, if the retry budget allows it
+	 *
+	 * @param failure: the failure of the current connection, thrown if the download is not resumed
+	 */
+	private void resume(IOException failure) throws IOException {
+		if (this.content != null) {
+			try {
+				this.content.close();
+			} catch (IOException e) {
+				logger.debug("Could not abort the failed connection: " + e.getMessage());
+			}
+			this.content = null;
+		}
+		if (this.closed || this.retries >= this.maxRetries)
+			throw failure;
+		this.retries++;
+
+		logger.warn("Download failed at byte " + this.position + " of " + this.end + " (" + failure.getMessage() + "), resuming (" + this.retries + "/" + this.maxRetries + ")");
+		try {
+			Thread.sleep(backoff.nextDelay(this.retries));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while resuming the download");
+		}
+	}
+}
@@ -1,95 +1,706 @@
 package edu.rmit.eres.estored.connectors;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Arrays;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLContext;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.ParseException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class WebServiceClient {
+import edu.rmit.eres.amqpclient.RabbitMQBufferPool;
+import edu.rmit.eres.amqpclient.RabbitMQChunkedReplyStream;
+import edu.rmit.eres.amqpclient.RabbitMQReplyDispatcher;
+import edu.rmit.eres.amqpclient.RabbitMQReplyReceiver;
 
+public class WebServiceClient {
+	
 	private static final Logger logger = LoggerFactory.getLogger(WebServiceConnector.class);
 	
+	/**
+	 * Default maximum number of connections kept open to the web services, all hosts together
+	 */
+	public final static int DEFAULT_MAX_CONNECTIONS = 64;
+	
+	/**
+	 * Default maximum number of connections kept open to a single web service host
+	 */
+	public final static int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 16;
+	
+	/**
+	 * Default timeout for connecting to a web service, or waiting for a pooled connection, in milliseconds
+	 */
+	public final static int DEFAULT_CONNECT_TIMEOUT = 30000;
+	
+	/**
+	 * Default timeout between two reads from a web service, in milliseconds
+	 */
+	public final static int DEFAULT_READ_TIMEOUT = 60000;
+	
+	/**
+	 * Size of the blocks read from the web services at once, in bytes
+	 */
+	private static final int TRANSFER_BLOCK_SIZE = 64 * 1024;
+	
+	/**
+	 * Largest content read in memory at once, in bytes (some JVMs reserve a few header words in arrays)
+	 */
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	
+	private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11";
+	
+	/**
+	 * HTTP client shared by all the requests, keeping the connections to the web services alive between requests
+	 */
+	private static CloseableHttpClient httpClient = createHttpClient(createConnectionManager(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE), 
+			createRequestConfig(DEFAULT_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT));
+	
+	/**
+	 * Connections of the byte ranges of the segmented and resumed downloads (see #getRange), pooled apart from the other
+	 * requests: a download keeps the connection of its first range while requesting the others, so the ranges would
+	 * otherwise wait for connections held by the downloads they are part of
+	 */
+	private static PoolingHttpClientConnectionManager rangeConnectionManager = createConnectionManager(DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+	
+	/**
+	 * HTTP client of the byte ranges. A range only waits for the ranges being downloaded, which never wait for anything
+	 * but the web service: it waits for a connection as long as it takes, instead of failing the download under load
+	 */
+	private static CloseableHttpClient rangeHttpClient = createHttpClient(rangeConnectionManager, 
+			createRequestConfig(DEFAULT_CONNECT_TIMEOUT, 0, DEFAULT_READ_TIMEOUT));
+	
+	/**
+	 * Non-blocking HTTP client shared by the asynchronous requests (see #getAsync), started on first use with the same settings
+	 */
+	private static CloseableHttpAsyncClient asyncHttpClient = null;
+	
+	private static int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	
+	private static int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	
+	private static int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	
+	private static int readTimeout = DEFAULT_READ_TIMEOUT;
+	
+	private static int segmentCount = SegmentedDownload.DEFAULT_SEGMENT_COUNT;
+	
+	private static long minSegmentSize = SegmentedDownload.DEFAULT_MIN_SEGMENT_SIZE;
+	
+	private static int maxRetries = ResumableDownload.DEFAULT_MAX_RETRIES;
+	
 	// Demo graph for RD switchboard
 	// http://rd-switchboard.net/2007-08-voyage-mineralogy-biota/118169/
 	// String message = readFromUrl("http://rd-switchboard.net/api/graph/?reqkey=2007-08-voyage-mineralogy-biota-433724&accesskey=demo");
 	
 	String url = null;
-	URLConnection connection = null;
+	HttpResponse response = null;
 	
 	public WebServiceClient(String url) throws MalformedURLException, IOException {
+		this(url, null, null);
+	}
+	
+	/**
+	 * Sends a conditional request: if the data has not changed since it was last retrieved,
+	 * the web service only answers with headers (see #isNotModified)
+	 *
+	 * @param url: the URL where the data is located
+	 * @param eTag: the ETag of the data last retrieved, sent as If-None-Match, or null
+	 * @param lastModified: the Last-Modified date of the data last retrieved, sent as If-Modified-Since, or null
+	 */
+	public WebServiceClient(String url, String eTag, String lastModified) throws MalformedURLException, IOException {
 		this.url = url;
 		
-		if (this.url.startsWith("https")) {
-			HttpsURLConnection conn = (HttpsURLConnection) new URL(url).openConnection();
-			conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 6.1; WOW64) AppleWebKit/537.11 (KHTML, like Gecko) Chrome/23.0.1271.95 Safari/537.11");
-			conn.setHostnameVerifier(new HostnameVerifier() {
-				public boolean verify(String hostname, SSLSession session) {
-					return true;
-				}
-			});
-			this.connection = conn;
-			connection.connect();
+		if (!this.url.startsWith("http"))
+			throw new MalformedURLException("Unsupported protocol: " + url);
+		
+		HttpGet request;
+		try {
+			request = new HttpGet(url);
+		} catch (IllegalArgumentException e) {
+			throw new MalformedURLException(e.getMessage());
+		}
+		if (eTag != null)
+			request.setHeader("If-None-Match", eTag);
+		if (lastModified != null)
+			request.setHeader("If-Modified-Since", lastModified);
+		
+		// Reuses a pooled connection to the host if there is one available
+		this.response = httpClient.execute(request);
+	}
+	
+	private WebServiceClient(String url, HttpResponse response) {
+		this.url = url;
+		this.response = response;
+	}
+	
+	/**
+	 * Handler of the response to an asynchronous request (see #getAsync)
+	 */
+	public interface AsyncResponseHandler {
+		
+		/**
+		 * Handles the status and headers of the response, as soon as they are received
+		 * 
+		 * @param response: the response received, whose content is not available as a stream
+		 * @return the receiver to push the content of the response to as it arrives, or null to discard the content
+		 * 
+		 * @throws Exception: if the response cannot be handled, in which case the request is aborted
+		 */
+		RabbitMQReplyReceiver onResponse(WebServiceClient response) throws Exception;
+		
+		/**
+		 * Handles the failure of the request, before any response was received
+		 * 
+		 * @param cause: the reason why the request failed
+		 */
+		void onFailure(Exception cause);
+	}
+	
+	/**
+	 * Sends a request without waiting for the response: the handler is called back once the response is received,
+	 * and its content is pushed block by block as it arrives. The handler and the receiver may block: they are called by
+	 * the threads of a reply dispatcher, never by the I/O threads of the non-blocking HTTP client, and the connection
+	 * is suspended while the content received waits to be written (see RabbitMQReplyDispatcher).
+	 * Any failure once the content started being pushed is signalled to the receiver instead of the handler.
+	 *
+	 * @param url: the URL where the data is located
+	 * @param eTag: the ETag of the data last retrieved, sent as If-None-Match, or null
+	 * @param lastModified: the Last-Modified date of the data last retrieved, sent as If-Modified-Since, or null
+	 * @param handler: the handler of the response
+	 */
+	public static void getAsync(String url, String eTag, String lastModified, AsyncResponseHandler handler) {
+		HttpGet request;
+		try {
+			if (!url.startsWith("http"))
+				throw new MalformedURLException("Unsupported protocol: " + url);
+			request = new HttpGet(url);
+		} catch (IllegalArgumentException e) {
+			handler.onFailure(new MalformedURLException(e.getMessage()));
+			return;
+		} catch (MalformedURLException e) {
+			handler.onFailure(e);
+			return;
+		}
+		if (eTag != null)
+			request.setHeader("If-None-Match", eTag);
+		if (lastModified != null)
+			request.setHeader("If-Modified-Since", lastModified);
+		
+		final AsyncResponse asyncResponse = new AsyncResponse(url, handler);
+		getAsyncHttpClient().execute(HttpAsyncMethods.create(request), asyncResponse, new FutureCallback<Void>() {
+			
+			@Override
+			public void completed(Void result) {
+				asyncResponse.complete();
+			}
+			
+			@Override
+			public void failed(Exception cause) {
+				asyncResponse.abort(cause);
+			}
+			
+			@Override
+			public void cancelled() {
+				asyncResponse.abort(new IOException("Request to " + url + " cancelled"));
+			}
+		});
+	}
+	
+	/**
+	 * Replaces the HTTP client shared by all the requests. The connections of the previous client are closed.
+	 * The byte ranges of the segmented downloads are downloaded with connections of their own, within the same limits.
+	 *
+	 * @param maxConnections: the maximum number of connections kept open to the web services, all hosts together
+	 * @param maxConnectionsPerRoute: the maximum number of connections kept open to a single web service host
+	 * @param connectTimeout: the timeout for connecting to a web service, or waiting for a pooled connection, in milliseconds
+	 * @param readTimeout: the timeout between two reads from a web service, in milliseconds
+	 */
+	public static synchronized void configureHttpClient(int maxConnections, int maxConnectionsPerRoute, int connectTimeout, int readTimeout) {
+		CloseableHttpClient previous = httpClient;
+		CloseableHttpClient previousRange = rangeHttpClient;
+		httpClient = createHttpClient(createConnectionManager(maxConnections, maxConnectionsPerRoute), 
+				createRequestConfig(connectTimeout, connectTimeout, readTimeout));
+		rangeConnectionManager = createConnectionManager(maxConnections, maxConnectionsPerRoute);
+		rangeHttpClient = createHttpClient(rangeConnectionManager, createRequestConfig(connectTimeout, 0, readTimeout));
+		try {
+			previous.close();
+			previousRange.close();
+		} catch (IOException e) {
+			logger.debug("Could not close the previous HTTP client: " + e.getMessage());
 		}
-		else if (this.url.startsWith("http")) {
-			this.connection = (HttpURLConnection) new URL(url).openConnection();
-			connection.connect();
+		
+		WebServiceClient.maxConnections = maxConnections;
+		WebServiceClient.maxConnectionsPerRoute = maxConnectionsPerRoute;
+		WebServiceClient.connectTimeout = connectTimeout;
+		WebServiceClient.readTimeout = readTimeout;
+		if (asyncHttpClient != null) {
+			try {
+				asyncHttpClient.close();
+			} catch (IOException e) {
+				logger.debug("Could not close the previous non-blocking HTTP client: " + e.getMessage());
+			}
+			asyncHttpClient = null;
+		}
+	}
+	
+	/**
+	 * Sets how the large contents are downloaded, when the web service accepts byte ranges (see SegmentedDownload)
+	 *
+	 * @param segmentCount: the maximum number of ranges downloaded in parallel for a single content (1 to download every content as a single stream)
+	 * @param minSegmentSize: the minimum size of a range, in bytes
+	 */
+	public static synchronized void configureSegmentedDownloads(int segmentCount, long minSegmentSize) {
+		WebServiceClient.segmentCount = segmentCount;
+		WebServiceClient.minSegmentSize = minSegmentSize;
+	}
+	
+	/**
+	 * Sets how many times a download is resumed from its last byte received after a failure, when the web service accepts byte ranges
+	 *
+	 * @param maxRetries: the maximum number of resumptions of a download (0 to never resume)
+	 */
+	public static synchronized void configureResumableDownloads(int maxRetries) {
+		WebServiceClient.maxRetries = maxRetries;
+	}
+	
+	private static synchronized CloseableHttpAsyncClient getAsyncHttpClient() {
+		if (asyncHttpClient == null) {
+			asyncHttpClient = HttpAsyncClients.custom()
+					.setSSLContext(getDefaultSSLContext())
+					.setHostnameVerifier(SSLConnections.getHostnameVerifier())
+					.setMaxConnTotal(maxConnections)
+					.setMaxConnPerRoute(maxConnectionsPerRoute)
+					.setDefaultRequestConfig(createRequestConfig(connectTimeout, connectTimeout, readTimeout))
+					.setUserAgent(USER_AGENT)
+					.build();
+			asyncHttpClient.start();
+		}
+		return asyncHttpClient;
+	}
+	
+	private static SSLContext getDefaultSSLContext() {
+		// Trust store of the JVM, and the self-signed certificates accepted by InstallCert since startup
+		return SSLConnections.getSSLContext();
+	}
+	
+	/**
+	 * Creates the configuration of the requests
+	 *
+	 * @param connectTimeout: the timeout for connecting to a web service, in milliseconds
+	 * @param connectionRequestTimeout: the timeout for waiting for a pooled connection, in milliseconds (0 for no limit)
+	 * @param readTimeout: the timeout between two reads from a web service, in milliseconds
+	 * @return the configuration of the requests
+	 */
+	private static RequestConfig createRequestConfig(int connectTimeout, int connectionRequestTimeout, int readTimeout) {
+		return RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectionRequestTimeout)
+				.setSocketTimeout(readTimeout)
+				.build();
+	}
+	
+	private static PoolingHttpClientConnectionManager createConnectionManager(int maxConnections, int maxConnectionsPerRoute) {
+		// TLS sessions resumed across the connections, and host names verified for each connection
+		SSLContext sslContext = getDefaultSSLContext();
+		Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+				.register("http", PlainConnectionSocketFactory.getSocketFactory())
+				.register("https", new SSLConnectionSocketFactory(sslContext, SSLConnections.getHostnameVerifier()))
+				.build();
+		
+		PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+		connectionManager.setMaxTotal(maxConnections);
+		connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+		return connectionManager;
+	}
+	
+	private static CloseableHttpClient createHttpClient(PoolingHttpClientConnectionManager connectionManager, RequestConfig requestConfig) {
+		return HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.setUserAgent(USER_AGENT)
+				.build();
+	}
+	
+	/**
+	 * Number of ranges to download a content with, within the connections of the range pool free for its host:
+	 * once the pool is busy, the contents are downloaded with fewer ranges, down to a single stream
+	 *
+	 * @param contentLength: the length of the content in bytes
+	 * @return the number of ranges, 1 to download the content as a single stream
+	 */
+	private int getSegmentCount(long contentLength) {
+		int segments = SegmentedDownload.getSegmentCount(contentLength, segmentCount, minSegmentSize);
+		if (segments <= 1)
+			return segments;
+		try {
+			HttpHost target = URIUtils.extractHost(new URI(this.url));
+			boolean secure = "https".equalsIgnoreCase(target.getSchemeName());
+			int port = (target.getPort() > 0) ? target.getPort() : secure ? 443 : 80;
+			HttpRoute route = new HttpRoute(new HttpHost(target.getHostName(), port, target.getSchemeName()), null, secure);
+			PoolStats stats = rangeConnectionManager.getStats(route);
+			// The first range is read from the response to the original request, the others need a connection each
+			int free = Math.max(0, stats.getMax() - stats.getLeased() - stats.getPending());
+			return Math.min(segments, 1 + free);
+		} catch (URISyntaxException | RuntimeException e) {
+			logger.debug("Could not check the free connections to " + this.url + ": " + e.getMessage());
+			return segments;
 		}
-
 	}
 	
 	/**
 	 * Retrieves some data from a URL using SSL (HTTPS protocol)
 	 * @param url: the URL where the data is located
-	 * @return the data retrieved, as a String
+	 * @return the data retrieved, as a String decoded with the charset of the content type (UTF-8 by default)
 	 */
 	public String readString() {
 		logger.info("Inside readString");
-
-		StringBuilder sb = new StringBuilder();
-		int cp;
-
-		try {
-			
-			InputStream is = this.connection.getInputStream();
+		
+		Charset charset = null;
+		HttpEntity entity = this.response.getEntity();
+		if (entity != null) {
+			try {
+				charset = ContentType.getOrDefault(entity).getCharset();
+			} catch (ParseException | UnsupportedCharsetException e) {
+				logger.debug("Unsupported content type for " + this.url + ": " + e.getMessage());
+			}
+		}
+		return new String(this.readBytes(), (charset != null) ? charset : StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Opens the stream of the data retrieved from the URL, to be read as it is downloaded.
+	 * Closing the stream gives the connection back to the pool.
+	 * If the web service accepts byte ranges and validates them (strong ETag or Last-Modified), large contents are downloaded
+	 * as several ranges in parallel (see SegmentedDownload), and the download is resumed from the last byte received if the
+	 * connection fails (see ResumableDownload). Otherwise, the content is read as a single stream.
+	 * @return the stream of the data retrieved, to be closed by the caller
+	 *
+	 * @throws IOException: if the data could not be retrieved
+	 */
+	public InputStream getInputStream() throws IOException {
+		logger.info("Inside getInputStream");
+		int statusCode = this.response.getStatusLine().getStatusCode();
+		HttpEntity entity = this.response.getEntity();
+		if (statusCode >= 400) {
+			EntityUtils.consumeQuietly(entity);
+			throw new IOException("Server returned HTTP response code: " + statusCode + " for URL: " + this.url);
+		}
+		if (entity == null)
+			return new ByteArrayInputStream(new byte[0]);
+		
+		long contentLength = entity.getContentLength();
+		if (contentLength > 0 && statusCode == HttpStatus.SC_OK && "bytes".equalsIgnoreCase(this.getHeader("Accept-Ranges"))
+				&& this.getRangeValidator() != null && this.response instanceof CloseableHttpResponse) {
+			InputStream head = SegmentedDownload.abortable(entity.getContent(), (CloseableHttpResponse) this.response);
+			int segments = this.getSegmentCount(contentLength);
+			if (segments > 1)
+				return new SegmentedDownload(head, contentLength, segments, this::getRange, maxRetries);
+			if (maxRetries > 0)
+				return new ResumableDownload(head, 0, contentLength, this::getRange, maxRetries);
+		}
+		return entity.getContent();
+	}
+	
+	/**
+	 * Requests a byte range of the data, only if the data has not changed since the original request
+	 *
+	 * @param first: the position of the first byte of the range
+	 * @param last: the position of the last byte of the range, included
+	 * @return the stream of the range, aborting the request if closed before its end
+	 *
+	 * @throws IOException: if the range could not be retrieved
+	 */
+	private InputStream getRange(long first, long last) throws IOException {
+		HttpGet request = new HttpGet(this.url);
+		request.setHeader("Range", "bytes=" + first + "-" + last);
+		request.setHeader("If-Range", this.getRangeValidator());
+		
+		CloseableHttpResponse rangeResponse = rangeHttpClient.execute(request);
+		int statusCode = rangeResponse.getStatusLine().getStatusCode();
+		Header contentRange = rangeResponse.getFirstHeader("Content-Range");
+		if (statusCode != HttpStatus.SC_PARTIAL_CONTENT || rangeResponse.getEntity() == null
+				|| contentRange == null || !contentRange.getValue().startsWith("bytes " + first + "-" + last + "/")) {
+			rangeResponse.close();
+			throw new IOException("Server returned HTTP response code: " + statusCode + " instead of bytes " + first + "-" + last + " for URL: " + this.url);
+		}
+		return SegmentedDownload.abortable(rangeResponse.getEntity().getContent(), rangeResponse);
+	}
+	
+	/**
+	 * Validator sent with If-Range, so that the ranges of a content changed since the original request are never mixed
+	 * @return the strong ETag of the data, or else its last modification date, or null if ranges cannot be validated
+	 */
+	private String getRangeValidator() {
+		// Weak ETags cannot validate a range
+		String eTag = this.getETag();
+		return (eTag != null && !eTag.startsWith("W/")) ? eTag : this.getLastModified();
+	}
+	
+	/**
+	 * Retrieves the data from the URL as bytes, unchanged, so that binary content (e.g. images, PDF) is kept intact.
+	 * The data is read in bulk, into a buffer of the size announced by the web service if any.
+	 * @return the data retrieved, or an empty array if the data could not be retrieved
+	 */
+	public byte[] readBytes() {
+		logger.info("Inside readBytes");
+		
+		long contentLength = this.getContentLength();
+		try (InputStream is = this.getInputStream()) {
 			
-			BufferedReader rd = new BufferedReader(new InputStreamReader(is, Charset.forName("UTF-8")));
-			while ((cp = rd.read()) != -1) {
-				sb.append((char) cp);
+			if (contentLength >= 0 && contentLength <= MAX_ARRAY_SIZE) {
+				byte[] bytes = new byte[(int) contentLength];
+				int length = 0;
+				int read = 0;
+				while (length < bytes.length && (read = is.read(bytes, length, bytes.length - length)) >= 0)
+					length += read;
+				// Shorter or longer than announced: falls back to a growing buffer
+				if (length < bytes.length)
+					return Arrays.copyOf(bytes, length);
+				int next = is.read();
+				if (next < 0)
+					return bytes;
+				ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + TRANSFER_BLOCK_SIZE);
+				out.write(bytes);
+				out.write(next);
+				copy(is, out);
+				return out.toByteArray();
 			}
-			return sb.toString();
 			
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(TRANSFER_BLOCK_SIZE);
+			copy(is, out);
+			return out.toByteArray();
+		
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return "";
+		return new byte[0];
 	}
 	
-	public byte[] readBytes() {
-		logger.info("Inside readBytes");
-		return readString().getBytes();
+	/**
+	 * Streams the data from the URL to an output stream as it is downloaded, without holding it in memory.
+	 * A reply stream is filled directly from the download, without any intermediate copy (see RabbitMQChunkedReplyStream#writeFrom).
+	 * @param out: the stream to write the data to, not closed
+	 * @return the number of bytes transferred
+	 *
+	 * @throws IOException: if the data could not be retrieved or written
+	 */
+	public long transferTo(OutputStream out) throws IOException {
+		try (InputStream is = this.getInputStream()) {
+			if (out instanceof RabbitMQChunkedReplyStream)
+				return ((RabbitMQChunkedReplyStream) out).writeFrom(is);
+			return copy(is, out);
+		}
+	}
+	
+	private static long copy(InputStream in, OutputStream out) throws IOException {
+		byte[] block = RabbitMQBufferPool.getDefault().lease(TRANSFER_BLOCK_SIZE);
+		try {
+			long total = 0;
+			int read;
+			while ((read = in.read(block)) >= 0) {
+				out.write(block, 0, read);
+				total += read;
+			}
+			return total;
+		} finally {
+			RabbitMQBufferPool.getDefault().release(block);
+		}
 	}
 	
 	public Long getContentLength() {
 		logger.info("Inside getContentLength");
-		return this.connection.getContentLengthLong();
+		HttpEntity entity = this.response.getEntity();
+		return (entity != null) ? entity.getContentLength() : -1L;
 	}
 	
 	public String getContentType() {
 		logger.info("Inside getContentType");
-		return this.connection.getContentType();
-	}	
-}
\ No newline at end of file
+		return this.getHeader("Content-Type");
+	}
+	
+	/**
+	 * Checks whether the web service answered a conditional request with 304 Not Modified,
+	 * in which case the data last retrieved is still current and no data is sent
+	 * @return true if the data has not changed since it was last retrieved
+	 *
+	 * @throws IOException: if the response could not be retrieved
+	 */
+	public boolean isNotModified() throws IOException {
+		return this.getStatusCode() == HttpStatus.SC_NOT_MODIFIED;
+	}
+	
+	/**
+	 * Getter for the HTTP status code of the response
+	 * @return the HTTP status code of the response
+	 */
+	public int getStatusCode() {
+		return this.response.getStatusLine().getStatusCode();
+	}
+	
+	/**
+	 * Getter for the ETag of the data retrieved, to be sent with the next requests (see #WebServiceClient(String, String, String))
+	 * @return the ETag of the data retrieved, or null if the web service did not send one
+	 */
+	public String getETag() {
+		return this.getHeader("ETag");
+	}
+	
+	/**
+	 * Getter for the Last-Modified date of the data retrieved, to be sent with the next requests (see #WebServiceClient(String, String, String))
+	 * @return the Last-Modified date of the data retrieved, or null if the web service did not send one
+	 */
+	public String getLastModified() {
+		return this.getHeader("Last-Modified");
+	}
+	
+	private String getHeader(String name) {
+		Header header = this.response.getFirstHeader(name);
+		return (header != null) ? header.getValue() : null;
+	}
+	
+	/**
+	 * Consumer of the response to an asynchronous request, pushing the content to the receiver given by the handler.
+	 * The I/O threads only hand the response and its content over to the dispatcher, which calls the handler and the receiver.
+	 */
+	private static class AsyncResponse extends AsyncByteConsumer<Void> {
+		
+		private final String url;
+		
+		private final AsyncResponseHandler handler;
+		
+		/**
+		 * Runs the handler and the receiver in order, suspending the connection while the content received waits to be written
+		 */
+		private final RabbitMQReplyDispatcher dispatcher = new RabbitMQReplyDispatcher(
+				() -> this.ioControl.suspendInput(), () -> this.ioControl.requestInput());
+		
+		private volatile IOControl ioControl = null;
+		
+		private volatile boolean responded = false;
+		
+		/**
+		 * Whether the response could not be handled, or its content could not be written: the request is then aborted
+		 */
+		private volatile boolean failed = false;
+		
+		/**
+		 * Receiver of the content, only used by the dispatcher
+		 */
+		private RabbitMQReplyReceiver receiver = null;
+		
+		/**
+		 * Whether the receiver was finished or failed, only used by the dispatcher
+		 */
+		private boolean done = false;
+		
+		AsyncResponse(String url, AsyncResponseHandler handler) {
+			this.url = url;
+			this.handler = handler;
+		}
+		
+		@Override
+		protected void onResponseReceived(HttpResponse response) {
+			WebServiceClient client = new WebServiceClient(this.url, response);
+			this.responded = true;
+			this.dispatcher.execute(() -> {
+				try {
+					this.receiver = this.handler.onResponse(client);
+				} catch (Exception e) {
+					this.failed = true;
+					this.handler.onFailure(e);
+				}
+			});
+		}
+		
+		@Override
+		protected void onByteReceived(ByteBuffer buffer, IOControl ioControl) throws IOException {
+			if (this.failed)
+				throw new IOException("Response to " + this.url + " not handled, request aborted");
+			this.ioControl = ioControl;
+			this.dispatcher.write(buffer, (block, length) -> {
+				if (this.receiver == null || this.done)
+					return;
+				try {
+					this.receiver.write(block, 0, length);
+				} catch (IOException e) {
+					this.done = true;
+					this.failed = true;
+					this.receiver.fail(e);
+				}
+			});
+		}
+		
+		@Override
+		protected Void buildResult(HttpContext context) {
+			return null;
+		}
+		
+		void complete() {
+			this.dispatcher.execute(() -> {
+				if (this.receiver == null || this.done)
+					return;
+				this.done = true;
+				try {
+					this.receiver.finish();
+				} catch (IOException e) {
+					this.receiver.fail(e);
+				}
+			});
+		}
+		
+		void abort(Exception cause) {
+			this.dispatcher.execute(() -> {
+				if (this.receiver != null) {
+					if (!this.done) {
+						this.done = true;
+						this.receiver.fail(cause);
+					}
+				}
+				else if (!this.responded)
+					this.handler.onFailure(cause);
+				else if (!this.failed)
+					logger.error("Request to " + this.url + " failed: " + cause.getMessage());
+			});
+		}
+	}
+}
@@ -3,7 +3,11 @@ package edu.rmit.eres.estored.connectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.rmit.eres.amqpclient.RabbitMQBufferPool;
+import edu.rmit.eres.amqpclient.RabbitMQChunkedReplyStream;
 import edu.rmit.eres.amqpclient.RabbitMQListener;
+import edu.rmit.eres.amqpclient.RabbitMQReplyCoalescer;
+import edu.rmit.eres.amqpclient.RabbitMQReplyDispatcher;
 
 /**
  * This programs creates a listener for RabbitMQ binding key on a given 
@@ -26,6 +30,32 @@ public class WebServiceConnector {
 	private static final String DEFAULT_RABBITMQ_PASSWORD = "estored-user-pw";
 	private static final String DEFAULT_RABBITMQ_VHOST = "/estored";
 	private static final String DEFAULT_RABBITMQ_SSL_PROTOCOL = "tlsv1.2";
+	private static final int DEFAULT_RABBITMQ_PREFETCH_COUNT = RabbitMQListener.DEFAULT_PREFETCH_COUNT;
+	private static final int DEFAULT_WORKER_POOL_SIZE = RabbitMQListener.DEFAULT_WORKER_POOL_SIZE;
+	private static final Boolean DEFAULT_VIRTUAL_THREADS = false;
+	private static final Boolean DEFAULT_RABBITMQ_PUBLISHER_CONFIRMS = false;
+	private static final int DEFAULT_RABBITMQ_RECONNECT_MAX_ATTEMPTS = RabbitMQListener.DEFAULT_RECONNECT_MAX_ATTEMPTS;
+	private static final long DEFAULT_RABBITMQ_RECONNECT_INITIAL_DELAY = RabbitMQListener.DEFAULT_RECONNECT_INITIAL_DELAY;
+	private static final long DEFAULT_RABBITMQ_RECONNECT_MAX_DELAY = RabbitMQListener.DEFAULT_RECONNECT_MAX_DELAY;
+	private static final Boolean DEFAULT_RABBITMQ_COMPETING_CONSUMERS = false;
+	private static final String DEFAULT_RABBITMQ_WORK_QUEUE = "estored.ds.webservice";
+	private static final int DEFAULT_RABBITMQ_CONNECTION_COUNT = 1;
+	private static final int DEFAULT_RABBITMQ_REPLY_CHUNK_SIZE = RabbitMQChunkedReplyStream.DEFAULT_CHUNK_SIZE;
+	private static final int DEFAULT_RABBITMQ_REPLY_COMPRESSION_THRESHOLD = RabbitMQChunkedReplyStream.DEFAULT_COMPRESSION_THRESHOLD;
+	private static final long DEFAULT_BUFFER_POOL_SIZE = RabbitMQBufferPool.DEFAULT_MAX_RETAINED_SIZE;
+	private static final Boolean DEFAULT_REQUEST_COALESCING = true;
+	private static final long DEFAULT_RESPONSE_CACHE_SIZE = WebServiceResponseCache.DEFAULT_MAX_SIZE;
+	private static final long DEFAULT_RESPONSE_CACHE_TTL = WebServiceResponseCache.DEFAULT_TTL;
+	private static final int DEFAULT_HTTP_MAX_CONNECTIONS = WebServiceClient.DEFAULT_MAX_CONNECTIONS;
+	private static final int DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST = WebServiceClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+	private static final int DEFAULT_HTTP_CONNECT_TIMEOUT = WebServiceClient.DEFAULT_CONNECT_TIMEOUT;
+	private static final int DEFAULT_HTTP_READ_TIMEOUT = WebServiceClient.DEFAULT_READ_TIMEOUT;
+	private static final Boolean DEFAULT_ASYNC_DELIVERIES = false;
+	private static final int DEFAULT_SSL_SESSION_CACHE_SIZE = SSLConnections.DEFAULT_SESSION_CACHE_SIZE;
+	private static final int DEFAULT_SSL_SESSION_TIMEOUT = SSLConnections.DEFAULT_SESSION_TIMEOUT;
+	private static final int DEFAULT_DOWNLOAD_SEGMENTS = SegmentedDownload.DEFAULT_SEGMENT_COUNT;
+	private static final long DEFAULT_DOWNLOAD_MIN_SEGMENT_SIZE = SegmentedDownload.DEFAULT_MIN_SEGMENT_SIZE;
+	private static final int DEFAULT_DOWNLOAD_MAX_RETRIES = ResumableDownload.DEFAULT_MAX_RETRIES;
 	
 	/**
 	 * Start of the eStoRED MyTardis Datasource program
@@ -40,20 +70,99 @@ public class WebServiceConnector {
 			final String rabbitmqPassword = (System.getenv("RABBITMQ_USER_PASSWORD") != null) ? System.getenv("RABBITMQ_USER_PASSWORD") : DEFAULT_RABBITMQ_PASSWORD;
 			final String rabbitmqVhost = (System.getenv("RABBITMQ_VHOST") != null) ? System.getenv("RABBITMQ_VHOST") : DEFAULT_RABBITMQ_VHOST;
 			final String rabbitmqSslprotocol = DEFAULT_RABBITMQ_SSL_PROTOCOL;
+			final int rabbitmqPrefetchCount = (System.getenv("RABBITMQ_PREFETCH_COUNT") != null) ? new Integer(System.getenv("RABBITMQ_PREFETCH_COUNT")) : DEFAULT_RABBITMQ_PREFETCH_COUNT;
+			final int workerPoolSize = (System.getenv("WORKER_POOL_SIZE") != null) ? new Integer(System.getenv("WORKER_POOL_SIZE")) : DEFAULT_WORKER_POOL_SIZE;
+			final Boolean virtualThreads = (System.getenv("VIRTUAL_THREADS") != null) ? Boolean.valueOf(System.getenv("VIRTUAL_THREADS")) : DEFAULT_VIRTUAL_THREADS;
+			// By default, one publishing channel per worker so that workers never wait for a channel
+			final int rabbitmqChannelPoolSize = (System.getenv("RABBITMQ_CHANNEL_POOL_SIZE") != null) ? new Integer(System.getenv("RABBITMQ_CHANNEL_POOL_SIZE")) : workerPoolSize;
+			final Boolean rabbitmqPublisherConfirms = (System.getenv("RABBITMQ_PUBLISHER_CONFIRMS") != null) ? Boolean.valueOf(System.getenv("RABBITMQ_PUBLISHER_CONFIRMS")) : DEFAULT_RABBITMQ_PUBLISHER_CONFIRMS;
+			final int rabbitmqReconnectMaxAttempts = (System.getenv("RABBITMQ_RECONNECT_MAX_ATTEMPTS") != null) ? new Integer(System.getenv("RABBITMQ_RECONNECT_MAX_ATTEMPTS")) : DEFAULT_RABBITMQ_RECONNECT_MAX_ATTEMPTS;
+			final long rabbitmqReconnectInitialDelay = (System.getenv("RABBITMQ_RECONNECT_INITIAL_DELAY") != null) ? new Long(System.getenv("RABBITMQ_RECONNECT_INITIAL_DELAY")) : DEFAULT_RABBITMQ_RECONNECT_INITIAL_DELAY;
+			final long rabbitmqReconnectMaxDelay = (System.getenv("RABBITMQ_RECONNECT_MAX_DELAY") != null) ? new Long(System.getenv("RABBITMQ_RECONNECT_MAX_DELAY")) : DEFAULT_RABBITMQ_RECONNECT_MAX_DELAY;
+			final Boolean rabbitmqCompetingConsumers = (System.getenv("RABBITMQ_COMPETING_CONSUMERS") != null) ? Boolean.valueOf(System.getenv("RABBITMQ_COMPETING_CONSUMERS")) : DEFAULT_RABBITMQ_COMPETING_CONSUMERS;
+			final String rabbitmqWorkQueue = (System.getenv("RABBITMQ_WORK_QUEUE") != null) ? System.getenv("RABBITMQ_WORK_QUEUE") : DEFAULT_RABBITMQ_WORK_QUEUE;
+			final String rabbitmqAddresses = System.getenv("RABBITMQ_BROKER_ADDRESSES");
+			final int rabbitmqConnectionCount = (System.getenv("RABBITMQ_CONNECTION_COUNT") != null) ? new Integer(System.getenv("RABBITMQ_CONNECTION_COUNT")) : DEFAULT_RABBITMQ_CONNECTION_COUNT;
+			final int rabbitmqReplyChunkSize = (System.getenv("RABBITMQ_REPLY_CHUNK_SIZE") != null) ? new Integer(System.getenv("RABBITMQ_REPLY_CHUNK_SIZE")) : DEFAULT_RABBITMQ_REPLY_CHUNK_SIZE;
+			final int rabbitmqReplyCompressionThreshold = (System.getenv("RABBITMQ_REPLY_COMPRESSION_THRESHOLD") != null) ? new Integer(System.getenv("RABBITMQ_REPLY_COMPRESSION_THRESHOLD")) : DEFAULT_RABBITMQ_REPLY_COMPRESSION_THRESHOLD;
+			final long bufferPoolSize = (System.getenv("BUFFER_POOL_SIZE") != null) ? new Long(System.getenv("BUFFER_POOL_SIZE")) : DEFAULT_BUFFER_POOL_SIZE;
+			final Boolean requestCoalescing = (System.getenv("REQUEST_COALESCING") != null) ? Boolean.valueOf(System.getenv("REQUEST_COALESCING")) : DEFAULT_REQUEST_COALESCING;
+			final long responseCacheSize = (System.getenv("RESPONSE_CACHE_SIZE") != null) ? new Long(System.getenv("RESPONSE_CACHE_SIZE")) : DEFAULT_RESPONSE_CACHE_SIZE;
+			final long responseCacheTtl = (System.getenv("RESPONSE_CACHE_TTL") != null) ? new Long(System.getenv("RESPONSE_CACHE_TTL")) : DEFAULT_RESPONSE_CACHE_TTL;
+			final int httpMaxConnections = (System.getenv("HTTP_MAX_CONNECTIONS") != null) ? new Integer(System.getenv("HTTP_MAX_CONNECTIONS")) : DEFAULT_HTTP_MAX_CONNECTIONS;
+			final int httpMaxConnectionsPerHost = (System.getenv("HTTP_MAX_CONNECTIONS_PER_HOST") != null) ? new Integer(System.getenv("HTTP_MAX_CONNECTIONS_PER_HOST")) : DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST;
+			final int httpConnectTimeout = (System.getenv("HTTP_CONNECT_TIMEOUT") != null) ? new Integer(System.getenv("HTTP_CONNECT_TIMEOUT")) : DEFAULT_HTTP_CONNECT_TIMEOUT;
+			final int httpReadTimeout = (System.getenv("HTTP_READ_TIMEOUT") != null) ? new Integer(System.getenv("HTTP_READ_TIMEOUT")) : DEFAULT_HTTP_READ_TIMEOUT;
+			final Boolean asyncDeliveries = (System.getenv("ASYNC_DELIVERIES") != null) ? Boolean.valueOf(System.getenv("ASYNC_DELIVERIES")) : DEFAULT_ASYNC_DELIVERIES;
+			final int sslSessionCacheSize = (System.getenv("SSL_SESSION_CACHE_SIZE") != null) ? new Integer(System.getenv("SSL_SESSION_CACHE_SIZE")) : DEFAULT_SSL_SESSION_CACHE_SIZE;
+			final int sslSessionTimeout = (System.getenv("SSL_SESSION_TIMEOUT") != null) ? new Integer(System.getenv("SSL_SESSION_TIMEOUT")) : DEFAULT_SSL_SESSION_TIMEOUT;
+			final int downloadSegments = (System.getenv("DOWNLOAD_SEGMENTS") != null) ? new Integer(System.getenv("DOWNLOAD_SEGMENTS")) : DEFAULT_DOWNLOAD_SEGMENTS;
+			final long downloadMinSegmentSize = (System.getenv("DOWNLOAD_MIN_SEGMENT_SIZE") != null) ? new Long(System.getenv("DOWNLOAD_MIN_SEGMENT_SIZE")) : DEFAULT_DOWNLOAD_MIN_SEGMENT_SIZE;
+			final int downloadThreads = (System.getenv("DOWNLOAD_THREADS") != null) ? new Integer(System.getenv("DOWNLOAD_THREADS")) : workerPoolSize * Math.max(1, downloadSegments);
+			final int downloadMaxRetries = (System.getenv("DOWNLOAD_MAX_RETRIES") != null) ? new Integer(System.getenv("DOWNLOAD_MAX_RETRIES")) : DEFAULT_DOWNLOAD_MAX_RETRIES;
 			
 			try {
 				logger.info("Trying to connect: " + rabbitmqUsername + ":" + rabbitmqPassword + "@" + rabbitmqHost + ":" + rabbitmqPort + rabbitmqVhost + " (" + rabbitmqSslprotocol + ")");
-				RabbitMQListener listener = new RabbitMQListener(
-						rabbitmqHost,
-						rabbitmqPort, 
-						rabbitmqSslprotocol, 
-						rabbitmqVhost, 
-						rabbitmqUsername, 
-						rabbitmqPassword);
-		    	listener.openConnection();
-				listener.listen("amq.topic", "estored.ds.webservice.#");
+				// Identical requests share a single download, whichever connection they are received on
+				final RabbitMQReplyCoalescer replyCoalescer = requestCoalescing ? new RabbitMQReplyCoalescer(RabbitMQReplyCoalescer.DEFAULT_REPLAY_LIMIT) : null;
+				// TLS sessions with the web services are resumed by the following connections
+				SSLConnections.configureSessionCache(sslSessionCacheSize, sslSessionTimeout);
+				// Connections to the web services are pooled and kept alive, shared by all the consumers
+				WebServiceClient.configureHttpClient(httpMaxConnections, httpMaxConnectionsPerHost, httpConnectTimeout, httpReadTimeout);
+				// Large responses are downloaded as several byte ranges in parallel
+				WebServiceClient.configureSegmentedDownloads(downloadSegments, downloadMinSegmentSize);
+				SegmentedDownload.configureThreads(downloadThreads);
+				// Interrupted downloads restart from the last byte received
+				WebServiceClient.configureResumableDownloads(downloadMaxRetries);
+				// Repeated requests are answered from memory until the responses expire
+				if (responseCacheSize > 0)
+					WebServiceRMQConsumer.setResponseCache(new WebServiceResponseCache(responseCacheSize, responseCacheTtl));
+				
+				// Reply buffers are reused from one request to the next instead of being allocated for each request
+				RabbitMQBufferPool.setDefault(new RabbitMQBufferPool(bufferPoolSize));
+				// Non-blocking downloads are published by as many threads as there are channels to publish with
+				RabbitMQReplyDispatcher.configureThreads(rabbitmqChannelPoolSize);
+				
+				// Opens one connection per shard, each with its own consumer, spread across the cluster nodes
+				for (int shard = 0; shard < rabbitmqConnectionCount; shard++) {
+					RabbitMQListener listener = new RabbitMQListener(
+							rabbitmqHost,
+							rabbitmqPort, 
+							rabbitmqSslprotocol, 
+							rabbitmqVhost, 
+							rabbitmqUsername, 
+							rabbitmqPassword);
+					if (rabbitmqAddresses != null)
+						listener.setBrokerAddresses(RabbitMQListener.parseBrokerAddresses(rabbitmqAddresses, rabbitmqPort), shard);
+					listener.setPrefetchCount(rabbitmqPrefetchCount);
+					listener.setWorkerPoolSize(workerPoolSize);
+					listener.setVirtualThreads(virtualThreads);
+					listener.setChannelPoolSize(rabbitmqChannelPoolSize);
+					listener.setPublisherConfirms(rabbitmqPublisherConfirms);
+					listener.setReconnectMaxAttempts(rabbitmqReconnectMaxAttempts);
+					listener.setReconnectDelays(rabbitmqReconnectInitialDelay, rabbitmqReconnectMaxDelay);
+					// Exits rather than staying up without consuming, once the connection cannot be recovered anymore
+					listener.setReconnectionFailureHandler(() -> {
+						logger.error("Could not reconnect to the RabbitMQ broker, exiting");
+						System.exit(1);
+					});
+					listener.setReplyChunkSize(rabbitmqReplyChunkSize);
+					listener.setReplyCompressionThreshold(rabbitmqReplyCompressionThreshold);
+					listener.setReplyCoalescer(replyCoalescer);
+					listener.setAsyncDeliveries(asyncDeliveries);
+				
+					// Retries with exponential backoff, then keeps reconnecting whenever the connection is lost
+					if (!listener.connect()) {
+						logger.error("Could not connect to the RabbitMQ broker, exiting");
+						System.exit(1);
+					}
+					// In competing consumers mode, all the instances share one durable work queue and split the requests.
+					// Several connections of the same instance also have to share it, so as not to receive every request several times.
+					listener.listen("amq.topic", "estored.ds.webservice.#", (rabbitmqCompetingConsumers || rabbitmqConnectionCount > 1) ? rabbitmqWorkQueue : null);
+				}
 	    	} catch (Exception e) {
 				e.printStackTrace();
+				System.exit(1);
 			}
 	  }
 }
\ No newline at end of file
@@ -1,16 +1,12 @@
 package edu.rmit.eres.estored.connectors;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.Map;
-
-import javax.net.ssl.HttpsURLConnection;
-
-import org.apache.commons.codec.binary.Base64;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -21,6 +17,9 @@ import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.LongString;
 
+import edu.rmit.eres.amqpclient.RabbitMQAsyncConsumer;
+import edu.rmit.eres.amqpclient.RabbitMQReplyReceiver;
+import edu.rmit.eres.amqpclient.RabbitMQReplySource;
 import edu.rmit.eres.amqpclient.RabbitMQClient;
 
 /**
@@ -32,29 +31,184 @@ import edu.rmit.eres.amqpclient.RabbitMQClient;
  * 
  * @see @{link com.rabbitmq.client.Consumer}
  */
-public class WebServiceRMQConsumer extends DefaultConsumer {
+public class WebServiceRMQConsumer extends DefaultConsumer implements RabbitMQAsyncConsumer {
 	
 	private static final Logger logger = LoggerFactory.getLogger(WebServiceRMQConsumer.class);
 	
 	private static final Boolean DEFAULT_SSL_AUTOTRUST_SELFSIGNED = true;
 	
+	/**
+	 * Cache of the web service responses, shared by all the consumers, or null if responses are not cached
+	 */
+	private static WebServiceResponseCache responseCache = null;
+	
 	private String rabbitmqExchangeName;
 	
+	/**
+	 * RabbitMQ client providing the pooled channels on which responses are published
+	 */
+	private RabbitMQClient rabbitmqClient;
+	
 	/**
 	 * Default contructor of WebServiceRMQConsumer, calling the parent class constructor @{link com.rabbitmq.client.DefaultConsumer}
-	 * @param channel: 
+	 * @param channel: the channel on which requests are consumed
+	 * @param rabbitmqClient: the RabbitMQ client on which responses are published
+	 * @param rabbitMqExchangeName: the name of the exchange to send responses to
 	 */
-	public WebServiceRMQConsumer(Channel channel, String rabbitMqExchangeName) throws IOException {
+	public WebServiceRMQConsumer(Channel channel, RabbitMQClient rabbitmqClient, String rabbitMqExchangeName) throws IOException {
 		super(channel);
+		this.rabbitmqClient = rabbitmqClient;
 		this.rabbitmqExchangeName = rabbitMqExchangeName;
 	}
 	
 	/**
 	 * Handles a request for retrieving a single MyTardis data file.
+	 * I/O errors (download or publishing of the response) are rethrown so that the delivery gets rejected.
+	 * The delivery is acknowledged only once the broker confirmed the response.
 	 */
     @Override
     public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
     	
+    	String url = getRequestedUrl(properties, body);
+    	
+    	try {
+    		trustSelfSignedCertificate(url);
+        	
+            String returnRoutingKey = getReturnRoutingKey(envelope);
+        	
+            // Answers from the cache unless a recomputation is requested, in which case the response is downloaded again
+            RabbitMQReplySource cached = getCachedResponse(url, envelope);
+            if (cached != null) {
+            	RabbitMQClient.awaitConfirmation(sendMessage(this.rabbitmqExchangeName, returnRoutingKey, null, () -> cached, properties));
+            	return;
+            }
+        	
+            // Sends response back to new routing key, with the meta-data as message headers and the file content as message body,
+            // streamed from the web service chunk by chunk. Identical requests in flight share the same download.
+            final WebServiceResponseCache cache = responseCache;
+            CompletableFuture<Void> confirmation = sendMessage(this.rabbitmqExchangeName, returnRoutingKey, url, () -> {
+            	// An expired response is revalidated: if it has not changed, the web service only answers with headers
+            	WebServiceClient client = (cache != null) ? new WebServiceClient(url, cache.getETag(url), cache.getLastModified(url)) : new WebServiceClient(url);
+            	if (client.isNotModified()) {
+            		RabbitMQReplySource revalidated = cache.revalidate(url);
+            		if (revalidated != null) {
+            			logger.debug("Answering from the cache, not modified since last download: " + cache);
+            			return revalidated;
+            		}
+            		client = new WebServiceClient(url);
+            	}
+                
+            	logger.debug("Downloading content from " + url);
+            	RabbitMQReplySource source = new RabbitMQReplySource(client.getInputStream(), client.getContentType(), client.getContentLength(), getResponseHeaders(client));
+            	return (cache != null) ? cache.capture(url, source, client.getETag(), client.getLastModified()) : source;
+            }, properties);
+            
+            // Acknowledges the request only once the broker confirmed the response, rejects it otherwise
+            RabbitMQClient.awaitConfirmation(confirmation);
+    	
+    	} catch (IOException e) {
+    		logger.error(e.getMessage());
+    		throw e;
+    	} catch (Exception e) {
+    		logger.error(e.getMessage());
+    	}            	
+    }
+    
+	/**
+	 * Handles a request for retrieving data from a web service without waiting for the data: the request is sent with the 
+	 * non-blocking HTTP client, and the response is published as the data arrives, by the threads of a reply dispatcher
+	 * rather than the I/O threads of the HTTP client (see WebServiceClient#getAsync).
+	 * I/O errors (download or publishing of the response) complete the future exceptionally so that the delivery gets rejected.
+	 */
+    @Override
+    public CompletableFuture<Void> handleDeliveryAsync(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+    	
+    	try {
+    		String url = getRequestedUrl(properties, body);
+    		trustSelfSignedCertificate(url);
+        	
+            String returnRoutingKey = getReturnRoutingKey(envelope);
+            
+            // Answers from the cache unless a recomputation is requested: the content is in memory, so there is nothing to wait for
+            RabbitMQReplySource cached = getCachedResponse(url, envelope);
+            if (cached != null)
+            	return sendMessage(this.rabbitmqExchangeName, returnRoutingKey, null, () -> cached, properties);
+            
+            // Identical requests in flight share the same download
+            CompletableFuture<Void> confirmation = this.rabbitmqClient.sendReplyAsync(this.rabbitmqExchangeName, returnRoutingKey, properties, url, 
+            		(receiver) -> fetchAsync(url, true, receiver));
+            
+            confirmation.whenComplete((confirmed, error) -> {
+            	if (error != null)
+            		logger.error("[handleDeliveryAsync] Message to routing key '" + returnRoutingKey + "' not sent: " + error.getMessage());
+            	else
+            		logger.info("[handleDeliveryAsync] Sent message to routing key '" + returnRoutingKey + "'");
+            });
+            return confirmation;
+    	
+    	} catch (IOException e) {
+    		logger.error(e.getMessage());
+    		CompletableFuture<Void> failed = new CompletableFuture<Void>();
+    		failed.completeExceptionally(e);
+    		return failed;
+    	} catch (Exception e) {
+    		logger.error(e.getMessage());
+    		return CompletableFuture.completedFuture(null);
+    	}
+    }
+    
+    /**
+     * Downloads the response to a URL with the non-blocking HTTP client, pushing the content to a receiver as it arrives
+     * 
+     * @param url: the URL requested
+     * @param conditional: true to revalidate the response cached, if any, instead of downloading it again
+     * @param receiver: the receiver of the content
+     */
+    private void fetchAsync(String url, boolean conditional, RabbitMQReplyReceiver receiver) {
+    	final WebServiceResponseCache cache = responseCache;
+    	String eTag = (cache != null && conditional) ? cache.getETag(url) : null;
+    	String lastModified = (cache != null && conditional) ? cache.getLastModified(url) : null;
+    	
+    	logger.debug("Downloading content from " + url);
+    	WebServiceClient.getAsync(url, eTag, lastModified, new WebServiceClient.AsyncResponseHandler() {
+    		
+    		@Override
+    		public RabbitMQReplyReceiver onResponse(WebServiceClient response) throws IOException {
+    			if (response.isNotModified()) {
+    				RabbitMQReplySource revalidated = cache.revalidate(url);
+    				if (revalidated != null) {
+    					logger.debug("Answering from the cache, not modified since last download: " + cache);
+    					revalidated.transferTo(receiver);
+    				}
+    				else
+    					fetchAsync(url, false, receiver);
+    				return null;
+    			}
+    			if (response.getStatusCode() >= 400)
+    				throw new IOException("Server returned HTTP response code: " + response.getStatusCode() + " for URL: " + url);
+    			
+    			RabbitMQReplyReceiver target = (cache != null) ? cache.capture(url, receiver, response.getETag(), response.getLastModified()) : receiver;
+    			target.start(new RabbitMQReplySource(null, response.getContentType(), response.getContentLength(), getResponseHeaders(response)));
+    			return target;
+    		}
+    		
+    		@Override
+    		public void onFailure(Exception cause) {
+    			receiver.fail(cause);
+    		}
+    	});
+    }
+    
+    /**
+     * Extracts the URL requested from a received message
+     * 
+     * @param properties: the properties of the message, with the URL as 'parameter' header
+     * @param body: the body of the message
+     * @return the URL requested
+     * 
+     * @throws UnsupportedEncodingException
+     */
+    private String getRequestedUrl(AMQP.BasicProperties properties, byte[] body) throws UnsupportedEncodingException {
     	// Extracts content of the received message body
     	String message = new String(body, "UTF-8");
     	logger.info("[handleDelivery] Received:'" + message + "'");
@@ -65,47 +219,81 @@ public class WebServiceRMQConsumer extends DefaultConsumer {
     	//String host = getStringFromHeader(receivedHeader.get("host"));
     	//String user = getStringFromHeader(receivedHeader.get("user"));
     	//String password = getStringFromHeader(receivedHeader.get("password"));
-    	String url = getStringFromHeader(receivedHeader.get("parameter"));
-    	
-    	byte[] data = null;
-    	try {
-    		final Boolean trustSelfSigned = (System.getenv("SSL_AUTOTRUST_SELFSIGNED") != null) ? Boolean.valueOf(System.getenv("SSL_AUTOTRUST_SELFSIGNED")) : DEFAULT_SSL_AUTOTRUST_SELFSIGNED;
-    		
-    		// Trusts self-signed certificate
-    		String host = getHostName(url);
-    		if (url.startsWith("https") && trustSelfSigned == true) {
-        		HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> hostname.equals(host));
-        		InstallCert.installCert(host);
-        	}
-        	
-        	WebServiceClient client = new WebServiceClient(url);
-        	
-    		// Retrieves file content with MyTardis API
-        	logger.debug("Downloading content from " + host);
-    		data = client.readBytes();
-    		logger.debug("Content downloaded.");
-            
-            byte[] encodedData = Base64.encodeBase64(data);
-            
-            // Retrieving headers (size and content type)
-    		Map<String, Object> headers = new HashMap<String, Object>();
-    		headers.put("content-length", client.getContentLength());
-    		String contentType = client.getContentType();
-    		headers.put("content-type", contentType);
-    		
-   		 	// Trims the routing key to keep only the routing key to return
-            String returnRoutingKey = envelope.getRoutingKey()
-            		.replaceAll("estored.", "")
-            		.replaceAll("ds.", "")
-            		.replaceAll(".recompute", "");
-        	
-            // Sends response back to new routing key, with the meta-data as message headers and the file content as message body
-            sendMessage(this.rabbitmqExchangeName, returnRoutingKey, contentType, encodedData, headers);
-    	
-    	} catch (Exception e) {
-    		logger.error(e.getMessage());
-    	}            	
+    	return getStringFromHeader(receivedHeader.get("parameter"));
     }
+    
+    /**
+     * Trusts the self-signed certificate of the host of a URL, if enabled
+     * 
+     * @param url: the URL requested
+     * 
+     * @throws Exception: if the certificate could not be installed
+     */
+    private void trustSelfSignedCertificate(String url) throws Exception {
+		final Boolean trustSelfSigned = (System.getenv("SSL_AUTOTRUST_SELFSIGNED") != null) ? Boolean.valueOf(System.getenv("SSL_AUTOTRUST_SELFSIGNED")) : DEFAULT_SSL_AUTOTRUST_SELFSIGNED;
+		
+		// Trusts self-signed certificate
+		String host = getHostName(url);
+		if (url.startsWith("https") && trustSelfSigned == true) {
+    		InstallCert.installCert(host);
+    	}
+    }
+    
+    /**
+     * Trims the routing key of a request to keep only the routing key to return
+     * 
+     * @param envelope: the envelope of the request
+     * @return the routing key to send the response to
+     */
+    private String getReturnRoutingKey(Envelope envelope) {
+        return envelope.getRoutingKey()
+        		.replaceAll("estored.", "")
+        		.replaceAll("ds.", "")
+        		.replaceAll(".recompute", "");
+    }
+    
+    /**
+     * Retrieves the cached response to a URL, unless a recomputation is requested, in which case the cached response is dropped
+     * 
+     * @param url: the URL requested
+     * @param envelope: the envelope of the request
+     * @return the cached response, or null if the response has to be downloaded
+     */
+    private RabbitMQReplySource getCachedResponse(String url, Envelope envelope) {
+    	final WebServiceResponseCache cache = responseCache;
+    	if (cache == null)
+    		return null;
+    	if (envelope.getRoutingKey().contains(".recompute")) {
+    		cache.invalidate(url);
+    		return null;
+    	}
+    	RabbitMQReplySource cached = cache.get(url);
+    	if (cached != null)
+    		logger.debug("Answering from the cache: " + cache);
+    	return cached;
+    }
+    
+    /**
+     * Builds the headers of the response to send, from the response of the web service
+     * 
+     * @param client: the response of the web service
+     * @return the map of headers to be sent along with the response (size and content type)
+     */
+    private Map<String, Object> getResponseHeaders(WebServiceClient client) {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put("content-length", client.getContentLength());
+		headers.put("content-type", client.getContentType());
+		return headers;
+    }
+	
+	/**
+	 * Sets the cache of the web service responses, shared by all the consumers
+	 * 
+	 * @param cache: the cache of the responses, or null not to cache responses
+	 */
+	public static void setResponseCache(WebServiceResponseCache cache) {
+		responseCache = cache;
+	}
 	
     public String getHostName(String url) throws URISyntaxException {
         URI uri = new URI(url);
@@ -132,31 +320,31 @@ public class WebServiceRMQConsumer extends DefaultConsumer {
 	}
 	
 	/**
-	 * Sends a message to the given routing key using the given content type, message body, and message headers
+	 * Sends a message to the given routing key, with the content, content type and headers retrieved from the given source.
+	 * The content is published in chunks as soon as it is read (see RabbitMQChunkedReplyStream), on pooled channels, 
+	 * so this can be called concurrently by several workers. Identical requests in flight share a single retrieval of the content.
 	 * 
 	 * @param exchangeName: the RabbitMQ exhange to which send the message to
 	 * @param routingKey: the routing key to send to message to
-	 * @param contentType: content-type of the message to send
-	 * @param message: body of the message to send
-	 * @param headers: headers of the message to send
+	 * @param requestKey: key identifying identical requests, or null if the content cannot be shared with other requests
+	 * @param sourceOpener: opens the source of the content of the message to send
+	 * @param requestProperties: properties of the request, giving the correlation id and accepted encodings of the message
+	 * @return a future completed once all the chunks are confirmed by the broker (see RabbitMQClient#publish)
+	 * 
+	 * @throws Exception: if the content could not be retrieved or the message could not be published
 	 */
-	public void sendMessage(String exchangeName, String routingKey, String contentType, byte[] message, Map<String, Object> headers) {
+	public CompletableFuture<Void> sendMessage(String exchangeName, String routingKey, String requestKey, 
+			RabbitMQReplySource.Opener sourceOpener, AMQP.BasicProperties requestProperties) throws Exception {
     	
-        try {
-        	this.getChannel().exchangeDeclare(exchangeName, RabbitMQClient.EXCHANGE_TYPE_TOPIC, true);
-        	
-        	this.getChannel().basicPublish(exchangeName, routingKey, new AMQP.BasicProperties.Builder()
-	                .contentType(contentType)
-	                .headers(headers)
-	                .build(), 
-	                message);
-	        
-	        logger.info("[handleDelivery] Sent message to routing key '" + routingKey + "'");
-	        
-	    } catch (FileNotFoundException e) {
-	  		e.printStackTrace();
-	  	} catch (IOException e) {
-			e.printStackTrace();
-		}
+    	CompletableFuture<Void> confirmation = this.rabbitmqClient.sendReply(exchangeName, routingKey, requestProperties, requestKey, sourceOpener);
+        
+        logger.info("[handleDelivery] Sent message to routing key '" + routingKey + "'");
+        
+        // Reports the responses lost by the broker instead of dropping them silently
+        confirmation.whenComplete((confirmed, error) -> {
+        	if (error != null)
+        		logger.error("[handleDelivery] Message to routing key '" + routingKey + "' not confirmed: " + error.getMessage());
+        });
+        return confirmation;
     }
 }
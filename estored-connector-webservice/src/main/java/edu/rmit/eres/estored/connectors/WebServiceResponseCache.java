@@ -0,0 +1,409 @@
+package edu.rmit.eres.estored.connectors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.rmit.eres.amqpclient.RabbitMQReplyReceiver;
+import edu.rmit.eres.amqpclient.RabbitMQReplySource;
+
+/**
+ * In-memory cache of the responses of web services, by URL, so that repeated requests are answered without
+ * downloading the same content again. The cache is bounded by the total size of the contents it holds:
+ * the least recently used responses are evicted first, and each response expires after the time-to-live.
+ *
+ * Responses are cached while they are streamed to the first requester (see #capture), so caching never delays
+ * a reply. Responses larger than an eighth of the cache are not cached, so that a single large download
+ * cannot flush the whole cache.
+ *
+ * Expired responses with an ETag or Last-Modified date are kept until evicted, so that they can be revalidated
+ * with a conditional request instead of being downloaded again (see #revalidate).
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.estored.connectors.WebServiceRMQConsumer
+ */
+public class WebServiceResponseCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(WebServiceResponseCache.class);
+
+	/**
+	 * Default maximum total size of the cached contents, in bytes
+	 */
+	public final static long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+	/**
+	 * Default time-to-live of the cached responses, in seconds
+	 */
+	public final static long DEFAULT_TTL = 3600;
+
+	/**
+	 * Cached responses by URL, from the least to the most recently used
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final long maxSize;
+
+	private final long maxEntrySize;
+
+	private final long ttlMillis;
+
+	/**
+	 * Total size of the cached contents, in bytes
+	 */
+	private long size = 0;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	private long evictionCount = 0;
+
+	private long revalidationCount = 0;
+
+	/**
+	 * Constructor of the cache
+	 *
+	 * @param maxSize: the maximum total size of the cached contents, in bytes
+	 * @param ttl: the time-to-live of the cached responses, in seconds
+	 */
+	public WebServiceResponseCache(long maxSize, long ttl) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxSize / 8;
+		this.ttlMillis = ttl * 1000;
+	}
+
+	/**
+	 * Retrieves the cached response to a URL
+	 *
+	 * @param url: the URL requested
+	 * @return the cached response, or null if the URL is not cached or its response has expired
+	 */
+	public synchronized RabbitMQReplySource get(String url) {
+		Entry entry = this.entries.get(url);
+		if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+			// Kept for revalidation if it can be
+			if (entry.eTag == null && entry.lastModified == null)
+				this.remove(url);
+			entry = null;
+		}
+		if (entry == null) {
+			this.missCount++;
+			return null;
+		}
+		this.hitCount++;
+		return entry.toSource();
+	}
+
+	/**
+	 * Renews a cached response after the web service confirmed that it has not changed (304 Not Modified)
+	 *
+	 * @param url: the URL requested
+	 * @return the cached response, or null if it has been evicted in the meantime
+	 */
+	public synchronized RabbitMQReplySource revalidate(String url) {
+		Entry entry = this.entries.get(url);
+		if (entry == null)
+			return null;
+		entry.expiresAt = System.currentTimeMillis() + this.ttlMillis;
+		this.revalidationCount++;
+		return entry.toSource();
+	}
+
+	/**
+	 * Getter for the ETag of the cached response to a URL, to revalidate it
+	 *
+	 * @param url: the URL requested
+	 * @return the ETag of the cached response, or null if the URL is not cached or had no ETag
+	 */
+	public synchronized String getETag(String url) {
+		Entry entry = this.entries.get(url);
+		return (entry != null) ? entry.eTag : null;
+	}
+
+	/**
+	 * Getter for the Last-Modified date of the cached response to a URL, to revalidate it
+	 *
+	 * @param url: the URL requested
+	 * @return the Last-Modified date of the cached response, or null if the URL is not cached or had no Last-Modified date
+	 */
+	public synchronized String getLastModified(String url) {
+		Entry entry = this.entries.get(url);
+		return (entry != null) ? entry.lastModified : null;
+	}
+
+	/**
+	 * Caches the response to a URL, evicting the least recently used responses if the cache is full
+	 *
+	 * @param url: the URL requested
+	 * @param content: the content of the response
+	 * @param contentType: content-type of the response
+	 * @param headers: headers sent with the response
+	 * @param eTag: the ETag of the response, or null
+	 * @param lastModified: the Last-Modified date of the response, or null
+	 */
+	public synchronized void put(String url, byte[] content, String contentType, Map<String, Object> headers, String eTag, String lastModified) {
+		if (content.length > this.maxEntrySize)
+			return;
+		this.remove(url);
+		this.entries.put(url, new Entry(content, contentType, headers, eTag, lastModified, System.currentTimeMillis() + this.ttlMillis));
+		this.size += content.length;
+
+		Iterator<Map.Entry<String, Entry>> eldest = this.entries.entrySet().iterator();
+		while (this.size > this.maxSize && eldest.hasNext()) {
+			this.size -= eldest.next().getValue().content.length;
+			eldest.remove();
+			this.evictionCount++;
+		}
+	}
+
+	/**
+	 * Removes the cached response to a URL, if any, so that it is downloaded again on the next request
+	 *
+	 * @param url: the URL requested
+	 */
+	public synchronized void invalidate(String url) {
+		this.remove(url);
+	}
+
+	/**
+	 * Wraps the source of a response so that its content gets cached once it has been read entirely
+	 *
+	 * @param url: the URL requested
+	 * @param source: the source of the response, as downloaded from the web service
+	 * @param eTag: the ETag of the response, or null
+	 * @param lastModified: the Last-Modified date of the response, or null
+	 * @return the source to read the response from instead
+	 */
+	public RabbitMQReplySource capture(String url, RabbitMQReplySource source, String eTag, String lastModified) {
+		if (source.getContentLength() > this.maxEntrySize)
+			return source;
+		return new RabbitMQReplySource(new CapturingInputStream(url, source, eTag, lastModified), source.getContentType(), source.getContentLength(), source.getHeaders());
+	}
+
+	/**
+	 * Wraps the receiver of a response pushed by the web service, so that its content gets cached once it has been received entirely
+	 *
+	 * @param url: the URL requested
+	 * @param receiver: the receiver of the response
+	 * @param eTag: the ETag of the response, or null
+	 * @param lastModified: the Last-Modified date of the response, or null
+	 * @return the receiver to push the response to instead
+	 */
+	public RabbitMQReplyReceiver capture(String url, RabbitMQReplyReceiver receiver, String eTag, String lastModified) {
+		return new CapturingReceiver(url, receiver, eTag, lastModified);
+	}
+
+	/**
+	 * Getter for the number of requests answered from the cache
+	 * @return the number of requests answered from the cache
+	 */
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * Getter for the number of requests not found in the cache
+	 * @return the number of requests not found in the cache, including the expired responses
+	 */
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Getter for the number of responses evicted to make room for others
+	 * @return the number of responses evicted
+	 */
+	public synchronized long getEvictionCount() {
+		return this.evictionCount;
+	}
+
+	/**
+	 * Getter for the number of expired responses renewed after the web service confirmed that they had not changed
+	 * @return the number of responses revalidated
+	 */
+	public synchronized long getRevalidationCount() {
+		return this.revalidationCount;
+	}
+
+	/**
+	 * Getter for the total size of the cached contents
+	 * @return the total size of the cached contents, in bytes
+	 */
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.entries.size() + " responses cached (" + this.size + "/" + this.maxSize + " bytes), "
+				+ this.hitCount + " hits, " + this.missCount + " misses, " + this.revalidationCount + " revalidations, " + this.evictionCount + " evictions";
+	}
+
+	private void remove(String url) {
+		Entry removed = this.entries.remove(url);
+		if (removed != null)
+			this.size -= removed.content.length;
+	}
+
+	/**
+	 * A cached response
+	 */
+	private static class Entry {
+
+		final byte[] content;
+
+		final String contentType;
+
+		final Map<String, Object> headers;
+
+		final String eTag;
+
+		final String lastModified;
+
+		/**
+		 * Time at which the response expires, in milliseconds since the epoch
+		 */
+		long expiresAt;
+
+		Entry(byte[] content, String contentType, Map<String, Object> headers, String eTag, String lastModified, long expiresAt) {
+			this.content = content;
+			this.contentType = contentType;
+			this.headers = new HashMap<String, Object>(headers);
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+			this.expiresAt = expiresAt;
+		}
+
+		RabbitMQReplySource toSource() {
+			return new RabbitMQReplySource(new ByteArrayInputStream(this.content), this.contentType, this.content.length,
+					new HashMap<String, Object>(this.headers));
+		}
+	}
+
+	/**
+	 * Copy of the content of a response, cached once the end of the content is reached.
+	 * The copy is dropped as soon as the content turns out to be too large to be cached.
+	 */
+	private class Capture {
+
+		private final String url;
+
+		private final String eTag;
+
+		private final String lastModified;
+
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		Capture(String url, String eTag, String lastModified) {
+			this.url = url;
+			this.eTag = eTag;
+			this.lastModified = lastModified;
+		}
+
+		void copy(byte[] bytes, int offset, int length) {
+			if (this.copy == null)
+				return;
+			if (this.copy.size() + length > WebServiceResponseCache.this.maxEntrySize)
+				this.copy = null;
+			else
+				this.copy.write(bytes, offset, length);
+		}
+
+		void complete(RabbitMQReplySource source) {
+			if (this.copy == null)
+				return;
+			WebServiceResponseCache.this.put(this.url, this.copy.toByteArray(), source.getContentType(), source.getHeaders(), this.eTag, this.lastModified);
+			logger.debug("Cached the response of " + this.url);
+			this.copy = null;
+		}
+	}
+
+	/**
+	 * Stream keeping a copy of the content read, cached once the end of the content is reached
+	 */
+	private class CapturingInputStream extends FilterInputStream {
+
+		private final RabbitMQReplySource source;
+
+		private final Capture capture;
+
+		CapturingInputStream(String url, RabbitMQReplySource source, String eTag, String lastModified) {
+			super(source.getContent());
+			this.source = source;
+			this.capture = new Capture(url, eTag, lastModified);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (read >= 0)
+				this.capture.copy(new byte[] { (byte) read }, 0, 1);
+			else
+				this.capture.complete(this.source);
+			return read;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int read = super.read(bytes, offset, length);
+			if (read > 0)
+				this.capture.copy(bytes, offset, read);
+			else if (read < 0)
+				this.capture.complete(this.source);
+			return read;
+		}
+	}
+
+	/**
+	 * Receiver keeping a copy of the content pushed to another receiver, cached once the content is finished
+	 */
+	private class CapturingReceiver implements RabbitMQReplyReceiver {
+
+		private final RabbitMQReplyReceiver receiver;
+
+		private final Capture capture;
+
+		private RabbitMQReplySource source = null;
+
+		CapturingReceiver(String url, RabbitMQReplyReceiver receiver, String eTag, String lastModified) {
+			this.receiver = receiver;
+			this.capture = new Capture(url, eTag, lastModified);
+		}
+
+		@Override
+		public void start(RabbitMQReplySource source) throws IOException {
+			this.source = source;
+			if (source.getContentLength() > WebServiceResponseCache.this.maxEntrySize)
+				this.capture.copy = null;
+			this.receiver.start(source);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			this.capture.copy(bytes, offset, length);
+			this.receiver.write(bytes, offset, length);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.capture.complete(this.source);
+			this.receiver.finish();
+		}
+
+		@Override
+		public void fail(Exception cause) {
+			this.capture.copy = null;
+			this.receiver.fail(cause);
+		}
+	}
+}
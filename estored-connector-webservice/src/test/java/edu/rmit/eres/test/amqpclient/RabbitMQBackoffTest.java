@@ -0,0 +1,30 @@
+package edu.rmit.eres.test.amqpclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.rmit.eres.amqpclient.RabbitMQBackoff;
+
+public class RabbitMQBackoffTest {
+	
+	@Test
+    public void delayCeilingDoublesUpToMaxDelayTest() {
+		RabbitMQBackoff backoff = new RabbitMQBackoff(1000, 30000);
+		
+		Assert.assertEquals(1000, backoff.getDelayCeiling(1));
+		Assert.assertEquals(2000, backoff.getDelayCeiling(2));
+		Assert.assertEquals(16000, backoff.getDelayCeiling(5));
+		Assert.assertEquals(30000, backoff.getDelayCeiling(6));
+		Assert.assertEquals(30000, backoff.getDelayCeiling(1000));
+	}
+	
+	@Test
+    public void delayIsJitteredWithinCeilingTest() {
+		RabbitMQBackoff backoff = new RabbitMQBackoff(1000, 30000);
+		
+		for (int attempt = 1; attempt < 100; attempt++) {
+			long delay = backoff.nextDelay(attempt);
+			Assert.assertTrue(delay >= 0 && delay <= backoff.getDelayCeiling(attempt));
+		}
+	}
+}
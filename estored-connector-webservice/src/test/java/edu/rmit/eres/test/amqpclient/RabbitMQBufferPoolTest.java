@@ -0,0 +1,40 @@
+package edu.rmit.eres.test.amqpclient;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.rmit.eres.amqpclient.RabbitMQBufferPool;
+
+public class RabbitMQBufferPoolTest {
+
+	@Test
+    public void releasedBuffersAreReusedUpToTheRetainedSizeTest() {
+		RabbitMQBufferPool pool = new RabbitMQBufferPool(100 * 1024);
+		byte[] first = pool.lease(64 * 1024);
+		pool.release(first);
+		Assert.assertSame(first, pool.lease(64 * 1024));
+
+		// Only one of the two fits in the retained size
+		byte[] second = pool.lease(64 * 1024);
+		pool.release(first);
+		pool.release(second);
+		Assert.assertEquals(64 * 1024, pool.getRetainedSize());
+		Assert.assertEquals(2, pool.getAllocationCount());
+	}
+
+	@Test
+    public void buffersNotReleasedAreReportedAsLeaksTest() throws InterruptedException {
+		RabbitMQBufferPool pool = new RabbitMQBufferPool(1024 * 1024);
+		pool.setLeakDetection(true);
+		pool.release(pool.lease(64 * 1024));
+		pool.lease(64 * 1024);
+
+		int leakCount = 0;
+		for (int attempt = 0; attempt < 20 && leakCount == 0; attempt++) {
+			System.gc();
+			Thread.sleep(50);
+			leakCount = pool.reportLeaks();
+		}
+		Assert.assertEquals(1, leakCount);
+	}
+}
@@ -0,0 +1,131 @@
+package edu.rmit.eres.test.amqpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP;
+
+import edu.rmit.eres.amqpclient.RabbitMQChunkedReplyStream;
+import edu.rmit.eres.amqpclient.RabbitMQClient;
+
+public class RabbitMQChunkedReplyStreamTest {
+
+	/**
+	 * Client keeping the published messages instead of sending them to a broker
+	 */
+	private static class RecordingClient extends RabbitMQClient {
+
+		List<AMQP.BasicProperties> properties = new ArrayList<AMQP.BasicProperties>();
+		List<byte[]> bodies = new ArrayList<byte[]>();
+
+		RecordingClient() {
+			super("localhost", 5671, "tlsv1.2", "/", "guest", "guest");
+		}
+
+		@Override
+		public CompletableFuture<Void> publish(String exchangeName, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+			this.properties.add(properties);
+			this.bodies.add(Arrays.copyOf(body, body.length));
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	@Test
+    public void largeReplyIsPublishedInFlaggedChunksTest() throws IOException {
+		RecordingClient client = new RecordingClient();
+		byte[] content = new byte[10];
+		for (int i = 0; i < content.length; i++)
+			content[i] = (byte) i;
+
+		RabbitMQChunkedReplyStream reply = new RabbitMQChunkedReplyStream(client, "amq.topic", "examples.plain", "text/plain", null, "42", RabbitMQChunkedReplyStream.ENCODING_BASE64,
+				RabbitMQChunkedReplyStream.ENCODING_IDENTITY, 4, -1);
+		reply.writeFrom(new ByteArrayInputStream(content));
+		reply.close();
+
+		// Chunk size rounded down to 3 bytes: 4 chunks, the total being only known on the last one
+		Assert.assertEquals(4, client.bodies.size());
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		for (int i = 0; i < client.bodies.size(); i++) {
+			AMQP.BasicProperties properties = client.properties.get(i);
+			Assert.assertEquals("42", properties.getCorrelationId());
+			Assert.assertEquals(i + 1, properties.getHeaders().get(RabbitMQChunkedReplyStream.HEADER_CHUNK_SEQUENCE));
+			Assert.assertEquals(i == 3, properties.getHeaders().get(RabbitMQChunkedReplyStream.HEADER_CHUNK_LAST));
+			Assert.assertEquals(i == 3 ? 4 : -1, properties.getHeaders().get(RabbitMQChunkedReplyStream.HEADER_CHUNK_COUNT));
+			received.write(Base64.decodeBase64(client.bodies.get(i)));
+		}
+		Assert.assertArrayEquals(content, received.toByteArray());
+	}
+
+	@Test
+    public void rawReplyOfExactChunkSizeIsASingleLastChunkTest() throws IOException {
+		RecordingClient client = new RecordingClient();
+
+		RabbitMQChunkedReplyStream reply = new RabbitMQChunkedReplyStream(client, "amq.topic", "examples.plain", "text/plain", null, "42", RabbitMQChunkedReplyStream.ENCODING_RAW,
+				RabbitMQChunkedReplyStream.ENCODING_IDENTITY, 6, 6);
+		reply.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+		reply.close();
+
+		Assert.assertEquals(1, client.bodies.size());
+		Assert.assertEquals(true, client.properties.get(0).getHeaders().get(RabbitMQChunkedReplyStream.HEADER_CHUNK_LAST));
+		Assert.assertEquals(1, client.properties.get(0).getHeaders().get(RabbitMQChunkedReplyStream.HEADER_CHUNK_COUNT));
+		Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_RAW, client.properties.get(0).getHeaders().get(RabbitMQChunkedReplyStream.HEADER_CONTENT_TRANSFER_ENCODING));
+		Assert.assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, client.bodies.get(0));
+	}
+
+	@Test
+    public void rawEncodingOnlyWhenAcceptedTest() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_BASE64, RabbitMQChunkedReplyStream.getTransferEncoding(
+				new AMQP.BasicProperties.Builder().headers(headers).build()));
+
+		headers.put(RabbitMQChunkedReplyStream.HEADER_ACCEPT_ENCODING, "base64, RAW");
+		Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_RAW, RabbitMQChunkedReplyStream.getTransferEncoding(
+				new AMQP.BasicProperties.Builder().headers(headers).build()));
+	}
+
+	@Test
+    public void compressedReplyIsGzippedBeforeChunkingTest() throws IOException {
+		RecordingClient client = new RecordingClient();
+		byte[] content = new byte[100000];
+		Arrays.fill(content, (byte) 'a');
+
+		RabbitMQChunkedReplyStream reply = new RabbitMQChunkedReplyStream(client, "amq.topic", "examples.csv", "text/csv", null, "42", RabbitMQChunkedReplyStream.ENCODING_RAW,
+				RabbitMQChunkedReplyStream.ENCODING_GZIP, 30, content.length);
+		reply.writeFrom(new ByteArrayInputStream(content));
+		reply.close();
+
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		for (int i = 0; i < client.bodies.size(); i++) {
+			Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_GZIP, client.properties.get(i).getContentEncoding());
+			Assert.assertEquals(i == client.bodies.size() - 1 ? client.bodies.size() : -1, client.properties.get(i).getHeaders().get(RabbitMQChunkedReplyStream.HEADER_CHUNK_COUNT));
+			received.write(client.bodies.get(i));
+		}
+		Assert.assertTrue(received.size() < content.length / 10);
+		Assert.assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(received.toByteArray()))));
+	}
+
+	@Test
+    public void compressionNegotiationTest() {
+		Map<String, Object> headers = new HashMap<String, Object>();
+		headers.put(RabbitMQChunkedReplyStream.HEADER_ACCEPT_ENCODING, "raw, deflate, gzip");
+		AMQP.BasicProperties request = new AMQP.BasicProperties.Builder().headers(headers).build();
+
+		Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_DEFLATE, RabbitMQChunkedReplyStream.getContentEncoding(request, "application/json", 5000, 1024));
+		Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_IDENTITY, RabbitMQChunkedReplyStream.getContentEncoding(request, "application/json", 100, 1024));
+		Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_IDENTITY, RabbitMQChunkedReplyStream.getContentEncoding(request, "image/jpeg", 5000, 1024));
+		Assert.assertEquals(RabbitMQChunkedReplyStream.ENCODING_IDENTITY, RabbitMQChunkedReplyStream.getContentEncoding(request, "application/json", 5000, -1));
+	}
+}
@@ -0,0 +1,54 @@
+package edu.rmit.eres.test.amqpclient;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.rmit.eres.amqpclient.RabbitMQConfirmTracker;
+
+public class RabbitMQConfirmTrackerTest {
+	
+	private RabbitMQConfirmTracker tracker;
+	
+    @Before
+    public void setUp() {
+    	this.tracker = new RabbitMQConfirmTracker();
+    }
+    
+	@Test
+    public void multipleAckConfirmsAllPreviousMessagesTest() {
+		CompletableFuture<Void> first = tracker.register(1);
+		CompletableFuture<Void> second = tracker.register(2);
+		CompletableFuture<Void> third = tracker.register(3);
+		
+		tracker.handleAck(2, true);
+		
+		Assert.assertTrue(first.isDone() && !first.isCompletedExceptionally());
+		Assert.assertTrue(second.isDone() && !second.isCompletedExceptionally());
+		Assert.assertFalse(third.isDone());
+		Assert.assertEquals(1, tracker.getOutstandingCount());
+	}
+	
+	@Test
+    public void nackFailsOnlyTheRejectedMessageTest() {
+		CompletableFuture<Void> first = tracker.register(1);
+		CompletableFuture<Void> second = tracker.register(2);
+		
+		tracker.handleNack(2, false);
+		
+		Assert.assertFalse(first.isDone());
+		Assert.assertTrue(second.isCompletedExceptionally());
+	}
+	
+	@Test
+    public void shutdownFailsOutstandingMessagesTest() {
+		CompletableFuture<Void> first = tracker.register(1);
+		
+		tracker.shutdownCompleted(null);
+		
+		Assert.assertTrue(first.isCompletedExceptionally());
+		Assert.assertEquals(0, tracker.getOutstandingCount());
+	}
+}
@@ -0,0 +1,125 @@
+package edu.rmit.eres.test.amqpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.rabbitmq.client.AMQP;
+
+import edu.rmit.eres.amqpclient.RabbitMQChunkedReplyStream;
+import edu.rmit.eres.amqpclient.RabbitMQClient;
+import edu.rmit.eres.amqpclient.RabbitMQReplyCoalescer;
+import edu.rmit.eres.amqpclient.RabbitMQReplyReceiver;
+import edu.rmit.eres.amqpclient.RabbitMQReplySource;
+
+public class RabbitMQReplyCoalescerTest {
+
+	/**
+	 * Client keeping the routing keys of the published messages instead of sending them to a broker
+	 */
+	private static class RecordingClient extends RabbitMQClient {
+
+		List<String> routingKeys = new CopyOnWriteArrayList<String>();
+
+		RecordingClient() {
+			super("localhost", 5671, "tlsv1.2", "/", "guest", "guest");
+		}
+
+		@Override
+		public CompletableFuture<Void> publish(String exchangeName, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+			this.routingKeys.add(routingKey);
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	@Test
+    public void identicalRequestsShareASingleFetchTest() throws Exception {
+		RecordingClient client = new RecordingClient();
+		RabbitMQReplyCoalescer coalescer = new RabbitMQReplyCoalescer(RabbitMQReplyCoalescer.DEFAULT_REPLAY_LIMIT);
+		AtomicInteger fetches = new AtomicInteger();
+		CountDownLatch secondJoined = new CountDownLatch(1);
+
+		// The content is only delivered once the second request has joined the fetch
+		RabbitMQReplySource.Opener sourceOpener = () -> {
+			fetches.incrementAndGet();
+			InputStream content = new ByteArrayInputStream("Hello, World!".getBytes()) {
+				@Override
+				public synchronized int read(byte[] bytes, int offset, int length) {
+					try {
+						secondJoined.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return super.read(bytes, offset, length);
+				}
+			};
+			return new RabbitMQReplySource(content, "text/plain", 13, null);
+		};
+
+		CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+			try {
+				coalescer.reply("http://example.org/data", sourceOpener, (source) -> new RabbitMQChunkedReplyStream(client, "amq.topic", "first",
+						source.getContentType(), source.getHeaders(), "1", RabbitMQChunkedReplyStream.ENCODING_RAW, RabbitMQChunkedReplyStream.ENCODING_IDENTITY, 1024, -1));
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+		while (coalescer.getFlightCount() == 0 || fetches.get() == 0)
+			Thread.sleep(10);
+
+		coalescer.reply("http://example.org/data", sourceOpener, (source) -> {
+			secondJoined.countDown();
+			return new RabbitMQChunkedReplyStream(client, "amq.topic", "second",
+					source.getContentType(), source.getHeaders(), "2", RabbitMQChunkedReplyStream.ENCODING_RAW, RabbitMQChunkedReplyStream.ENCODING_IDENTITY, 1024, -1);
+		});
+		first.get(5, TimeUnit.SECONDS);
+
+		Assert.assertEquals(1, fetches.get());
+		Assert.assertTrue(client.routingKeys.contains("first"));
+		Assert.assertTrue(client.routingKeys.contains("second"));
+		Assert.assertEquals(0, coalescer.getFlightCount());
+	}
+
+	@Test(expected = IOException.class)
+    public void fetchFailureIsReportedTest() throws Exception {
+		RabbitMQReplyCoalescer coalescer = new RabbitMQReplyCoalescer(RabbitMQReplyCoalescer.DEFAULT_REPLAY_LIMIT);
+		coalescer.reply("http://example.org/data", () -> { throw new IOException("Not found"); }, (source) -> null);
+	}
+
+	@Test
+    public void contentPushedAsynchronouslyIsSharedTest() throws Exception {
+		RecordingClient client = new RecordingClient();
+		RabbitMQReplyCoalescer coalescer = new RabbitMQReplyCoalescer(RabbitMQReplyCoalescer.DEFAULT_REPLAY_LIMIT);
+		List<RabbitMQReplyReceiver> receivers = new CopyOnWriteArrayList<RabbitMQReplyReceiver>();
+
+		// The content is pushed later, as a non-blocking HTTP client would
+		RabbitMQReplySource.AsyncOpener sourceOpener = (receiver) -> receivers.add(receiver);
+		CompletableFuture<Void> first = coalescer.replyAsync("http://example.org/data", sourceOpener, (source) -> new RabbitMQChunkedReplyStream(client, "amq.topic", "first",
+				source.getContentType(), source.getHeaders(), "1", RabbitMQChunkedReplyStream.ENCODING_RAW, RabbitMQChunkedReplyStream.ENCODING_IDENTITY, 1024, -1));
+		CompletableFuture<Void> second = coalescer.replyAsync("http://example.org/data", sourceOpener, (source) -> new RabbitMQChunkedReplyStream(client, "amq.topic", "second",
+				source.getContentType(), source.getHeaders(), "2", RabbitMQChunkedReplyStream.ENCODING_RAW, RabbitMQChunkedReplyStream.ENCODING_IDENTITY, 1024, -1));
+		Assert.assertEquals(1, receivers.size());
+		Assert.assertFalse(first.isDone());
+
+		byte[] content = "Hello, World!".getBytes();
+		RabbitMQReplyReceiver receiver = receivers.get(0);
+		receiver.start(new RabbitMQReplySource(null, "text/plain", content.length, null));
+		receiver.write(content, 0, content.length);
+		receiver.finish();
+
+		first.get(5, TimeUnit.SECONDS);
+		second.get(5, TimeUnit.SECONDS);
+		Assert.assertTrue(client.routingKeys.contains("first"));
+		Assert.assertTrue(client.routingKeys.contains("second"));
+		Assert.assertEquals(0, coalescer.getFlightCount());
+	}
+}
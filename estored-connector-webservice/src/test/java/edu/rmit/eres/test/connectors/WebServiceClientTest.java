@@ -0,0 +1,234 @@
+package edu.rmit.eres.test.connectors;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import edu.rmit.eres.amqpclient.RabbitMQReplyReceiver;
+import edu.rmit.eres.amqpclient.RabbitMQReplySource;
+import edu.rmit.eres.estored.connectors.ResumableDownload;
+import edu.rmit.eres.estored.connectors.SegmentedDownload;
+import edu.rmit.eres.estored.connectors.WebServiceClient;
+
+public class WebServiceClientTest {
+
+	private HttpServer server;
+
+	private byte[] binary;
+
+	@Before
+	public void startServer() throws IOException {
+		// Every byte value, including sequences that are not valid UTF-8
+		this.binary = new byte[256 * 1024];
+		for (int i = 0; i < this.binary.length; i++)
+			this.binary[i] = (byte) (i * 31);
+
+		this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		this.server.createContext("/binary", (exchange) -> {
+			exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			exchange.sendResponseHeaders(200, this.binary.length);
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write(this.binary);
+			}
+		});
+		this.server.createContext("/chunked", (exchange) -> {
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=ISO-8859-1");
+			exchange.sendResponseHeaders(200, 0);
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write("d\u00e9j\u00e0 vu".getBytes("ISO-8859-1"));
+			}
+		});
+		this.server.createContext("/ranges", (exchange) -> {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			int first = 0;
+			int last = this.binary.length - 1;
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			if ("weak".equals(exchange.getRequestURI().getQuery()))
+				exchange.getResponseHeaders().set("ETag", "W/\"v1\"");
+			else
+				exchange.getResponseHeaders().set("Last-Modified", "Sun, 18 Oct 2026 00:00:00 GMT");
+			if (range != null) {
+				String[] bounds = range.substring("bytes=".length()).split("-");
+				first = Integer.parseInt(bounds[0]);
+				last = Integer.parseInt(bounds[1]);
+				exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + this.binary.length);
+			}
+			exchange.sendResponseHeaders((range != null) ? 206 : 200, last - first + 1);
+			try (OutputStream body = exchange.getResponseBody()) {
+				// A slow web service, so that the connections are held for a while
+				int block = "slow".equals(exchange.getRequestURI().getQuery()) ? 16 * 1024 : last - first + 1;
+				for (int position = first; position <= last; position += block) {
+					body.write(this.binary, position, Math.min(block, last - position + 1));
+					body.flush();
+					if (block < last - first + 1)
+						Thread.sleep(50);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (IOException e) {
+				// Aborted by the client once the first range is read
+			}
+		});
+		this.server.createContext("/interrupted", (exchange) -> {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+			exchange.getResponseHeaders().set("ETag", "\"v1\"");
+			if (range == null) {
+				// Connection reset in the middle of the content
+				exchange.sendResponseHeaders(200, this.binary.length);
+				exchange.getResponseBody().write(this.binary, 0, this.binary.length / 2);
+				exchange.getResponseBody().flush();
+				exchange.close();
+				return;
+			}
+			int first = Integer.parseInt(range.substring("bytes=".length()).split("-")[0]);
+			Assert.assertEquals("\"v1\"", exchange.getRequestHeaders().getFirst("If-Range"));
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + (this.binary.length - 1) + "/" + this.binary.length);
+			exchange.sendResponseHeaders(206, this.binary.length - first);
+			try (OutputStream body = exchange.getResponseBody()) {
+				body.write(this.binary, first, this.binary.length - first);
+			}
+		});
+		this.server.setExecutor(Executors.newCachedThreadPool());
+		this.server.start();
+	}
+
+	@After
+	public void stopServer() {
+		this.server.stop(0);
+		WebServiceClient.configureSegmentedDownloads(SegmentedDownload.DEFAULT_SEGMENT_COUNT, SegmentedDownload.DEFAULT_MIN_SEGMENT_SIZE);
+		WebServiceClient.configureResumableDownloads(ResumableDownload.DEFAULT_MAX_RETRIES);
+		WebServiceClient.configureHttpClient(WebServiceClient.DEFAULT_MAX_CONNECTIONS, WebServiceClient.DEFAULT_MAX_CONNECTIONS_PER_ROUTE, 
+				WebServiceClient.DEFAULT_CONNECT_TIMEOUT, WebServiceClient.DEFAULT_READ_TIMEOUT);
+	}
+
+	private String getUrl(String path) {
+		return "http://localhost:" + this.server.getAddress().getPort() + path;
+	}
+
+	@Test
+    public void binaryContentIsKeptIntactTest() throws IOException {
+		Assert.assertArrayEquals(this.binary, new WebServiceClient(this.getUrl("/binary")).readBytes());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Assert.assertEquals(this.binary.length, new WebServiceClient(this.getUrl("/binary")).transferTo(out));
+		Assert.assertArrayEquals(this.binary, out.toByteArray());
+	}
+
+	@Test
+    public void contentIsDownloadedAsParallelRangesTest() throws IOException {
+		WebServiceClient.configureSegmentedDownloads(4, 32 * 1024);
+		WebServiceClient client = new WebServiceClient(this.getUrl("/ranges"));
+		try (InputStream content = client.getInputStream()) {
+			Assert.assertTrue(content instanceof SegmentedDownload);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IOUtils.copy(content, out);
+			Assert.assertArrayEquals(this.binary, out.toByteArray());
+		}
+		
+		// Ranges that cannot be validated are not requested
+		try (InputStream content = new WebServiceClient(this.getUrl("/ranges?weak")).getInputStream()) {
+			Assert.assertFalse(content instanceof SegmentedDownload);
+			Assert.assertArrayEquals(this.binary, IOUtils.toByteArray(content));
+		}
+		
+		// Contents smaller than two ranges are downloaded as a single stream
+		WebServiceClient.configureSegmentedDownloads(4, this.binary.length);
+		Assert.assertArrayEquals(this.binary, new WebServiceClient(this.getUrl("/ranges")).readBytes());
+	}
+
+	@Test
+    public void rangesDoNotWaitForTheConnectionsOfTheDownloadsTest() throws Exception {
+		// More downloads at once than connections per host, each keeping a connection until its first range is read
+		WebServiceClient.configureHttpClient(8, 2, 5000, 10000);
+		WebServiceClient.configureSegmentedDownloads(4, 32 * 1024);
+		WebServiceClient.configureResumableDownloads(0);
+		ExecutorService downloads = Executors.newFixedThreadPool(5);
+		try {
+			List<Future<byte[]>> contents = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < 5; i++)
+				contents.add(downloads.submit(() -> new WebServiceClient(this.getUrl("/ranges?slow")).readBytes()));
+			for (Future<byte[]> content : contents)
+				Assert.assertArrayEquals(this.binary, content.get(30, TimeUnit.SECONDS));
+		} finally {
+			downloads.shutdownNow();
+		}
+	}
+
+	@Test
+    public void interruptedDownloadIsResumedFromTheLastByteReceivedTest() throws IOException {
+		WebServiceClient.configureSegmentedDownloads(1, SegmentedDownload.DEFAULT_MIN_SEGMENT_SIZE);
+		WebServiceClient client = new WebServiceClient(this.getUrl("/interrupted"));
+		try (InputStream content = client.getInputStream()) {
+			Assert.assertTrue(content instanceof ResumableDownload);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			IOUtils.copy(content, out);
+			Assert.assertArrayEquals(this.binary, out.toByteArray());
+			Assert.assertEquals(1, ((ResumableDownload) content).getRetryCount());
+		}
+	}
+
+	@Test
+    public void asyncContentIsWrittenOffTheIOThreadsTest() throws Exception {
+		CompletableFuture<byte[]> received = new CompletableFuture<byte[]>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WebServiceClient.getAsync(this.getUrl("/binary"), null, null, new WebServiceClient.AsyncResponseHandler() {
+			
+			@Override
+			public RabbitMQReplyReceiver onResponse(WebServiceClient response) {
+				return new RabbitMQReplyReceiver() {
+					
+					@Override
+					public void start(RabbitMQReplySource source) {
+					}
+					
+					@Override
+					public void write(byte[] bytes, int offset, int length) throws IOException {
+						// The receiver may block, as it is not called by the I/O threads of the HTTP client
+						if (!Thread.currentThread().getName().startsWith("estored-reply-dispatcher"))
+							throw new IOException("Written by " + Thread.currentThread().getName());
+						out.write(bytes, offset, length);
+					}
+					
+					@Override
+					public void finish() {
+						received.complete(out.toByteArray());
+					}
+					
+					@Override
+					public void fail(Exception cause) {
+						received.completeExceptionally(cause);
+					}
+				};
+			}
+			
+			@Override
+			public void onFailure(Exception cause) {
+				received.completeExceptionally(cause);
+			}
+		});
+		Assert.assertArrayEquals(this.binary, received.get(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+    public void contentOfUnknownLengthIsDecodedWithItsCharsetTest() throws IOException {
+		Assert.assertEquals("d\u00e9j\u00e0 vu", new WebServiceClient(this.getUrl("/chunked")).readString());
+	}
+}
@@ -0,0 +1,78 @@
+package edu.rmit.eres.test.connectors;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import edu.rmit.eres.amqpclient.RabbitMQReplySource;
+import edu.rmit.eres.estored.connectors.WebServiceResponseCache;
+
+public class WebServiceResponseCacheTest {
+
+	@Test
+    public void responseIsCachedOnceReadEntirelyTest() throws IOException {
+		WebServiceResponseCache cache = new WebServiceResponseCache(800, 60);
+		byte[] content = "Hello, World!".getBytes();
+
+		RabbitMQReplySource source = cache.capture("http://example.org/a",
+				new RabbitMQReplySource(new ByteArrayInputStream(content), "text/plain", -1, new HashMap<String, Object>()), "\"v1\"", null);
+		Assert.assertNull(cache.get("http://example.org/a"));
+		Assert.assertArrayEquals(content, IOUtils.toByteArray(source.getContent()));
+
+		RabbitMQReplySource cached = cache.get("http://example.org/a");
+		Assert.assertNotNull(cached);
+		Assert.assertEquals("text/plain", cached.getContentType());
+		Assert.assertArrayEquals(content, IOUtils.toByteArray(cached.getContent()));
+		Assert.assertEquals(1, cache.getHitCount());
+		Assert.assertEquals(1, cache.getMissCount());
+
+		cache.invalidate("http://example.org/a");
+		Assert.assertNull(cache.get("http://example.org/a"));
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+    public void leastRecentlyUsedResponsesAreEvictedTest() {
+		WebServiceResponseCache cache = new WebServiceResponseCache(800, 60);
+		cache.put("http://example.org/a", new byte[100], "text/plain", new HashMap<String, Object>(), null, null);
+		cache.put("http://example.org/b", new byte[100], "text/plain", new HashMap<String, Object>(), null, null);
+		cache.get("http://example.org/a");
+		for (int i = 0; i < 7; i++)
+			cache.put("http://example.org/" + i, new byte[100], "text/plain", new HashMap<String, Object>(), null, null);
+
+		Assert.assertNotNull(cache.get("http://example.org/a"));
+		Assert.assertNull(cache.get("http://example.org/b"));
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertEquals(800, cache.getSize());
+
+		// Larger than an eighth of the cache: not cached
+		cache.put("http://example.org/large", new byte[101], "text/plain", new HashMap<String, Object>(), null, null);
+		Assert.assertNull(cache.get("http://example.org/large"));
+	}
+
+	@Test
+    public void expiredResponsesAreNotServedTest() {
+		WebServiceResponseCache cache = new WebServiceResponseCache(800, 0);
+		cache.put("http://example.org/a", new byte[10], "text/plain", new HashMap<String, Object>(), null, null);
+		Assert.assertNull(cache.get("http://example.org/a"));
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+    public void expiredResponsesAreKeptForRevalidationTest() {
+		WebServiceResponseCache cache = new WebServiceResponseCache(800, 0);
+		cache.put("http://example.org/a", new byte[10], "text/plain", new HashMap<String, Object>(), "\"v1\"", null);
+		Assert.assertNull(cache.get("http://example.org/a"));
+		Assert.assertEquals("\"v1\"", cache.getETag("http://example.org/a"));
+
+		RabbitMQReplySource revalidated = cache.revalidate("http://example.org/a");
+		Assert.assertNotNull(revalidated);
+		Assert.assertEquals(10, revalidated.getContentLength());
+		Assert.assertEquals(1, cache.getRevalidationCount());
+		Assert.assertNull(cache.revalidate("http://example.org/b"));
+	}
+}
@@ -1,10 +1,11 @@
 package edu.rmit.eres.amqpclient;
 
-import java.io.FileNotFoundException;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,8 +16,6 @@ import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.LongString;
 
-import org.apache.commons.codec.binary.Base64;
-
 import edu.rmit.eres.estored.datasource.examples.ExamplesGenerator;
 
 /**
@@ -32,12 +31,20 @@ public class ExamplesConsumer extends DefaultConsumer {
 	
 	private String rabbitmqExchangeName;
 	
+	/**
+	 * RabbitMQ client providing the pooled channels on which responses are published
+	 */
+	private RabbitMQClient rabbitmqClient;
+	
 	/**
 	 * Default contructor of MyTardisConsumer, calling the parent class constructor @{link com.rabbitmq.client.DefaultConsumer}
-	 * @param channel: 
+	 * @param channel: the channel on which requests are consumed
+	 * @param rabbitmqClient: the RabbitMQ client on which responses are published
+	 * @param rabbitMqExchangeName: the name of the exchange to send responses to
 	 */
-	public ExamplesConsumer(Channel channel, String rabbitMqExchangeName) {
+	public ExamplesConsumer(Channel channel, RabbitMQClient rabbitmqClient, String rabbitMqExchangeName) {
 		super(channel);
+		this.rabbitmqClient = rabbitmqClient;
 		this.rabbitmqExchangeName = rabbitMqExchangeName;
 	}
 	
@@ -53,6 +60,8 @@ public class ExamplesConsumer extends DefaultConsumer {
 	 * - examples.biggraph: graph of researchers, publications and institutions in Neo4J JSON format, from a local JSON file 
 	 * - examples.festostructure: graph of the topology of a production line in BeSpaceD JSON format, from a local JSON file
 	 * - examples.festosensors: sensor information to be used with 'festostructure' keyword, in BeSpaceD JSON format, from a local JSON file
+	 * I/O errors (publishing of the response) are rethrown so that the delivery gets rejected.
+	 * The delivery is acknowledged only once the broker confirmed the response.
 	 */
     @Override
     public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
@@ -135,11 +144,18 @@ public class ExamplesConsumer extends DefaultConsumer {
     		}
            
             // Sends response back to new routing key, with the meta-data as message headers and the file content as message body
-            if (messageContent != null)
-            	sendMessage(this.rabbitmqExchangeName, returnRoutingKey, mimetype, Base64.encodeBase64(messageContent), headers);
+            final byte[] content = messageContent;
+            final String contentType = mimetype;
+            if (content != null)
+            	// Acknowledges the request only once the broker confirmed the response, rejects it otherwise
+            	RabbitMQClient.awaitConfirmation(sendMessage(this.rabbitmqExchangeName, returnRoutingKey, null, 
+            			() -> new RabbitMQReplySource(new ByteArrayInputStream(content), contentType, content.length, headers), properties));
             else
             	logger.info("Routing key " + envelope.getRoutingKey() + " doesn't match any example. Nothing to send back.");
             
+    	} catch (IOException e) {
+    		logger.error(e.getMessage());
+    		throw e;
     	} catch (Exception e) {
     		logger.error(e.getMessage());
     	}            	
@@ -179,31 +195,31 @@ public class ExamplesConsumer extends DefaultConsumer {
 	}
 	
 	/**
-	 * Sends a message to the given routing key using the given content type, message body, and message headers
+	 * Sends a message to the given routing key, with the content, content type and headers retrieved from the given source.
+	 * The content is published in chunks as soon as it is read (see RabbitMQChunkedReplyStream), on pooled channels, 
+	 * so this can be called concurrently by several workers. Identical requests in flight share a single retrieval of the content.
 	 * 
 	 * @param exchangeName: the RabbitMQ exhange to which send the message to
 	 * @param routingKey: the routing key to send to message to
-	 * @param contentType: content-type of the message to send
-	 * @param message: body of the message to send
-	 * @param headers: headers of the message to send
+	 * @param requestKey: key identifying identical requests, or null if the content cannot be shared with other requests
+	 * @param sourceOpener: opens the source of the content of the message to send
+	 * @param requestProperties: properties of the request, giving the correlation id and accepted encodings of the message
+	 * @return a future completed once all the chunks are confirmed by the broker (see RabbitMQClient#publish)
+	 * 
+	 * @throws Exception: if the content could not be retrieved or the message could not be published
 	 */
-	public void sendMessage(String exchangeName, String routingKey, String contentType, byte[] message, Map<String, Object> headers) {
+	public CompletableFuture<Void> sendMessage(String exchangeName, String routingKey, String requestKey, 
+			RabbitMQReplySource.Opener sourceOpener, AMQP.BasicProperties requestProperties) throws Exception {
     	
-        try {
-        	this.getChannel().exchangeDeclare(exchangeName, RabbitMQClient.EXCHANGE_TYPE_TOPIC, true);
-        	
-        	this.getChannel().basicPublish(exchangeName, routingKey, new AMQP.BasicProperties.Builder()
-	                .contentType(contentType)
-	                .headers(headers)
-	                .build(), 
-	                message);
-	        
-	        logger.debug("[handleDelivery] Sent message to routing key '" + routingKey + "'");
-	        
-	    } catch (FileNotFoundException e) {
-	  		e.printStackTrace();
-	  	} catch (IOException e) {
-			e.printStackTrace();
-		}
+    	CompletableFuture<Void> confirmation = this.rabbitmqClient.sendReply(exchangeName, routingKey, requestProperties, requestKey, sourceOpener);
+        
+        logger.debug("[handleDelivery] Sent message to routing key '" + routingKey + "'");
+        
+        // Reports the responses lost by the broker instead of dropping them silently
+        confirmation.whenComplete((confirmed, error) -> {
+        	if (error != null)
+        		logger.error("[handleDelivery] Message to routing key '" + routingKey + "' not confirmed: " + error.getMessage());
+        });
+        return confirmation;
     }
 }
@@ -0,0 +1,31 @@
+package edu.rmit.eres.amqpclient;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Consumer able to handle a delivery asynchronously: instead of blocking until the response is published,
+ * it returns as soon as the upstream request is sent, with a future completed once the response is published.
+ * The delivery is then acknowledged as a continuation of that future (see RabbitMQWorkerPoolConsumer),
+ * so that no thread waits while the content is downloaded.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQWorkerPoolConsumer
+ */
+public interface RabbitMQAsyncConsumer {
+
+	/**
+	 * Handles a delivery asynchronously
+	 *
+	 * @param consumerTag: the consumer tag associated with the consumer
+	 * @param envelope: packaging data for the message
+	 * @param properties: content header data for the message
+	 * @param body: the message body
+	 * @return a future completed once the response is published and confirmed by the broker, or completed exceptionally
+	 * if the delivery could not be handled
+	 */
+	CompletableFuture<Void> handleDeliveryAsync(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body);
+}
@@ -0,0 +1,540 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Output stream publishing a reply as a sequence of AMQP messages (chunks) as soon as enough bytes are written,
+ * so that a large file can be sent while it is still being downloaded, without ever being held in memory.
+ *
+ * Each chunk carries the headers of the reply, plus:
+ * - correlation-id: the identifier shared by all the chunks of the reply (also set as the correlation id property)
+ * - chunk-sequence: the position of the chunk in the reply, starting at 1
+ * - chunk-count: the total number of chunks, or -1 if it is not known before the last chunk
+ * - chunk-last: true on the last chunk of the reply
+ * - chunk-error: on the last chunk of a reply aborted before its end, the reason why it was aborted
+ * - content-transfer-encoding: the encoding of the bodies, raw or base64
+ * - content-encoding: the compression of the reply, gzip, deflate or identity (also set as the content encoding property)
+ *
+ * A reply fitting in a single chunk is published as a single message, as it was before chunking.
+ * The bodies are Base64-encoded unless the request accepts raw bodies with an accept-encoding header
+ * listing "raw": AMQP bodies being binary-safe, raw bodies save the encoding pass and a third of the size.
+ * The chunk size is a multiple of 3, so that the Base64 bodies of the chunks concatenated in order are
+ * the Base64 encoding of the whole reply.
+ *
+ * Memory use per reply is bounded by the chunk size, whatever the size of the reply: the content is read
+ * straight into a single chunk buffer, and full chunks are Base64-encoded into a single reusable output buffer.
+ * Only the last, partial chunk gets a buffer of its own. The chunk and output buffers are leased from the buffer pool
+ * (see RabbitMQBufferPool), and released once the last chunk is published, for the next replies to reuse them.
+ *
+ * The reply is compressed before being chunked if the request lists gzip or deflate in its accept-encoding header,
+ * unless it is shorter than the compression threshold or its content type is already compressed (e.g. JPEG images).
+ * The chunks then have to be concatenated, once decoded, before being decompressed.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQClient#openReplyStream(String, String, String, Map, AMQP.BasicProperties, long)
+ */
+public class RabbitMQChunkedReplyStream extends OutputStream {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQChunkedReplyStream.class);
+
+	/**
+	 * Default size of the chunks before encoding, in bytes (3 MB, i.e. 4 MB once Base64-encoded)
+	 */
+	public final static int DEFAULT_CHUNK_SIZE = 3 * 1024 * 1024;
+
+	/**
+	 * Default length under which replies are not compressed, in bytes
+	 */
+	public final static int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+	/**
+	 * Size of the buffer used to read the content of compressed replies, in bytes
+	 */
+	private final static int READ_BUFFER_SIZE = 64 * 1024;
+
+	public final static String HEADER_CORRELATION_ID = "correlation-id";
+	public final static String HEADER_CHUNK_SEQUENCE = "chunk-sequence";
+	public final static String HEADER_CHUNK_COUNT = "chunk-count";
+	public final static String HEADER_CHUNK_LAST = "chunk-last";
+	public final static String HEADER_CHUNK_ERROR = "chunk-error";
+	public final static String HEADER_ACCEPT_ENCODING = "accept-encoding";
+	public final static String HEADER_CONTENT_TRANSFER_ENCODING = "content-transfer-encoding";
+	public final static String HEADER_CONTENT_ENCODING = "content-encoding";
+
+	public final static String ENCODING_RAW = "raw";
+	public final static String ENCODING_BASE64 = "base64";
+	public final static String ENCODING_IDENTITY = "identity";
+	public final static String ENCODING_GZIP = "gzip";
+	public final static String ENCODING_DEFLATE = "deflate";
+
+	/**
+	 * Client on which the chunks are published
+	 */
+	private final RabbitMQClient rabbitmqClient;
+
+	private final String exchangeName;
+
+	private final String routingKey;
+
+	private final String contentType;
+
+	private final Map<String, Object> headers;
+
+	private final String correlationId;
+
+	/**
+	 * Encoding of the bodies, ENCODING_RAW or ENCODING_BASE64
+	 */
+	private final String transferEncoding;
+
+	/**
+	 * Compression of the reply, ENCODING_IDENTITY, ENCODING_GZIP or ENCODING_DEFLATE
+	 */
+	private final String contentEncoding;
+
+	/**
+	 * Compressing stream writing to the chunk buffer, or null if the reply is not compressed
+	 */
+	private DeflaterOutputStream compressor;
+
+	/**
+	 * Total number of chunks, or -1 if the length of the reply is unknown
+	 */
+	private final int chunkCount;
+
+	/**
+	 * Pool from which the buffers are leased
+	 */
+	private final RabbitMQBufferPool bufferPool = RabbitMQBufferPool.getDefault();
+
+	/**
+	 * Bytes of the chunk being filled, released to the pool once the reply is ended
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Base64 encoding of a full chunk, reused for every full chunk, allocated on first use
+	 */
+	private byte[] encodedBuffer;
+
+	/**
+	 * Number of bytes currently in the buffer
+	 */
+	private int bufferLength = 0;
+
+	/**
+	 * Number of chunks already published
+	 */
+	private int publishedChunks = 0;
+
+	/**
+	 * Confirmations of the chunks already published
+	 */
+	private final List<CompletableFuture<Void>> confirmations = new ArrayList<CompletableFuture<Void>>();
+
+	private boolean closed = false;
+
+	/**
+	 * True while an aborted reply drops the bytes still coming out of the compressor
+	 */
+	private boolean aborting = false;
+
+	/**
+	 * Constructor of the reply stream
+	 *
+	 * @param rabbitmqClient: the client on which the chunks are published
+	 * @param exchangeName: the RabbitMQ exchange to which send the reply to
+	 * @param routingKey: the routing key to send the reply to
+	 * @param contentType: content-type of the reply
+	 * @param headers: headers of the reply, repeated on every chunk
+	 * @param correlationId: the identifier shared by all the chunks of the reply
+	 * @param transferEncoding: the encoding of the bodies, ENCODING_RAW or ENCODING_BASE64
+	 * @param contentEncoding: the compression of the reply, ENCODING_IDENTITY, ENCODING_GZIP or ENCODING_DEFLATE
+	 * @param chunkSize: the size of the chunks before encoding, in bytes (rounded down to a multiple of 3)
+	 * @param expectedLength: the length of the reply in bytes, or -1 if unknown
+	 *
+	 * @throws IOException: if the compressor could not be initialised
+	 */
+	public RabbitMQChunkedReplyStream(RabbitMQClient rabbitmqClient, String exchangeName, String routingKey, String contentType,
+			Map<String, Object> headers, String correlationId, String transferEncoding, String contentEncoding, 
+			int chunkSize, long expectedLength) throws IOException {
+		this.rabbitmqClient = rabbitmqClient;
+		this.exchangeName = exchangeName;
+		this.routingKey = routingKey;
+		this.contentType = contentType;
+		this.headers = (headers != null) ? new HashMap<String, Object>(headers) : new HashMap<String, Object>();
+		this.correlationId = correlationId;
+		this.transferEncoding = ENCODING_RAW.equals(transferEncoding) ? ENCODING_RAW : ENCODING_BASE64;
+
+		int size = Math.max(3, chunkSize - chunkSize % 3);
+		this.buffer = this.bufferPool.lease(size);
+
+		// The compressed length, hence the number of chunks, is only known once compressed
+		if (ENCODING_GZIP.equals(contentEncoding))
+			this.compressor = new GZIPOutputStream(new ChunkBufferStream(), READ_BUFFER_SIZE);
+		else if (ENCODING_DEFLATE.equals(contentEncoding))
+			this.compressor = new DeflaterOutputStream(new ChunkBufferStream());
+		this.contentEncoding = (this.compressor != null) ? contentEncoding : ENCODING_IDENTITY;
+		this.chunkCount = (expectedLength >= 0 && this.compressor == null) ? (int) Math.max(1, (expectedLength + size - 1) / size) : -1;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.ensureOpen();
+		if (this.compressor != null)
+			this.compressor.write(b);
+		else
+			this.bufferByte(b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		this.ensureOpen();
+		if (this.compressor != null)
+			this.compressor.write(bytes, offset, length);
+		else
+			this.bufferBytes(bytes, offset, length);
+	}
+
+	/**
+	 * Reads an input stream until its end, straight into the chunk buffer when the reply is not compressed,
+	 * publishing the chunks as they get filled. The input stream is not closed.
+	 *
+	 * @param in: the stream to read the content of the reply from
+	 * @return the number of bytes read
+	 *
+	 * @throws IOException: if the stream could not be read or a chunk could not be published
+	 */
+	public long writeFrom(InputStream in) throws IOException {
+		long total = 0;
+		if (this.compressor != null) {
+			byte[] readBuffer = this.bufferPool.lease(READ_BUFFER_SIZE);
+			try {
+				int read;
+				while ((read = in.read(readBuffer)) >= 0) {
+					this.write(readBuffer, 0, read);
+					total += read;
+				}
+			} finally {
+				this.bufferPool.release(readBuffer);
+			}
+			return total;
+		}
+		while (true) {
+			this.ensureOpen();
+			this.makeRoom();
+			int read = in.read(this.buffer, this.bufferLength, this.buffer.length - this.bufferLength);
+			if (read < 0)
+				return total;
+			this.bufferLength += read;
+			total += read;
+		}
+	}
+
+	/**
+	 * Publishes the last chunk of the reply. A reply with no content is published as a single empty chunk.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed)
+			return;
+		try {
+			if (this.compressor != null)
+				this.compressor.close();
+			this.publishChunk(true);
+		} finally {
+			this.closed = true;
+			this.releaseBuffers();
+		}
+		logger.debug("Published reply " + this.correlationId + " to routing key '" + this.routingKey + "' in " + this.publishedChunks + " chunk(s)");
+	}
+
+	/**
+	 * Ends a reply that could not be completed, publishing the bytes buffered so far as the last chunk,
+	 * with the reason in the chunk-error header so that the requester does not wait for more chunks
+	 *
+	 * @param reason: the reason why the reply is aborted
+	 *
+	 * @throws IOException: if the last chunk could not be published
+	 */
+	public void abort(String reason) throws IOException {
+		if (this.closed)
+			return;
+		this.closed = true;
+		if (this.compressor != null) {
+			// Releases the compressor, without publishing its remaining output
+			this.aborting = true;
+			try {
+				this.compressor.close();
+			} catch (IOException e) {
+				logger.debug("Could not close the compressor: " + e.getMessage());
+			}
+			this.aborting = false;
+		}
+		this.headers.put(HEADER_CHUNK_ERROR, (reason != null) ? reason : "Reply aborted");
+		try {
+			this.publishChunk(true);
+		} finally {
+			this.releaseBuffers();
+		}
+		logger.warn("Aborted reply " + this.correlationId + " to routing key '" + this.routingKey + "' after " + this.publishedChunks + " chunk(s)");
+	}
+
+	/**
+	 * Getter for the confirmation of the whole reply
+	 * @return a future completed once all the chunks published so far are confirmed by the broker
+	 */
+	public CompletableFuture<Void> getConfirmation() {
+		return CompletableFuture.allOf(this.confirmations.toArray(new CompletableFuture<?>[this.confirmations.size()]));
+	}
+
+	/**
+	 * Getter for the number of chunks published so far
+	 * @return the number of chunks published
+	 */
+	public int getPublishedChunks() {
+		return this.publishedChunks;
+	}
+
+	/**
+	 * Gets the correlation id of the reply to a request: the correlation id or message id of the request if any, a random one otherwise
+	 *
+	 * @param requestProperties: the properties of the request
+	 * @return the correlation id of the reply
+	 */
+	public static String getCorrelationId(AMQP.BasicProperties requestProperties) {
+		if (requestProperties != null && requestProperties.getCorrelationId() != null)
+			return requestProperties.getCorrelationId();
+		if (requestProperties != null && requestProperties.getMessageId() != null)
+			return requestProperties.getMessageId();
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Negotiates the encoding of the bodies of the reply to a request, from the accept-encoding header of the request
+	 *
+	 * @param requestProperties: the properties of the request
+	 * @return ENCODING_RAW if the request accepts raw bodies, ENCODING_BASE64 otherwise
+	 */
+	public static String getTransferEncoding(AMQP.BasicProperties requestProperties) {
+		for (String acceptedEncoding : getAcceptedEncodings(requestProperties)) {
+			if (acceptedEncoding.equals(ENCODING_RAW))
+				return ENCODING_RAW;
+		}
+		return ENCODING_BASE64;
+	}
+
+	/**
+	 * Negotiates the compression of the reply to a request, from the accept-encoding header of the request.
+	 * The first of gzip and deflate listed by the request is chosen.
+	 *
+	 * @param requestProperties: the properties of the request
+	 * @param contentType: content-type of the reply
+	 * @param expectedLength: the length of the reply in bytes, or -1 if unknown
+	 * @param compressionThreshold: the length under which the reply is not compressed, or -1 to never compress
+	 * @return ENCODING_GZIP or ENCODING_DEFLATE if the reply is to be compressed, ENCODING_IDENTITY otherwise
+	 */
+	public static String getContentEncoding(AMQP.BasicProperties requestProperties, String contentType, long expectedLength, int compressionThreshold) {
+		if (compressionThreshold < 0 || (expectedLength >= 0 && expectedLength < compressionThreshold) || !isCompressible(contentType))
+			return ENCODING_IDENTITY;
+		for (String acceptedEncoding : getAcceptedEncodings(requestProperties)) {
+			if (acceptedEncoding.equals(ENCODING_GZIP) || acceptedEncoding.equals(ENCODING_DEFLATE))
+				return acceptedEncoding;
+		}
+		return ENCODING_IDENTITY;
+	}
+
+	/**
+	 * Checks if compressing a content type is worth it: images (other than bitmaps and SVG), audio, video 
+	 * and archives are already compressed
+	 *
+	 * @param contentType: the content type, possibly null
+	 * @return false if the content type is known to be already compressed
+	 */
+	public static boolean isCompressible(String contentType) {
+		if (contentType == null)
+			return true;
+		String type = contentType.toLowerCase();
+		if (type.startsWith("image/"))
+			return type.startsWith("image/bmp") || type.startsWith("image/svg");
+		return !(type.startsWith("audio/") || type.startsWith("video/") 
+				|| type.contains("zip") || type.contains("compressed"));
+	}
+
+	/**
+	 * Lists the encodings accepted by a request, in the order of its accept-encoding header
+	 *
+	 * @param requestProperties: the properties of the request
+	 * @return the accepted encodings, in lower case
+	 */
+	private static List<String> getAcceptedEncodings(AMQP.BasicProperties requestProperties) {
+		List<String> acceptedEncodings = new ArrayList<String>();
+		if (requestProperties == null || requestProperties.getHeaders() == null)
+			return acceptedEncodings;
+		Object header = requestProperties.getHeaders().get(HEADER_ACCEPT_ENCODING);
+		if (header == null)
+			return acceptedEncodings;
+		for (String acceptedEncoding : header.toString().split(",")) {
+			if (!acceptedEncoding.trim().isEmpty())
+				acceptedEncodings.add(acceptedEncoding.trim().toLowerCase());
+		}
+		return acceptedEncodings;
+	}
+
+	/**
+	 * Releases the buffers to the pool, once the last chunk is published (or could not be)
+	 */
+	private void releaseBuffers() {
+		this.bufferPool.release(this.buffer);
+		this.bufferPool.release(this.encodedBuffer);
+		this.buffer = null;
+		this.encodedBuffer = null;
+	}
+
+	/**
+	 * Checks that the reply can still be written to
+	 *
+	 * @throws IOException: if the stream is closed
+	 */
+	private void ensureOpen() throws IOException {
+		if (this.closed)
+			throw new IOException("Reply stream already closed");
+	}
+
+	/**
+	 * Makes room in the buffer: a full chunk is only published once more bytes come,
+	 * so that the last chunk can always be flagged as such, even when the length of the reply is unknown.
+	 *
+	 * @throws IOException: if the chunk could not be published
+	 */
+	private void makeRoom() throws IOException {
+		if (this.bufferLength == this.buffer.length)
+			this.publishChunk(false);
+	}
+
+	/**
+	 * Appends a byte to the chunk buffer
+	 *
+	 * @param b: the byte to append
+	 *
+	 * @throws IOException: if a chunk could not be published
+	 */
+	private void bufferByte(int b) throws IOException {
+		if (this.aborting || this.buffer == null)
+			return;
+		this.makeRoom();
+		this.buffer[this.bufferLength++] = (byte) b;
+	}
+
+	/**
+	 * Appends bytes to the chunk buffer, publishing the chunks as they get filled
+	 *
+	 * @param bytes: the bytes to append
+	 * @param offset: the position of the first byte to append
+	 * @param length: the number of bytes to append
+	 *
+	 * @throws IOException: if a chunk could not be published
+	 */
+	private void bufferBytes(byte[] bytes, int offset, int length) throws IOException {
+		if (this.aborting || this.buffer == null)
+			return;
+		while (length > 0) {
+			this.makeRoom();
+			int copied = Math.min(length, this.buffer.length - this.bufferLength);
+			System.arraycopy(bytes, offset, this.buffer, this.bufferLength, copied);
+			this.bufferLength += copied;
+			offset += copied;
+			length -= copied;
+		}
+	}
+
+	/**
+	 * Publishes the content of the buffer as the next chunk. The buffer is reused for the next chunk:
+	 * RabbitMQClient#publish has written the body out by the time it returns.
+	 *
+	 * @param last: true if this is the last chunk of the reply
+	 *
+	 * @throws IOException: if the chunk could not be published
+	 */
+	private void publishChunk(boolean last) throws IOException {
+		Map<String, Object> chunkHeaders = new HashMap<String, Object>(this.headers);
+		chunkHeaders.put(HEADER_CORRELATION_ID, this.correlationId);
+		chunkHeaders.put(HEADER_CHUNK_SEQUENCE, this.publishedChunks + 1);
+		chunkHeaders.put(HEADER_CHUNK_COUNT, last ? this.publishedChunks + 1 : this.chunkCount);
+		chunkHeaders.put(HEADER_CHUNK_LAST, last);
+		chunkHeaders.put(HEADER_CONTENT_TRANSFER_ENCODING, this.transferEncoding);
+		chunkHeaders.put(HEADER_CONTENT_ENCODING, this.contentEncoding);
+
+		this.confirmations.add(this.rabbitmqClient.publish(this.exchangeName, this.routingKey, new AMQP.BasicProperties.Builder()
+				.contentType(this.contentType)
+				.contentEncoding(this.contentEncoding)
+				.correlationId(this.correlationId)
+				.headers(chunkHeaders)
+				.build(),
+				this.encodeChunk()));
+
+		this.publishedChunks++;
+		this.bufferLength = 0;
+	}
+
+	/**
+	 * Encodes the content of the buffer into a message body. A full chunk is encoded into the reusable output buffer
+	 * (or published from the chunk buffer itself if raw), without any allocation. A partial chunk needs an array
+	 * of its exact length, encoded straight from the chunk buffer.
+	 *
+	 * @return the body of the chunk
+	 */
+	private byte[] encodeChunk() {
+		boolean fullChunk = (this.bufferLength == this.buffer.length);
+		if (ENCODING_RAW.equals(this.transferEncoding))
+			return fullChunk ? this.buffer : Arrays.copyOf(this.buffer, this.bufferLength);
+
+		if (fullChunk) {
+			if (this.encodedBuffer == null)
+				this.encodedBuffer = this.bufferPool.lease(this.buffer.length / 3 * 4);
+			Base64.getEncoder().encode(this.buffer, this.encodedBuffer);
+			return this.encodedBuffer;
+		}
+		ByteBuffer encoded = Base64.getEncoder().encode(ByteBuffer.wrap(this.buffer, 0, this.bufferLength));
+		if (encoded.hasArray() && encoded.arrayOffset() == 0 && encoded.array().length == encoded.remaining())
+			return encoded.array();
+		byte[] body = new byte[encoded.remaining()];
+		encoded.get(body);
+		return body;
+	}
+
+	/**
+	 * Sink of the compressor, appending the compressed bytes to the chunk buffer
+	 */
+	private class ChunkBufferStream extends OutputStream {
+
+		@Override
+		public void write(int b) throws IOException {
+			RabbitMQChunkedReplyStream.this.bufferByte(b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			RabbitMQChunkedReplyStream.this.bufferBytes(bytes, offset, length);
+		}
+	}
+}
@@ -1,13 +1,26 @@
 package edu.rmit.eres.amqpclient;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * Basic client for a RabbitMQ topic exchange using SSL protocol
@@ -19,6 +32,8 @@ import com.rabbitmq.client.ConnectionFactory;
  */
 public class RabbitMQClient {
 
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQClient.class);
+	
 	/**
 	 * Connection object to the RabbitMQ broker
 	 */
@@ -28,6 +43,91 @@ public class RabbitMQClient {
 	 * RabbitMQ channel to which the client is connected
 	 */
 	private Channel channel;
+	
+	/**
+	 * Pool of channels used to publish messages concurrently
+	 */
+	private volatile RabbitMQChannelPool channelPool;
+	
+	/**
+	 * Default maximum number of channels opened for publishing
+	 */
+	public final static int DEFAULT_CHANNEL_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	
+	/**
+	 * Maximum number of channels opened for publishing
+	 */
+	protected int channelPoolSize = DEFAULT_CHANNEL_POOL_SIZE;
+	
+	/**
+	 * Registry of the exchanges, queues and bindings declared by this client
+	 */
+	protected final RabbitMQTopologyRegistry topologyRegistry = new RabbitMQTopologyRegistry();
+	
+	/**
+	 * Default maximum number of consecutive reconnection attempts (0 for unlimited)
+	 */
+	public final static int DEFAULT_RECONNECT_MAX_ATTEMPTS = 0;
+	
+	/**
+	 * Default delay ceiling before the first reconnection attempt, in milliseconds
+	 */
+	public final static long DEFAULT_RECONNECT_INITIAL_DELAY = 1000;
+	
+	/**
+	 * Default maximum delay between two reconnection attempts, in milliseconds
+	 */
+	public final static long DEFAULT_RECONNECT_MAX_DELAY = 30000;
+	
+	/**
+	 * Maximum number of consecutive reconnection attempts (0 for unlimited)
+	 */
+	protected int reconnectMaxAttempts = DEFAULT_RECONNECT_MAX_ATTEMPTS;
+	
+	/**
+	 * Delay ceiling before the first reconnection attempt, in milliseconds
+	 */
+	protected long reconnectInitialDelay = DEFAULT_RECONNECT_INITIAL_DELAY;
+	
+	/**
+	 * Maximum delay between two reconnection attempts, in milliseconds
+	 */
+	protected long reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+	
+	/**
+	 * True once the connection is being closed by the application, so that it does not get reconnected
+	 */
+	private volatile boolean closing = false;
+	
+	/**
+	 * True while a reconnection is in progress
+	 */
+	private final AtomicBoolean reconnecting = new AtomicBoolean(false);
+	
+	/**
+	 * Called when the connection could not be recovered after the maximum number of attempts, or null to only close the client
+	 */
+	private volatile Runnable reconnectionFailureHandler = null;
+	
+	/**
+	 * True if the published messages have to be confirmed by the broker (publisher confirms)
+	 */
+	protected boolean publisherConfirms = false;
+	
+	/**
+	 * Size of the chunks in which the replies are published, in bytes (see RabbitMQChunkedReplyStream)
+	 */
+	protected int replyChunkSize = RabbitMQChunkedReplyStream.DEFAULT_CHUNK_SIZE;
+	
+	/**
+	 * Length under which the replies are not compressed, in bytes, or -1 to never compress them
+	 */
+	protected int replyCompressionThreshold = RabbitMQChunkedReplyStream.DEFAULT_COMPRESSION_THRESHOLD;
+	
+	/**
+	 * Coalescer sharing the fetch of the content between identical requests in flight, or null to fetch it for every request
+	 */
+	protected RabbitMQReplyCoalescer replyCoalescer;
 
 	/**
 	 * Address of the RabbitMQ broker to establish connection with
@@ -38,6 +138,12 @@ public class RabbitMQClient {
 	 * The port of the RabbitMQ broker to establish connection with
 	 */
 	protected Integer rabbitmqBrokerPort;
+	
+	/**
+	 * Addresses of the nodes of a RabbitMQ cluster to establish connection with, in order of preference.
+	 * When set, they are used instead of rabbitmqBrokerAddress and rabbitmqBrokerPort.
+	 */
+	protected List<Address> rabbitmqBrokerAddresses;
 
 	/**
 	 * Name of the SSL protocol to use for connecting (should be matching the one used by the RabbitMQ broker)
@@ -85,7 +191,38 @@ public class RabbitMQClient {
 		this.rabbitmqUserName = rabbitmqUserName;
 		this.rabbitmqUserPassword = rabbitmqUserPassword;
 	}
-
+	
+	/**
+	 * Opens a connection to a RabbitMQ broker, retrying with an exponential backoff and jitter 
+	 * until it succeeds or the maximum number of attempts is reached. Once connected, the connection 
+	 * is supervised: if it is lost, it gets reopened the same way (see {@link #onConnectionRecovered()}).
+	 * 
+	 * @return true if the connection has been opened successfully, false if all attempts failed
+	 */
+	public boolean connect() {
+		this.closing = false;
+		RabbitMQBackoff backoff = new RabbitMQBackoff(this.reconnectInitialDelay, this.reconnectMaxDelay);
+		for (int attempt = 1; !this.closing; attempt++) {
+			if (this.openConnection())
+				return true;
+			
+			if (this.reconnectMaxAttempts > 0 && attempt >= this.reconnectMaxAttempts) {
+				logger.error("Could not connect to RabbitMQ broker after " + attempt + " attempt(s), giving up");
+				return false;
+			}
+			
+			long delay = backoff.nextDelay(attempt);
+			logger.warn("Could not connect to RabbitMQ broker (attempt " + attempt + "), retrying in " + delay + " ms");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Opens a connection to a RabbitMQ broker and creates a channel using the properties of this client
 	 * 
@@ -99,6 +236,8 @@ public class RabbitMQClient {
 		factory.setVirtualHost(rabbitmqVirtualHost);
 		factory.setUsername(rabbitmqUserName);
 		factory.setPassword(rabbitmqUserPassword);
+		// Recovery is supervised by this client (see connect())
+		factory.setAutomaticRecoveryEnabled(false);
 
 		// Try setting the SSL protocol
 		try {
@@ -110,15 +249,148 @@ public class RabbitMQClient {
 
 		// Try to create the connection and the channel, then declare a topic exchange
 		try {
-			this.connection = factory.newConnection();
+			if (this.rabbitmqBrokerAddresses != null && !this.rabbitmqBrokerAddresses.isEmpty())
+				this.connection = factory.newConnection(this.rabbitmqBrokerAddresses);
+			else
+				this.connection = factory.newConnection();
 			this.channel = this.connection.createChannel();
+			this.channelPool = new RabbitMQChannelPool(this.connection, this.channelPoolSize, this.publisherConfirms);
+			
+			// Reconnects if the connection is lost
+			this.connection.addShutdownListener((cause) -> this.handleConnectionLost(cause));
 		} catch (IOException | TimeoutException e) {
-			e.printStackTrace();
+			logger.error("Could not connect to " + this.getBrokerDescription() + ": " + e.getMessage());
 			return false;
 		}
 		
 		return true;
 	}
+	
+	/**
+	 * Describes the broker node(s) this client connects to, for logging purposes
+	 * @return the address(es) of the broker node(s)
+	 */
+	protected String getBrokerDescription() {
+		if (this.rabbitmqBrokerAddresses != null && !this.rabbitmqBrokerAddresses.isEmpty())
+			return this.rabbitmqBrokerAddresses.toString();
+		return this.rabbitmqBrokerAddress + ":" + this.rabbitmqBrokerPort;
+	}
+	
+	/**
+	 * Starts reconnecting in the background when the connection has been lost without being closed by the application.
+	 * A connection lost while a recovery is in progress is recovered again once that recovery is over (see #recover()).
+	 * 
+	 * @param cause: the cause of the connection shutdown
+	 */
+	private void handleConnectionLost(ShutdownSignalException cause) {
+		if (this.closing || cause.isInitiatedByApplication())
+			return;
+		
+		logger.error("Connection to RabbitMQ broker lost: " + cause.getMessage());
+		if (this.reconnecting.compareAndSet(false, true))
+			new Thread(this::recover, "estored-reconnect").start();
+	}
+	
+	/**
+	 * Reconnects and restores the client until the connection is open with its consumers registered,
+	 * or the maximum number of attempts is reached, in which case the failure handler is called
+	 */
+	private void recover() {
+		while (true) {
+			boolean recovered;
+			try {
+				recovered = this.reconnect();
+			} finally {
+				this.reconnecting.set(false);
+			}
+			
+			if (!recovered) {
+				if (this.closing)
+					return;
+				Runnable failureHandler = this.reconnectionFailureHandler;
+				this.closeConnection();
+				if (failureHandler != null)
+					failureHandler.run();
+				return;
+			}
+			
+			// Lost again before the recovery was over: its shutdown listener left the recovery to this thread
+			Connection recoveredConnection = this.connection;
+			if (this.closing || (recoveredConnection != null && recoveredConnection.isOpen()) || !this.reconnecting.compareAndSet(false, true))
+				return;
+			logger.warn("Connection to RabbitMQ broker lost during the recovery, reconnecting again");
+		}
+	}
+	
+	/**
+	 * Reopens the connection and restores the client, with an exponential backoff and jitter between the attempts.
+	 * A failure to restore the client counts as a failed attempt: the new connection is aborted and opened again.
+	 * 
+	 * @return false if the client could not be restored after the maximum number of attempts, true otherwise
+	 */
+	private boolean reconnect() {
+		RabbitMQBackoff backoff = new RabbitMQBackoff(this.reconnectInitialDelay, this.reconnectMaxDelay);
+		for (int attempt = 1; !this.closing; attempt++) {
+			this.discardConnection();
+			if (this.openConnection()) {
+				try {
+					if (!this.recoverTopology())
+						throw new IOException("Topology not recovered");
+					this.onConnectionRecovered();
+					logger.info("Reconnected to RabbitMQ broker");
+					return true;
+				} catch (IOException | ShutdownSignalException e) {
+					logger.error("Could not recover after reconnection (attempt " + attempt + "): " + e.getMessage());
+					this.abortConnection();
+				}
+			}
+			
+			if (this.reconnectMaxAttempts > 0 && attempt >= this.reconnectMaxAttempts) {
+				logger.error("Could not reconnect to RabbitMQ broker after " + attempt + " attempt(s), giving up");
+				return false;
+			}
+			
+			long delay = backoff.nextDelay(attempt);
+			logger.warn("Could not reconnect to RabbitMQ broker (attempt " + attempt + "), retrying in " + delay + " ms");
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Aborts a connection that could not be restored, without reconnecting it
+	 */
+	private void abortConnection() {
+		Connection failedConnection = this.connection;
+		if (failedConnection != null)
+			failedConnection.abort();
+	}
+	
+	/**
+	 * Called after the connection has been reopened and the topology declared again, following a connection loss.
+	 * Sub-classes override it to register their consumers again.
+	 * 
+	 * @throws IOException: if the client could not be restored
+	 */
+	protected void onConnectionRecovered() throws IOException {
+	}
+	
+	/**
+	 * Forgets about a lost connection and its channels, which are already closed
+	 */
+	private void discardConnection() {
+		if (this.channelPool != null) {
+			this.channelPool.close();
+			this.channelPool = null;
+		}
+		this.channel = null;
+		this.connection = null;
+	}
 
 	/**
 	 * Closes the RabbitMQ channel and the connection if they exists 
@@ -126,7 +398,13 @@ public class RabbitMQClient {
 	 * @return true if the channel and connection could be closed, false otherwise
 	 */
 	public boolean closeConnection() {
+		this.closing = true;
 		try {
+			// Closes pooled channels if exists
+			if (this.channelPool != null) {
+				this.channelPool.close();
+				this.channelPool = null;
+			}
 			// Closes channel if exists
 			if (this.channel != null) {
 				this.channel.close();
@@ -159,4 +437,334 @@ public class RabbitMQClient {
 	protected Channel getChannel() {
 		return this.channel;
 	}
+	
+	/**
+	 * Publishes a message on a channel leased from the channel pool. Safe to be called concurrently.
+	 * In publisher confirms mode, the returned future completes once the broker has confirmed the message 
+	 * and fails if the broker rejected it. Otherwise it is already completed when this method returns.
+	 * 
+	 * @param exchangeName: the RabbitMQ exchange to which send the message to
+	 * @param routingKey: the routing key to send to message to
+	 * @param properties: the properties (content type, headers...) of the message
+	 * @param body: the body of the message
+	 * @return a future completed when the message is confirmed by the broker
+	 * 
+	 * @throws IOException: if the message could not be published
+	 */
+	public CompletableFuture<Void> publish(String exchangeName, String routingKey, AMQP.BasicProperties properties, byte[] body) throws IOException {
+		RabbitMQChannelPool pool = this.getChannelPool();
+		Channel pooledChannel = pool.borrowChannel();
+		try {
+			CompletableFuture<Void> confirmation = CompletableFuture.completedFuture(null);
+			RabbitMQConfirmTracker tracker = pool.getConfirmTracker(pooledChannel);
+			if (tracker != null)
+				confirmation = tracker.register(pooledChannel.getNextPublishSeqNo());
+			pooledChannel.basicPublish(exchangeName, routingKey, properties, body);
+			return confirmation;
+		} finally {
+			pool.returnChannel(pooledChannel);
+		}
+	}
+	
+	/**
+	 * Opens a stream publishing a reply in chunks as it is written (see RabbitMQChunkedReplyStream).
+	 * The reply is complete once the stream is closed.
+	 * 
+	 * @param exchangeName: the RabbitMQ exchange to which send the reply to
+	 * @param routingKey: the routing key to send the reply to
+	 * @param contentType: content-type of the reply
+	 * @param headers: headers of the reply, repeated on every chunk
+	 * @param requestProperties: the properties of the request, from which the correlation id, encoding and compression of the reply are taken
+	 * @param expectedLength: the length of the reply in bytes, or -1 if unknown
+	 * @return the stream to write the content of the reply to
+	 * 
+	 * @throws IOException: if the stream could not be opened
+	 */
+	public RabbitMQChunkedReplyStream openReplyStream(String exchangeName, String routingKey, String contentType, 
+			Map<String, Object> headers, AMQP.BasicProperties requestProperties, long expectedLength) throws IOException {
+		return new RabbitMQChunkedReplyStream(this, exchangeName, routingKey, contentType, headers, 
+				RabbitMQChunkedReplyStream.getCorrelationId(requestProperties), 
+				RabbitMQChunkedReplyStream.getTransferEncoding(requestProperties), 
+				RabbitMQChunkedReplyStream.getContentEncoding(requestProperties, contentType, expectedLength, this.replyCompressionThreshold), 
+				this.replyChunkSize, expectedLength);
+	}
+	
+	/**
+	 * Replies to a request with the content of a source, streamed in chunks (see RabbitMQChunkedReplyStream).
+	 * Identical requests in flight share a single fetch of the content if a coalescer is set.
+	 * Returns once the whole reply is published.
+	 * 
+	 * @param exchangeName: the RabbitMQ exchange to which send the reply to
+	 * @param routingKey: the routing key to send the reply to
+	 * @param requestProperties: the properties of the request, from which the correlation id, encoding and compression of the reply are taken
+	 * @param requestKey: the key identifying identical requests (e.g. the URL requested), or null to never coalesce the request
+	 * @param sourceOpener: opens the source of the content
+	 * @return a future completed once the reply is confirmed by the broker (see {@link #publish(String, String, AMQP.BasicProperties, byte[])})
+	 * 
+	 * @throws Exception: if the source could not be opened or read, or the reply could not be published
+	 */
+	public CompletableFuture<Void> sendReply(String exchangeName, String routingKey, AMQP.BasicProperties requestProperties, 
+			String requestKey, RabbitMQReplySource.Opener sourceOpener) throws Exception {
+		
+		this.declareExchange(exchangeName, EXCHANGE_TYPE_TOPIC, true);
+		
+		RabbitMQReplyCoalescer.ReplyOpener replyOpener = (source) -> this.openReplyStream(exchangeName, routingKey, 
+				source.getContentType(), source.getHeaders(), requestProperties, source.getContentLength());
+		
+		RabbitMQReplyCoalescer coalescer = this.replyCoalescer;
+		if (coalescer != null && requestKey != null)
+			return coalescer.reply(requestKey, sourceOpener, replyOpener);
+		return RabbitMQReplyCoalescer.replyAlone(sourceOpener, replyOpener);
+	}
+	
+	/**
+	 * Waits for a reply to be confirmed by the broker, so that its request is only acknowledged once the reply is safe
+	 * 
+	 * @param confirmation: the future returned by {@link #sendReply(String, String, AMQP.BasicProperties, String, RabbitMQReplySource.Opener)}
+	 * 
+	 * @throws IOException: if the broker rejected the reply, or its channel was shut down before the confirmation, 
+	 * so that the request gets rejected
+	 */
+	public static void awaitConfirmation(CompletableFuture<Void> confirmation) throws IOException {
+		try {
+			confirmation.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the reply to be confirmed");
+		} catch (ExecutionException e) {
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new IOException("Reply not confirmed: " + cause.getMessage(), cause);
+		}
+	}
+	
+	/**
+	 * Replies to a request with the content of an asynchronous source, streamed in chunks as the content is pushed 
+	 * by the source (see RabbitMQChunkedReplyStream). Identical requests in flight share a single fetch of the content 
+	 * if a coalescer is set. Returns as soon as the source is opened, without waiting for the content.
+	 * 
+	 * @param exchangeName: the RabbitMQ exchange to which send the reply to
+	 * @param routingKey: the routing key to send the reply to
+	 * @param requestProperties: the properties of the request, from which the correlation id, encoding and compression of the reply are taken
+	 * @param requestKey: the key identifying identical requests (e.g. the URL requested), or null to never coalesce the request
+	 * @param sourceOpener: opens the source of the content
+	 * @return a future completed once the whole reply is published and confirmed by the broker, or completed exceptionally 
+	 * if the source could not be opened or read, or the reply could not be published
+	 */
+	public CompletableFuture<Void> sendReplyAsync(String exchangeName, String routingKey, AMQP.BasicProperties requestProperties, 
+			String requestKey, RabbitMQReplySource.AsyncOpener sourceOpener) {
+		
+		try {
+			this.declareExchange(exchangeName, EXCHANGE_TYPE_TOPIC, true);
+		} catch (IOException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		
+		RabbitMQReplyCoalescer.ReplyOpener replyOpener = (source) -> this.openReplyStream(exchangeName, routingKey, 
+				source.getContentType(), source.getHeaders(), requestProperties, source.getContentLength());
+		
+		RabbitMQReplyCoalescer coalescer = this.replyCoalescer;
+		if (coalescer != null && requestKey != null)
+			return coalescer.replyAsync(requestKey, sourceOpener, replyOpener);
+		return RabbitMQReplyCoalescer.replyAloneAsync(sourceOpener, replyOpener);
+	}
+	
+	/**
+	 * Declares an exchange, only if it has not already been declared by this client. 
+	 * Safe to be called concurrently: the declaration itself is made on a channel leased from the channel pool.
+	 * 
+	 * @param exchangeName: the name of the exchange to declare
+	 * @param exchangeType: the type of the exchange (e.g. EXCHANGE_TYPE_TOPIC)
+	 * @param durable: true if the exchange should survive a broker restart
+	 * 
+	 * @throws IOException: if the exchange could not be declared
+	 */
+	public void declareExchange(String exchangeName, String exchangeType, boolean durable) throws IOException {
+		if (this.topologyRegistry.isExchangeDeclared(exchangeName))
+			return;
+		
+		Channel pooledChannel = this.getChannelPool().borrowChannel();
+		try {
+			this.topologyRegistry.declareExchange(pooledChannel, exchangeName, exchangeType, durable);
+		} finally {
+			this.getChannelPool().returnChannel(pooledChannel);
+		}
+	}
+	
+	/**
+	 * Declares a named queue, only if it has not already been declared by this client
+	 * 
+	 * @param queueName: the name of the queue to declare
+	 * @param durable: true if the queue should survive a broker restart
+	 * @param exclusive: true if the queue is restricted to this connection
+	 * @param autoDelete: true if the queue should be deleted when no longer in use
+	 * 
+	 * @throws IOException: if the queue could not be declared
+	 */
+	public void declareQueue(String queueName, boolean durable, boolean exclusive, boolean autoDelete) throws IOException {
+		Channel pooledChannel = this.getChannelPool().borrowChannel();
+		try {
+			this.topologyRegistry.declareQueue(pooledChannel, queueName, durable, exclusive, autoDelete);
+		} finally {
+			this.getChannelPool().returnChannel(pooledChannel);
+		}
+	}
+	
+	/**
+	 * Binds a named queue to an exchange, only if it has not already been bound by this client
+	 * 
+	 * @param queueName: the name of the queue to bind
+	 * @param exchangeName: the name of the exchange to bind the queue to
+	 * @param bindingKey: the binding key
+	 * 
+	 * @throws IOException: if the binding could not be declared
+	 */
+	public void declareBinding(String queueName, String exchangeName, String bindingKey) throws IOException {
+		Channel pooledChannel = this.getChannelPool().borrowChannel();
+		try {
+			this.topologyRegistry.declareBinding(pooledChannel, queueName, exchangeName, bindingKey);
+		} finally {
+			this.getChannelPool().returnChannel(pooledChannel);
+		}
+	}
+	
+	/**
+	 * Declares again all the exchanges, queues and bindings known by this client, after a reconnection
+	 * 
+	 * @return true if the topology has been recovered successfully, false otherwise
+	 */
+	protected boolean recoverTopology() {
+		try {
+			Channel pooledChannel = this.getChannelPool().borrowChannel();
+			try {
+				this.topologyRegistry.recover(pooledChannel);
+			} finally {
+				this.getChannelPool().returnChannel(pooledChannel);
+			}
+		} catch (IOException e) {
+			logger.error("Could not recover topology: " + e.getMessage());
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Getter for the pool of channels used to publish messages
+	 * @return the pool of channels used to publish messages
+	 * 
+	 * @throws IOException: if the connection has not been opened
+	 */
+	protected RabbitMQChannelPool getChannelPool() throws IOException {
+		RabbitMQChannelPool pool = this.channelPool;
+		if (pool == null)
+			throw new IOException("The connection to the RabbitMQ broker is not open");
+		return pool;
+	}
+	
+	/**
+	 * Setter for the maximum number of channels opened for publishing, to be called before opening the connection
+	 * @param channelPoolSize: the maximum number of channels opened for publishing
+	 */
+	public void setChannelPoolSize(int channelPoolSize) {
+		this.channelPoolSize = channelPoolSize;
+	}
+	
+	/**
+	 * Setter for the publisher confirms mode, to be called before opening the connection
+	 * @param publisherConfirms: true if the published messages have to be confirmed by the broker
+	 */
+	public void setPublisherConfirms(boolean publisherConfirms) {
+		this.publisherConfirms = publisherConfirms;
+	}
+	
+	/**
+	 * Setter for the size of the chunks in which the replies are published
+	 * @param replyChunkSize: the size of the chunks, in bytes
+	 */
+	public void setReplyChunkSize(int replyChunkSize) {
+		this.replyChunkSize = replyChunkSize;
+	}
+	
+	/**
+	 * Setter for the coalescer of identical requests in flight, which can be shared by several clients
+	 * @param replyCoalescer: the coalescer, or null to fetch the content for every request
+	 */
+	public void setReplyCoalescer(RabbitMQReplyCoalescer replyCoalescer) {
+		this.replyCoalescer = replyCoalescer;
+	}
+	
+	/**
+	 * Setter for the length under which the replies are not compressed
+	 * @param replyCompressionThreshold: the length in bytes, or -1 to never compress the replies
+	 */
+	public void setReplyCompressionThreshold(int replyCompressionThreshold) {
+		this.replyCompressionThreshold = replyCompressionThreshold;
+	}
+	
+	/**
+	 * Setter for the maximum number of consecutive reconnection attempts
+	 * @param reconnectMaxAttempts: the maximum number of attempts (0 for unlimited)
+	 */
+	public void setReconnectMaxAttempts(int reconnectMaxAttempts) {
+		this.reconnectMaxAttempts = reconnectMaxAttempts;
+	}
+	
+	/**
+	 * Setter for the delays between reconnection attempts, which grow exponentially with a random jitter
+	 * @param reconnectInitialDelay: the delay ceiling before the first attempt, in milliseconds
+	 * @param reconnectMaxDelay: the maximum delay between two attempts, in milliseconds
+	 */
+	public void setReconnectDelays(long reconnectInitialDelay, long reconnectMaxDelay) {
+		this.reconnectInitialDelay = reconnectInitialDelay;
+		this.reconnectMaxDelay = reconnectMaxDelay;
+	}
+	
+	/**
+	 * Setter for the handler called when the connection could not be recovered after the maximum number of attempts,
+	 * once the client is closed, e.g. to exit the process instead of staying up without consuming anything
+	 * @param reconnectionFailureHandler: the handler, or null to only close the client
+	 */
+	public void setReconnectionFailureHandler(Runnable reconnectionFailureHandler) {
+		this.reconnectionFailureHandler = reconnectionFailureHandler;
+	}
+	
+	/**
+	 * Setter for the addresses of the nodes of a RabbitMQ cluster, to be called before opening the connection.
+	 * The list is rotated by the given shard index, so that the connections of several clients sharing the 
+	 * same list are spread across the nodes, while each client can still fail over to the other nodes.
+	 * 
+	 * @param rabbitmqBrokerAddresses: the addresses of the cluster nodes
+	 * @param shardIndex: the index of this client among the clients sharing the list
+	 */
+	public void setBrokerAddresses(List<Address> rabbitmqBrokerAddresses, int shardIndex) {
+		List<Address> rotatedAddresses = new ArrayList<Address>(rabbitmqBrokerAddresses.size());
+		for (int i = 0; i < rabbitmqBrokerAddresses.size(); i++)
+			rotatedAddresses.add(rabbitmqBrokerAddresses.get((shardIndex + i) % rabbitmqBrokerAddresses.size()));
+		this.rabbitmqBrokerAddresses = rotatedAddresses;
+	}
+	
+	/**
+	 * Parses a comma-separated list of broker addresses, e.g. "node1:5671,node2:5671,node3"
+	 * 
+	 * @param addresses: the comma-separated list of addresses, each with an optional port
+	 * @param defaultPort: the port of the addresses not specifying one
+	 * @return the list of addresses
+	 */
+	public static List<Address> parseBrokerAddresses(String addresses, int defaultPort) {
+		List<Address> brokerAddresses = new ArrayList<Address>();
+		for (String address : addresses.split(",")) {
+			address = address.trim();
+			if (address.isEmpty())
+				continue;
+			int portSeparator = address.lastIndexOf(':');
+			if (portSeparator > 0)
+				brokerAddresses.add(new Address(address.substring(0, portSeparator), Integer.parseInt(address.substring(portSeparator + 1))));
+			else
+				brokerAddresses.add(new Address(address, defaultPort));
+		}
+		return brokerAddresses;
+	}
 }
@@ -0,0 +1,189 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * Registry of the exchanges, queues and bindings declared by a client. Each of them is declared
+ * on the broker only the first time it is requested, then remembered, so that publishing a message
+ * does not cost a synchronous declare round-trip every time. After a connection recovery, everything
+ * remembered is declared again with {@link #recover(Channel)}.
+ *
+ * Only named queues are remembered: server-named queues get a new name on each declaration and are
+ * therefore declared by their owner.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQClient
+ */
+public class RabbitMQTopologyRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQTopologyRegistry.class);
+
+	/**
+	 * Exchanges declared, by name
+	 */
+	private final Map<String, ExchangeDeclaration> exchanges = new ConcurrentHashMap<String, ExchangeDeclaration>();
+
+	/**
+	 * Queues declared, by name
+	 */
+	private final Map<String, QueueDeclaration> queues = new ConcurrentHashMap<String, QueueDeclaration>();
+
+	/**
+	 * Bindings declared, by queue, exchange and routing key
+	 */
+	private final Map<String, BindingDeclaration> bindings = new ConcurrentHashMap<String, BindingDeclaration>();
+
+	/**
+	 * Checks if an exchange has already been declared through this registry
+	 *
+	 * @param exchangeName: the name of the exchange
+	 * @return true if the exchange has already been declared
+	 */
+	public boolean isExchangeDeclared(String exchangeName) {
+		return this.exchanges.containsKey(exchangeName);
+	}
+
+	/**
+	 * Declares an exchange, unless it has already been declared through this registry
+	 *
+	 * @param channel: the channel to use for the declaration
+	 * @param exchangeName: the name of the exchange
+	 * @param exchangeType: the type of the exchange (e.g. RabbitMQClient.EXCHANGE_TYPE_TOPIC)
+	 * @param durable: true if the exchange should survive a broker restart
+	 *
+	 * @throws IOException: if the exchange could not be declared
+	 */
+	public void declareExchange(Channel channel, String exchangeName, String exchangeType, boolean durable) throws IOException {
+		if (this.exchanges.containsKey(exchangeName))
+			return;
+		synchronized (this.exchanges) {
+			if (this.exchanges.containsKey(exchangeName))
+				return;
+			ExchangeDeclaration declaration = new ExchangeDeclaration(exchangeName, exchangeType, durable);
+			declaration.declare(channel);
+			this.exchanges.put(exchangeName, declaration);
+		}
+	}
+
+	/**
+	 * Declares a named queue, unless it has already been declared through this registry
+	 *
+	 * @param channel: the channel to use for the declaration
+	 * @param queueName: the name of the queue
+	 * @param durable: true if the queue should survive a broker restart
+	 * @param exclusive: true if the queue is restricted to this connection
+	 * @param autoDelete: true if the queue should be deleted when no longer in use
+	 *
+	 * @throws IOException: if the queue could not be declared
+	 */
+	public void declareQueue(Channel channel, String queueName, boolean durable, boolean exclusive, boolean autoDelete) throws IOException {
+		if (this.queues.containsKey(queueName))
+			return;
+		synchronized (this.queues) {
+			if (this.queues.containsKey(queueName))
+				return;
+			QueueDeclaration declaration = new QueueDeclaration(queueName, durable, exclusive, autoDelete);
+			declaration.declare(channel);
+			this.queues.put(queueName, declaration);
+		}
+	}
+
+	/**
+	 * Binds a named queue to an exchange, unless it has already been bound through this registry
+	 *
+	 * @param channel: the channel to use for the declaration
+	 * @param queueName: the name of the queue
+	 * @param exchangeName: the name of the exchange
+	 * @param routingKey: the binding key
+	 *
+	 * @throws IOException: if the binding could not be declared
+	 */
+	public void declareBinding(Channel channel, String queueName, String exchangeName, String routingKey) throws IOException {
+		String key = queueName + "|" + exchangeName + "|" + routingKey;
+		if (this.bindings.containsKey(key))
+			return;
+		synchronized (this.bindings) {
+			if (this.bindings.containsKey(key))
+				return;
+			BindingDeclaration declaration = new BindingDeclaration(queueName, exchangeName, routingKey);
+			declaration.declare(channel);
+			this.bindings.put(key, declaration);
+		}
+	}
+
+	/**
+	 * Declares again all the exchanges, queues and bindings remembered, e.g. after a connection recovery
+	 *
+	 * @param channel: the channel to use for the declarations
+	 *
+	 * @throws IOException: if a declaration failed
+	 */
+	public void recover(Channel channel) throws IOException {
+		logger.info("Recovering topology: " + this.exchanges.size() + " exchange(s), " + this.queues.size()
+				+ " queue(s), " + this.bindings.size() + " binding(s)");
+		for (ExchangeDeclaration declaration : this.exchanges.values())
+			declaration.declare(channel);
+		for (QueueDeclaration declaration : this.queues.values())
+			declaration.declare(channel);
+		for (BindingDeclaration declaration : this.bindings.values())
+			declaration.declare(channel);
+	}
+
+	private static class ExchangeDeclaration {
+		private final String name;
+		private final String type;
+		private final boolean durable;
+
+		ExchangeDeclaration(String name, String type, boolean durable) {
+			this.name = name;
+			this.type = type;
+			this.durable = durable;
+		}
+
+		void declare(Channel channel) throws IOException {
+			channel.exchangeDeclare(this.name, this.type, this.durable);
+		}
+	}
+
+	private static class QueueDeclaration {
+		private final String name;
+		private final boolean durable;
+		private final boolean exclusive;
+		private final boolean autoDelete;
+
+		QueueDeclaration(String name, boolean durable, boolean exclusive, boolean autoDelete) {
+			this.name = name;
+			this.durable = durable;
+			this.exclusive = exclusive;
+			this.autoDelete = autoDelete;
+		}
+
+		void declare(Channel channel) throws IOException {
+			channel.queueDeclare(this.name, this.durable, this.exclusive, this.autoDelete, null);
+		}
+	}
+
+	private static class BindingDeclaration {
+		private final String queueName;
+		private final String exchangeName;
+		private final String routingKey;
+
+		BindingDeclaration(String queueName, String exchangeName, String routingKey) {
+			this.queueName = queueName;
+			this.exchangeName = exchangeName;
+			this.routingKey = routingKey;
+		}
+
+		void declare(Channel channel) throws IOException {
+			channel.queueBind(this.queueName, this.exchangeName, this.routingKey);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Consumer dispatching each delivery to a bounded pool of worker threads, so that several
+ * requests can be handled in parallel instead of one at a time on the AMQP dispatch thread.
+ * The delivery is acknowledged once the delegate consumer has returned (i.e. once the response
+ * has been published), or rejected if the delegate threw an exception.
+ * 
+ * In asynchronous mode, a delegate implementing RabbitMQAsyncConsumer only occupies a worker thread while it sends
+ * the upstream request: the delivery is acknowledged as a continuation, once the response is published and confirmed.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see @{link com.rabbitmq.client.Consumer}
+ */
+public class RabbitMQWorkerPoolConsumer extends DefaultConsumer {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQWorkerPoolConsumer.class);
+
+	/**
+	 * The consumer actually handling the deliveries
+	 */
+	private Consumer delegate;
+
+	/**
+	 * The pool of worker threads on which deliveries are handled
+	 */
+	private ExecutorService workerPool;
+
+	/**
+	 * True to handle the deliveries asynchronously, if the delegate consumer supports it
+	 */
+	private boolean asyncDeliveries = false;
+
+	/**
+	 * Constructor of RabbitMQWorkerPoolConsumer
+	 *
+	 * @param channel: the channel on which the deliveries are consumed and acknowledged
+	 * @param delegate: the consumer actually handling the deliveries
+	 * @param workerPool: the pool of worker threads on which deliveries are handled
+	 */
+	public RabbitMQWorkerPoolConsumer(Channel channel, Consumer delegate, ExecutorService workerPool) {
+		super(channel);
+		this.delegate = delegate;
+		this.workerPool = workerPool;
+	}
+
+	/**
+	 * Submits the delivery to the worker pool, then acknowledges or rejects it once handled
+	 */
+	@Override
+	public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+		try {
+			this.workerPool.execute(() -> process(consumerTag, envelope, properties, body));
+		} catch (RejectedExecutionException e) {
+			// The pool is shutting down: gives the message back to the broker
+			logger.warn("Worker pool rejected delivery " + envelope.getDeliveryTag() + ", requeuing it");
+			this.getChannel().basicNack(envelope.getDeliveryTag(), false, true);
+		}
+	}
+
+	/**
+	 * Handles a single delivery with the delegate consumer and acknowledges it.
+	 * A failed delivery is requeued once, then dropped if it fails again when redelivered.
+	 */
+	private void process(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+		if (this.asyncDeliveries && this.delegate instanceof RabbitMQAsyncConsumer) {
+			this.processAsync(consumerTag, envelope, properties, body);
+			return;
+		}
+		try {
+			this.delegate.handleDelivery(consumerTag, envelope, properties, body);
+		} catch (Exception e) {
+			this.reject(envelope, e);
+			return;
+		}
+		this.ack(envelope);
+	}
+
+	/**
+	 * Starts handling a single delivery with the delegate consumer, and acknowledges it once its response is confirmed,
+	 * from whichever thread completes the response
+	 */
+	private void processAsync(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+		CompletableFuture<Void> handled;
+		try {
+			handled = ((RabbitMQAsyncConsumer) this.delegate).handleDeliveryAsync(consumerTag, envelope, properties, body);
+		} catch (RuntimeException e) {
+			this.reject(envelope, e);
+			return;
+		}
+		handled.whenComplete((result, error) -> {
+			if (error != null) {
+				this.reject(envelope, (error instanceof CompletionException && error.getCause() != null) ? error.getCause() : error);
+				return;
+			}
+			this.ack(envelope);
+		});
+	}
+
+	/**
+	 * Acknowledges a delivery once handled, or rejects it if the acknowledgement could not be sent
+	 */
+	private void ack(Envelope envelope) {
+		try {
+			this.getChannel().basicAck(envelope.getDeliveryTag(), false);
+		} catch (IOException e) {
+			this.reject(envelope, e);
+		} catch (ShutdownSignalException e) {
+			this.logClosedChannel(envelope, "acknowledge", e);
+		}
+	}
+
+	/**
+	 * Rejects a delivery that could not be handled: requeues it once, then drops it if it fails again when redelivered
+	 */
+	private void reject(Envelope envelope, Throwable cause) {
+		logger.error("Could not handle delivery " + envelope.getDeliveryTag() + ": " + cause.getMessage());
+		try {
+			this.getChannel().basicNack(envelope.getDeliveryTag(), false, !envelope.isRedeliver());
+		} catch (IOException nackException) {
+			logger.error("Could not reject delivery " + envelope.getDeliveryTag() + ": " + nackException.getMessage());
+		} catch (ShutdownSignalException nackException) {
+			this.logClosedChannel(envelope, "reject", nackException);
+		}
+	}
+
+	/**
+	 * Logs a delivery that cannot be acknowledged nor rejected anymore because its channel has been closed
+	 * (e.g. connection lost, then recovered on a new channel): the broker redelivers it on its own.
+	 * Covers AlreadyClosedException, which is a ShutdownSignalException.
+	 */
+	private void logClosedChannel(Envelope envelope, String action, ShutdownSignalException cause) {
+		logger.warn("Could not " + action + " delivery " + envelope.getDeliveryTag() + ": its channel is closed ("
+				+ cause.getMessage() + "), the broker will redeliver it");
+	}
+
+	/**
+	 * Setter for the asynchronous handling of the deliveries
+	 * @param asyncDeliveries: true to handle the deliveries asynchronously, if the delegate consumer supports it
+	 */
+	public void setAsyncDeliveries(boolean asyncDeliveries) {
+		this.asyncDeliveries = asyncDeliveries;
+	}
+
+	@Override
+	public void handleConsumeOk(String consumerTag) {
+		super.handleConsumeOk(consumerTag);
+		this.delegate.handleConsumeOk(consumerTag);
+	}
+
+	@Override
+	public void handleCancelOk(String consumerTag) {
+		this.delegate.handleCancelOk(consumerTag);
+	}
+
+	@Override
+	public void handleCancel(String consumerTag) throws IOException {
+		this.delegate.handleCancel(consumerTag);
+	}
+
+	@Override
+	public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+		this.delegate.handleShutdownSignal(consumerTag, sig);
+	}
+}
@@ -5,6 +5,8 @@ import javax.net.ssl.HttpsURLConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.rmit.eres.amqpclient.RabbitMQBufferPool;
+import edu.rmit.eres.amqpclient.RabbitMQChunkedReplyStream;
 import edu.rmit.eres.amqpclient.RabbitMQListener;
 
 /**
@@ -28,6 +30,19 @@ public class ExamplesDatasource {
 	private static final String DEFAULT_RABBITMQ_PASSWORD = "estored-user-pw";
 	private static final String DEFAULT_RABBITMQ_VHOST = "/estored";
 	private static final String DEFAULT_RABBITMQ_SSL_PROTOCOL = "tlsv1.2";
+	private static final int DEFAULT_RABBITMQ_PREFETCH_COUNT = RabbitMQListener.DEFAULT_PREFETCH_COUNT;
+	private static final int DEFAULT_WORKER_POOL_SIZE = RabbitMQListener.DEFAULT_WORKER_POOL_SIZE;
+	private static final Boolean DEFAULT_VIRTUAL_THREADS = false;
+	private static final Boolean DEFAULT_RABBITMQ_PUBLISHER_CONFIRMS = false;
+	private static final int DEFAULT_RABBITMQ_RECONNECT_MAX_ATTEMPTS = RabbitMQListener.DEFAULT_RECONNECT_MAX_ATTEMPTS;
+	private static final long DEFAULT_RABBITMQ_RECONNECT_INITIAL_DELAY = RabbitMQListener.DEFAULT_RECONNECT_INITIAL_DELAY;
+	private static final long DEFAULT_RABBITMQ_RECONNECT_MAX_DELAY = RabbitMQListener.DEFAULT_RECONNECT_MAX_DELAY;
+	private static final Boolean DEFAULT_RABBITMQ_COMPETING_CONSUMERS = false;
+	private static final String DEFAULT_RABBITMQ_WORK_QUEUE = "estored.ds.examples";
+	private static final int DEFAULT_RABBITMQ_CONNECTION_COUNT = 1;
+	private static final int DEFAULT_RABBITMQ_REPLY_CHUNK_SIZE = RabbitMQChunkedReplyStream.DEFAULT_CHUNK_SIZE;
+	private static final int DEFAULT_RABBITMQ_REPLY_COMPRESSION_THRESHOLD = RabbitMQChunkedReplyStream.DEFAULT_COMPRESSION_THRESHOLD;
+	private static final long DEFAULT_BUFFER_POOL_SIZE = RabbitMQBufferPool.DEFAULT_MAX_RETAINED_SIZE;
 	
 	/**
 	 * Start of the eStoRED Examples Datasource program
@@ -42,22 +57,68 @@ public class ExamplesDatasource {
 			final String rabbitmqPassword = (System.getenv("RABBITMQ_USER_PASSWORD") != null) ? System.getenv("RABBITMQ_USER_PASSWORD") : DEFAULT_RABBITMQ_PASSWORD;
 			final String rabbitmqVhost = (System.getenv("DEFAULT_RABBITMQ_VHOST") != null) ? System.getenv("DEFAULT_RABBITMQ_VHOST") : DEFAULT_RABBITMQ_VHOST;
 			final String rabbitmqSslprotocol = DEFAULT_RABBITMQ_SSL_PROTOCOL;
+			final int rabbitmqPrefetchCount = (System.getenv("RABBITMQ_PREFETCH_COUNT") != null) ? new Integer(System.getenv("RABBITMQ_PREFETCH_COUNT")) : DEFAULT_RABBITMQ_PREFETCH_COUNT;
+			final int workerPoolSize = (System.getenv("WORKER_POOL_SIZE") != null) ? new Integer(System.getenv("WORKER_POOL_SIZE")) : DEFAULT_WORKER_POOL_SIZE;
+			final Boolean virtualThreads = (System.getenv("VIRTUAL_THREADS") != null) ? Boolean.valueOf(System.getenv("VIRTUAL_THREADS")) : DEFAULT_VIRTUAL_THREADS;
+			// By default, one publishing channel per worker so that workers never wait for a channel
+			final int rabbitmqChannelPoolSize = (System.getenv("RABBITMQ_CHANNEL_POOL_SIZE") != null) ? new Integer(System.getenv("RABBITMQ_CHANNEL_POOL_SIZE")) : workerPoolSize;
+			final Boolean rabbitmqPublisherConfirms = (System.getenv("RABBITMQ_PUBLISHER_CONFIRMS") != null) ? Boolean.valueOf(System.getenv("RABBITMQ_PUBLISHER_CONFIRMS")) : DEFAULT_RABBITMQ_PUBLISHER_CONFIRMS;
+			final int rabbitmqReconnectMaxAttempts = (System.getenv("RABBITMQ_RECONNECT_MAX_ATTEMPTS") != null) ? new Integer(System.getenv("RABBITMQ_RECONNECT_MAX_ATTEMPTS")) : DEFAULT_RABBITMQ_RECONNECT_MAX_ATTEMPTS;
+			final long rabbitmqReconnectInitialDelay = (System.getenv("RABBITMQ_RECONNECT_INITIAL_DELAY") != null) ? new Long(System.getenv("RABBITMQ_RECONNECT_INITIAL_DELAY")) : DEFAULT_RABBITMQ_RECONNECT_INITIAL_DELAY;
+			final long rabbitmqReconnectMaxDelay = (System.getenv("RABBITMQ_RECONNECT_MAX_DELAY") != null) ? new Long(System.getenv("RABBITMQ_RECONNECT_MAX_DELAY")) : DEFAULT_RABBITMQ_RECONNECT_MAX_DELAY;
+			final Boolean rabbitmqCompetingConsumers = (System.getenv("RABBITMQ_COMPETING_CONSUMERS") != null) ? Boolean.valueOf(System.getenv("RABBITMQ_COMPETING_CONSUMERS")) : DEFAULT_RABBITMQ_COMPETING_CONSUMERS;
+			final String rabbitmqWorkQueue = (System.getenv("RABBITMQ_WORK_QUEUE") != null) ? System.getenv("RABBITMQ_WORK_QUEUE") : DEFAULT_RABBITMQ_WORK_QUEUE;
+			final String rabbitmqAddresses = System.getenv("RABBITMQ_BROKER_ADDRESSES");
+			final int rabbitmqConnectionCount = (System.getenv("RABBITMQ_CONNECTION_COUNT") != null) ? new Integer(System.getenv("RABBITMQ_CONNECTION_COUNT")) : DEFAULT_RABBITMQ_CONNECTION_COUNT;
+			final int rabbitmqReplyChunkSize = (System.getenv("RABBITMQ_REPLY_CHUNK_SIZE") != null) ? new Integer(System.getenv("RABBITMQ_REPLY_CHUNK_SIZE")) : DEFAULT_RABBITMQ_REPLY_CHUNK_SIZE;
+			final int rabbitmqReplyCompressionThreshold = (System.getenv("RABBITMQ_REPLY_COMPRESSION_THRESHOLD") != null) ? new Integer(System.getenv("RABBITMQ_REPLY_COMPRESSION_THRESHOLD")) : DEFAULT_RABBITMQ_REPLY_COMPRESSION_THRESHOLD;
+			final long bufferPoolSize = (System.getenv("BUFFER_POOL_SIZE") != null) ? new Long(System.getenv("BUFFER_POOL_SIZE")) : DEFAULT_BUFFER_POOL_SIZE;
 			
 			HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> hostname.equals(System.getenv("RABBITMQ_BROKER_ADDRESS")));
 			
 			try {
 				logger.info("Trying to connect: " + rabbitmqUsername + ":" + rabbitmqPassword + "@" + rabbitmqHost + ":" + rabbitmqPort + "/" + rabbitmqVhost + " (" + rabbitmqSslprotocol + ")");
-				RabbitMQListener listener = new RabbitMQListener(
-						rabbitmqHost,
-						rabbitmqPort, 
-						rabbitmqSslprotocol, 
-						rabbitmqVhost, 
-						rabbitmqUsername, 
-						rabbitmqPassword);
-		    	listener.openConnection();
-				listener.listen("amq.topic", "estored.ds.examples.#");
+				// Reply buffers are reused from one request to the next instead of being allocated for each request
+				RabbitMQBufferPool.setDefault(new RabbitMQBufferPool(bufferPoolSize));
+				
+				// Opens one connection per shard, each with its own consumer, spread across the cluster nodes
+				for (int shard = 0; shard < rabbitmqConnectionCount; shard++) {
+					RabbitMQListener listener = new RabbitMQListener(
+							rabbitmqHost,
+							rabbitmqPort, 
+							rabbitmqSslprotocol, 
+							rabbitmqVhost, 
+							rabbitmqUsername, 
+							rabbitmqPassword);
+					if (rabbitmqAddresses != null)
+						listener.setBrokerAddresses(RabbitMQListener.parseBrokerAddresses(rabbitmqAddresses, rabbitmqPort), shard);
+					listener.setPrefetchCount(rabbitmqPrefetchCount);
+					listener.setWorkerPoolSize(workerPoolSize);
+					listener.setVirtualThreads(virtualThreads);
+					listener.setChannelPoolSize(rabbitmqChannelPoolSize);
+					listener.setPublisherConfirms(rabbitmqPublisherConfirms);
+					listener.setReconnectMaxAttempts(rabbitmqReconnectMaxAttempts);
+					listener.setReconnectDelays(rabbitmqReconnectInitialDelay, rabbitmqReconnectMaxDelay);
+					// Exits rather than staying up without consuming, once the connection cannot be recovered anymore
+					listener.setReconnectionFailureHandler(() -> {
+						logger.error("Could not reconnect to the RabbitMQ broker, exiting");
+						System.exit(1);
+					});
+					listener.setReplyChunkSize(rabbitmqReplyChunkSize);
+					listener.setReplyCompressionThreshold(rabbitmqReplyCompressionThreshold);
+				
+					// Retries with exponential backoff, then keeps reconnecting whenever the connection is lost
+					if (!listener.connect()) {
+						logger.error("Could not connect to the RabbitMQ broker, exiting");
+						System.exit(1);
+					}
+					// In competing consumers mode, all the instances share one durable work queue and split the requests.
+					// Several connections of the same instance also have to share it, so as not to receive every request several times.
+					listener.listen("amq.topic", "estored.ds.examples.#", (rabbitmqCompetingConsumers || rabbitmqConnectionCount > 1) ? rabbitmqWorkQueue : null);
+				}
 	    	} catch (Exception e) {
 				e.printStackTrace();
+				System.exit(1);
 			}
 	  }
 	}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package edu.rmit.eres.amqpclient;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with full jitter, used to space out reconnection attempts to the broker.
+ * The delay before attempt n is drawn at random between 0 and min(maxDelay, initialDelay * 2^(n-1)),
+ * so that a fleet of connectors losing the broker at the same time does not reconnect all at once.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQClient
+ */
+public class RabbitMQBackoff {
+
+	/**
+	 * Delay ceiling of the first attempt, in milliseconds
+	 */
+	private final long initialDelay;
+
+	/**
+	 * Maximum delay ceiling, in milliseconds
+	 */
+	private final long maxDelay;
+
+	/**
+	 * Constructor of the backoff
+	 *
+	 * @param initialDelay: the delay ceiling of the first attempt, in milliseconds
+	 * @param maxDelay: the maximum delay ceiling, in milliseconds
+	 */
+	public RabbitMQBackoff(long initialDelay, long maxDelay) {
+		this.initialDelay = Math.max(1, initialDelay);
+		this.maxDelay = Math.max(this.initialDelay, maxDelay);
+	}
+
+	/**
+	 * Computes the ceiling of the delay before a given attempt, without jitter
+	 *
+	 * @param attempt: the number of the attempt, starting at 1
+	 * @return the delay ceiling, in milliseconds
+	 */
+	public long getDelayCeiling(int attempt) {
+		int shift = Math.min(Math.max(attempt - 1, 0), 30);
+		long ceiling = this.initialDelay << shift;
+		return (ceiling <= 0 || ceiling > this.maxDelay) ? this.maxDelay : ceiling;
+	}
+
+	/**
+	 * Draws the delay to wait before a given attempt
+	 *
+	 * @param attempt: the number of the attempt, starting at 1
+	 * @return the delay to wait, in milliseconds
+	 */
+	public long nextDelay(int attempt) {
+		return ThreadLocalRandom.current().nextLong(this.getDelayCeiling(attempt) + 1);
+	}
+}
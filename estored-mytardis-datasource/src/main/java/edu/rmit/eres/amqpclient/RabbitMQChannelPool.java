@@ -0,0 +1,194 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+
+/**
+ * Bounded pool of RabbitMQ channels opened on a single connection. AMQP channels must not be
+ * shared between threads, so each publisher leases a channel from the pool for the duration
+ * of its publish and returns it afterwards. Channels found closed are discarded and replaced.
+ * In publisher confirms mode, each channel is put in confirm mode and tracked by its own
+ * {@link RabbitMQConfirmTracker}.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQClient
+ */
+public class RabbitMQChannelPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQChannelPool.class);
+
+	/**
+	 * Maximum time to wait for a channel to be available, in milliseconds
+	 */
+	public final static long BORROW_TIMEOUT_MS = 30000;
+
+	/**
+	 * Connection on which the channels are opened
+	 */
+	private Connection connection;
+
+	/**
+	 * Channels currently not leased
+	 */
+	private LinkedBlockingQueue<Channel> idleChannels;
+
+	/**
+	 * Permits limiting the number of channels opened by the pool
+	 */
+	private Semaphore permits;
+
+	/**
+	 * True if the channels are put in publisher confirms mode
+	 */
+	private boolean publisherConfirms;
+
+	/**
+	 * Confirm trackers of the channels opened by the pool, when in publisher confirms mode
+	 */
+	private Map<Channel, RabbitMQConfirmTracker> confirmTrackers = new ConcurrentHashMap<Channel, RabbitMQConfirmTracker>();
+
+	/**
+	 * Constructor of the channel pool
+	 *
+	 * @param connection: the connection on which the channels are opened
+	 * @param maxSize: the maximum number of channels opened by the pool
+	 */
+	public RabbitMQChannelPool(Connection connection, int maxSize) {
+		this(connection, maxSize, false);
+	}
+
+	/**
+	 * Constructor of the channel pool
+	 *
+	 * @param connection: the connection on which the channels are opened
+	 * @param maxSize: the maximum number of channels opened by the pool
+	 * @param publisherConfirms: true to put the channels in publisher confirms mode
+	 */
+	public RabbitMQChannelPool(Connection connection, int maxSize, boolean publisherConfirms) {
+		this.connection = connection;
+		this.publisherConfirms = publisherConfirms;
+		this.idleChannels = new LinkedBlockingQueue<Channel>(maxSize);
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Leases a channel from the pool, opening a new one if no open channel is idle.
+	 * The channel must be given back with {@link #returnChannel(Channel)}.
+	 *
+	 * @return an open channel, for the exclusive use of the caller
+	 *
+	 * @throws IOException: if no channel became available in time or a new channel could not be opened
+	 */
+	public Channel borrowChannel() throws IOException {
+		try {
+			if (!this.permits.tryAcquire(BORROW_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+				throw new IOException("No RabbitMQ channel available after " + BORROW_TIMEOUT_MS + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a RabbitMQ channel", e);
+		}
+
+		try {
+			Channel channel;
+			while ((channel = this.idleChannels.poll()) != null) {
+				if (channel.isOpen())
+					return channel;
+				logger.debug("Discarding closed channel " + channel.getChannelNumber());
+				this.discard(channel);
+			}
+			return this.createChannel();
+		} catch (IOException | RuntimeException e) {
+			this.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a leased channel back to the pool. A channel that has been closed in the meantime is dropped,
+	 * so that a new one is opened on next lease.
+	 *
+	 * @param channel: the channel previously obtained from {@link #borrowChannel()}
+	 */
+	public void returnChannel(Channel channel) {
+		if (channel == null)
+			return;
+		if (!channel.isOpen() || !this.idleChannels.offer(channel))
+			this.discard(channel);
+		this.permits.release();
+	}
+
+	/**
+	 * Closes all the idle channels of the pool
+	 */
+	public void close() {
+		Channel channel;
+		while ((channel = this.idleChannels.poll()) != null)
+			this.discard(channel);
+	}
+
+	/**
+	 * Getter for the confirm tracker of a channel opened by the pool
+	 *
+	 * @param channel: a channel leased from the pool
+	 * @return the confirm tracker of the channel, or null if the pool is not in publisher confirms mode
+	 */
+	public RabbitMQConfirmTracker getConfirmTracker(Channel channel) {
+		return this.confirmTrackers.get(channel);
+	}
+
+	/**
+	 * Getter for the publisher confirms mode
+	 * @return true if the channels of the pool are in publisher confirms mode
+	 */
+	public boolean isPublisherConfirms() {
+		return this.publisherConfirms;
+	}
+
+	/**
+	 * Opens a new channel on the connection of the pool
+	 *
+	 * @return the new channel
+	 *
+	 * @throws IOException: if the channel could not be opened
+	 */
+	protected Channel createChannel() throws IOException {
+		Channel channel = this.connection.createChannel();
+		if (channel == null)
+			throw new IOException("No RabbitMQ channel number available on the connection");
+		if (this.publisherConfirms) {
+			RabbitMQConfirmTracker tracker = new RabbitMQConfirmTracker();
+			channel.addConfirmListener(tracker);
+			channel.addShutdownListener(tracker);
+			channel.confirmSelect();
+			this.confirmTrackers.put(channel, tracker);
+		}
+		logger.debug("Opened pooled channel " + channel.getChannelNumber());
+		return channel;
+	}
+
+	/**
+	 * Closes a channel and forgets about it
+	 * @param channel: the channel to discard
+	 */
+	private void discard(Channel channel) {
+		this.confirmTrackers.remove(channel);
+		try {
+			if (channel.isOpen())
+				channel.close();
+		} catch (IOException | TimeoutException | RuntimeException e) {
+			logger.debug("Could not close channel: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Tracks the messages published on a channel in confirm mode, until the broker acknowledges them.
+ * Outstanding messages are kept in a map sorted by publish sequence number, so that a confirmation
+ * covering multiple messages clears all of them at once. Each publish gets a future completed on
+ * confirmation, or completed exceptionally if the broker rejects the message or the channel closes.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQChannelPool
+ */
+public class RabbitMQConfirmTracker implements ConfirmListener, ShutdownListener {
+
+	/**
+	 * Futures of the messages not yet confirmed, by publish sequence number
+	 */
+	private final ConcurrentNavigableMap<Long, CompletableFuture<Void>> outstandingConfirms =
+			new ConcurrentSkipListMap<Long, CompletableFuture<Void>>();
+
+	/**
+	 * Registers a message about to be published, to be called before publishing it
+	 *
+	 * @param sequenceNumber: the publish sequence number of the message (see Channel#getNextPublishSeqNo())
+	 * @return a future completed when the broker confirms the message
+	 */
+	public CompletableFuture<Void> register(long sequenceNumber) {
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+		this.outstandingConfirms.put(sequenceNumber, future);
+		return future;
+	}
+
+	/**
+	 * Getter for the number of messages not yet confirmed
+	 * @return the number of messages not yet confirmed
+	 */
+	public int getOutstandingCount() {
+		return this.outstandingConfirms.size();
+	}
+
+	@Override
+	public void handleAck(long deliveryTag, boolean multiple) {
+		for (CompletableFuture<Void> future : this.remove(deliveryTag, multiple))
+			future.complete(null);
+	}
+
+	@Override
+	public void handleNack(long deliveryTag, boolean multiple) {
+		for (CompletableFuture<Void> future : this.remove(deliveryTag, multiple))
+			future.completeExceptionally(new IOException("Message " + deliveryTag + " rejected by the broker"));
+	}
+
+	@Override
+	public void shutdownCompleted(ShutdownSignalException cause) {
+		for (Long sequenceNumber : this.outstandingConfirms.keySet()) {
+			CompletableFuture<Void> future = this.outstandingConfirms.remove(sequenceNumber);
+			if (future != null)
+				future.completeExceptionally(new IOException("Channel closed before message " + sequenceNumber + " was confirmed", cause));
+		}
+	}
+
+	/**
+	 * Removes the futures covered by a confirmation
+	 *
+	 * @param deliveryTag: the sequence number confirmed
+	 * @param multiple: true if all the sequence numbers up to and including deliveryTag are confirmed
+	 * @return the futures covered by the confirmation
+	 */
+	private List<CompletableFuture<Void>> remove(long deliveryTag, boolean multiple) {
+		if (!multiple) {
+			CompletableFuture<Void> future = this.outstandingConfirms.remove(deliveryTag);
+			return (future != null) ? Collections.singletonList(future) : Collections.<CompletableFuture<Void>>emptyList();
+		}
+		ConcurrentNavigableMap<Long, CompletableFuture<Void>> confirmed = this.outstandingConfirms.headMap(deliveryTag, true);
+		List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(confirmed.size());
+		for (Map.Entry<Long, CompletableFuture<Void>> entry : confirmed.entrySet()) {
+			if (confirmed.remove(entry.getKey(), entry.getValue()))
+				futures.add(entry.getValue());
+		}
+		return futures;
+	}
+}
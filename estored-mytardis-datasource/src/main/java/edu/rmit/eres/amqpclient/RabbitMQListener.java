@@ -1,12 +1,16 @@
 package edu.rmit.eres.amqpclient;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.rabbitmq.client.Consumer;
-
 /**
  * RabbitMQClient that is able to listen to a routing key
  * 
@@ -19,6 +23,57 @@ public class RabbitMQListener extends RabbitMQClient {
 	
 	private static final Logger logger = LoggerFactory.getLogger(RabbitMQListener.class);
 	
+	/**
+	 * Default maximum number of unacknowledged messages the broker pushes to this listener
+	 */
+	public final static int DEFAULT_PREFETCH_COUNT = 16;
+	
+	/**
+	 * Default number of worker threads handling the deliveries in parallel
+	 */
+	public final static int DEFAULT_WORKER_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+	
+	/**
+	 * Maximum number of unacknowledged messages the broker pushes to this listener (basic.qos)
+	 */
+	protected int prefetchCount = DEFAULT_PREFETCH_COUNT;
+	
+	/**
+	 * Number of worker threads handling the deliveries in parallel
+	 */
+	protected int workerPoolSize = DEFAULT_WORKER_POOL_SIZE;
+	
+	/**
+	 * True to handle the deliveries asynchronously, if the consumer supports it (see RabbitMQAsyncConsumer)
+	 */
+	protected boolean asyncDeliveries = false;
+	
+	/**
+	 * True to handle each delivery on a virtual thread of its own, if the runtime supports it (see RabbitMQVirtualThreadExecutor)
+	 */
+	protected boolean virtualThreads = false;
+	
+	/**
+	 * Pool of worker threads on which the deliveries are handled
+	 */
+	private ExecutorService workerPool;
+	
+	/**
+	 * Name of the exchange listened on, once listening
+	 */
+	private String listenedExchangeName;
+	
+	/**
+	 * Binding key listened for, once listening
+	 */
+	private String listenedBindingKey;
+	
+	/**
+	 * Name of the durable work queue shared with the other instances of the connector, or null 
+	 * to listen on a queue of its own
+	 */
+	private String workQueueName;
+	
 	/**
 	 * Constructor of RabbitMQ listener, requiring the info to connect to an RabbitMQ server
 	 * @see edu.rmit.eres.amqpclient.RabbitMQClient#RabbitMQClient(String, Integer, String, String, String, String, String)
@@ -39,20 +94,163 @@ public class RabbitMQListener extends RabbitMQClient {
 	}
 	
 	/**
-	 * Starts the listening to a given binding key on a given RabbitMQ exchange
+	 * Starts the listening to a given binding key on a given RabbitMQ exchange, on an exclusive queue of its own:
+	 * every instance of the connector receives every message.
+	 * Deliveries are handled in parallel by a bounded pool of worker threads and acknowledged manually 
+	 * once handled, with at most 'prefetchCount' unacknowledged messages pushed by the broker at a time.
 	 * 
 	 * @param exchangeName: the name of the exchange to be listened on
 	 * @param bindingKey: the binding key to listen for (see @link{https://www.rabbitmq.com/tutorials/tutorial-five-java.html}).
 	 * 
-	 * @throws IOException: RabbitMQ methods may throw this exception (queueDeclare, queueBind and basicConsume)
+	 * @throws IOException: RabbitMQ methods may throw this exception (basicQos, exchangeDeclare, queueDeclare, queueBind and basicConsume)
 	 */
 	public void listen(String exchangeName, String bindingKey) throws IOException {
-        String queueName = this.getChannel().queueDeclare().getQueue();
-        this.getChannel().queueBind(queueName, exchangeName, bindingKey);
+		this.listen(exchangeName, bindingKey, null);
+	}
+	
+	/**
+	 * Starts the listening to a given binding key on a given RabbitMQ exchange, through a named durable work queue 
+	 * shared by all the instances of the connector (competing consumers): each message is handled by one instance only,
+	 * so that adding instances adds throughput.
+	 * @see edu.rmit.eres.amqpclient.RabbitMQListener#listen(String, String)
+	 * 
+	 * @param exchangeName: the name of the exchange to be listened on
+	 * @param bindingKey: the binding key to listen for (see @link{https://www.rabbitmq.com/tutorials/tutorial-five-java.html}).
+	 * @param workQueueName: the name of the shared work queue (e.g. 'estored.ds.mytardis'), or null to listen on a queue of its own
+	 * 
+	 * @throws IOException: RabbitMQ methods may throw this exception (basicQos, exchangeDeclare, queueDeclare, queueBind and basicConsume)
+	 */
+	public void listen(String exchangeName, String bindingKey, String workQueueName) throws IOException {
+		this.listenedExchangeName = exchangeName;
+		this.listenedBindingKey = bindingKey;
+		this.workQueueName = workQueueName;
+		this.startConsuming(exchangeName, bindingKey);
+	}
+	
+	/**
+	 * Registers the consumer again on the new connection, after a connection loss
+	 * @see edu.rmit.eres.amqpclient.RabbitMQClient#onConnectionRecovered()
+	 */
+	@Override
+	protected void onConnectionRecovered() throws IOException {
+		if (this.listenedExchangeName != null)
+			this.startConsuming(this.listenedExchangeName, this.listenedBindingKey);
+	}
+	
+	/**
+	 * Declares the queue listened on and registers the consumer on the current channel
+	 * 
+	 * @param exchangeName: the name of the exchange to be listened on
+	 * @param bindingKey: the binding key to listen for
+	 * 
+	 * @throws IOException: RabbitMQ methods may throw this exception
+	 */
+	private void startConsuming(String exchangeName, String bindingKey) throws IOException {
+        this.getChannel().basicQos(this.prefetchCount);
+        
+        // Declares the exchange to which responses are sent once, instead of on every response
+        this.declareExchange(exchangeName, RabbitMQClient.EXCHANGE_TYPE_TOPIC, true);
         
-        Consumer consumer = new RabbitMQMyTardisConsumer(this.getChannel(), exchangeName);
-        this.getChannel().basicConsume(queueName, true, "estored-mytardis-datasource-consumer-channel", true, true, null, consumer);
+        String queueName;
+        boolean exclusive = (this.workQueueName == null);
+        if (exclusive) {
+        	// Server-named queue of its own, deleted with the connection
+        	queueName = this.getChannel().queueDeclare().getQueue();
+        	this.getChannel().queueBind(queueName, exchangeName, bindingKey);
+        }
+        else {
+        	// Durable queue shared with the other instances
+        	queueName = this.workQueueName;
+        	this.declareQueue(queueName, true, false, false);
+        	this.declareBinding(queueName, exchangeName, bindingKey);
+        }
         
-        logger.info("Listening to " + bindingKey + " on " + exchangeName);
+        RabbitMQWorkerPoolConsumer consumer = new RabbitMQWorkerPoolConsumer(this.getChannel(), 
+        		new RabbitMQMyTardisConsumer(this.getChannel(), this, exchangeName), this.getWorkerPool());
+        consumer.setAsyncDeliveries(this.asyncDeliveries);
+        this.getChannel().basicConsume(queueName, false, "estored-mytardis-datasource-consumer-channel", true, exclusive, null, consumer);
+        
+        logger.info("Listening to " + bindingKey + " on " + exchangeName + " through queue " + queueName 
+        		+ " (prefetch: " + this.prefetchCount + ", workers: " + this.workerPoolSize 
+        		+ ((this.getWorkerPool() instanceof RabbitMQVirtualThreadExecutor) ? " virtual threads" : "") + (this.asyncDeliveries ? ", asynchronous" : "") + ")");
+	}
+	
+	/**
+	 * Stops the worker pool, letting the deliveries in progress complete, then closes the channel and connection
+	 * @see edu.rmit.eres.amqpclient.RabbitMQClient#closeConnection()
+	 */
+	@Override
+	public boolean closeConnection() {
+		if (this.workerPool != null) {
+			this.workerPool.shutdown();
+			try {
+				this.workerPool.awaitTermination(30, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.workerPool = null;
+		}
+		return super.closeConnection();
+	}
+	
+	/**
+	 * Getter for the pool of worker threads, created on first use. Its queue is bounded by 
+	 * the prefetch count, as the broker never pushes more unacknowledged messages than that.
+	 * With virtual threads, each delivery gets a virtual thread of its own instead, and the worker pool size
+	 * only bounds the number of deliveries handled at the same time.
+	 * @return the pool of worker threads on which the deliveries are handled
+	 */
+	protected synchronized ExecutorService getWorkerPool() {
+		if (this.workerPool == null && this.virtualThreads) {
+			this.workerPool = RabbitMQVirtualThreadExecutor.create("estored-worker-", this.workerPoolSize);
+			if (this.workerPool == null)
+				logger.warn("Virtual threads require Java 21 or later, using a pool of " + this.workerPoolSize + " worker threads instead");
+		}
+		if (this.workerPool == null) {
+			final AtomicInteger threadCount = new AtomicInteger();
+			ThreadFactory threadFactory = (runnable) -> {
+				return new Thread(runnable, "estored-worker-" + threadCount.incrementAndGet());
+			};
+			this.workerPool = new ThreadPoolExecutor(this.workerPoolSize, this.workerPoolSize, 0L, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(Math.max(1, this.prefetchCount)), threadFactory, 
+					new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return this.workerPool;
+	}
+	
+	/**
+	 * Setter for the maximum number of unacknowledged messages the broker pushes to this listener
+	 * @param prefetchCount: the maximum number of unacknowledged messages (0 for unlimited)
+	 */
+	public void setPrefetchCount(int prefetchCount) {
+		this.prefetchCount = prefetchCount;
+	}
+	
+	/**
+	 * Setter for the number of worker threads handling the deliveries in parallel
+	 * @param workerPoolSize: the number of worker threads
+	 */
+	public void setWorkerPoolSize(int workerPoolSize) {
+		this.workerPoolSize = workerPoolSize;
+	}
+	
+	/**
+	 * Setter for the asynchronous handling of the deliveries: the worker threads only send the upstream requests, and
+	 * the deliveries are acknowledged once their responses are confirmed, so that the number of deliveries in progress
+	 * is only bounded by the prefetch count
+	 * @param asyncDeliveries: true to handle the deliveries asynchronously, if the consumer supports it
+	 */
+	public void setAsyncDeliveries(boolean asyncDeliveries) {
+		this.asyncDeliveries = asyncDeliveries;
+	}
+	
+	/**
+	 * Setter for the handling of each delivery on a virtual thread of its own, so that blocking handlers do not hold
+	 * a platform thread while waiting for I/O. The worker pool size then bounds the number of deliveries handled at the same time.
+	 * Requires Java 21 or later: falls back to the pool of worker threads on older runtimes.
+	 * @param virtualThreads: true to handle the deliveries on virtual threads
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
 	}
 }
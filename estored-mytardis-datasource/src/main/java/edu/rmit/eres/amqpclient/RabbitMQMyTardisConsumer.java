@@ -1,16 +1,15 @@
 package edu.rmit.eres.amqpclient;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
-import javax.net.ssl.HttpsURLConnection;
-
-import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.mytardis.api.client.TardisClient;
 import org.mytardis.api.model.DatasetFile;
 import org.mytardis.api.model.Parametername;
@@ -25,6 +24,9 @@ import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.LongString;
 
 import edu.rmit.eres.estored.datasource.mytardis.InstallCert;
+import edu.rmit.eres.estored.datasource.mytardis.MyTardisDownloader;
+import edu.rmit.eres.estored.datasource.mytardis.MyTardisFileCache;
+import edu.rmit.eres.estored.datasource.mytardis.MyTardisParameternameCache;
 
 /**
  * Consumer that handles RabbitMQ messages requesting to get a MyTardis data file
@@ -35,25 +37,45 @@ import edu.rmit.eres.estored.datasource.mytardis.InstallCert;
  * 
  * @see @{link com.rabbitmq.client.Consumer}
  */
-public class RabbitMQMyTardisConsumer extends DefaultConsumer {
+public class RabbitMQMyTardisConsumer extends DefaultConsumer implements RabbitMQAsyncConsumer {
 	
 	private static final Logger logger = LoggerFactory.getLogger(RabbitMQMyTardisConsumer.class);
 	
 	private static final Boolean DEFAULT_SSL_AUTOTRUST_SELFSIGNED = false;
 	
+	/**
+	 * Disk cache of the data files content, shared by all the consumers, or null if data files are not cached
+	 */
+	private static MyTardisFileCache fileCache = null;
+	
+	/**
+	 * Cache of the parameter names, shared by all the consumers, or null if parameter names are requested for each data file
+	 */
+	private static MyTardisParameternameCache parameternameCache = null;
+	
 	private String rabbitmqExchangeName;
 	
+	/**
+	 * RabbitMQ client providing the pooled channels on which responses are published
+	 */
+	private RabbitMQClient rabbitmqClient;
+	
 	/**
 	 * Default contructor of MyTardisConsumer, calling the parent class constructor @{link com.rabbitmq.client.DefaultConsumer}
-	 * @param channel: 
+	 * @param channel: the channel on which requests are consumed
+	 * @param rabbitmqClient: the RabbitMQ client on which responses are published
+	 * @param rabbitMqExchangeName: the name of the exchange to send responses to
 	 */
-	public RabbitMQMyTardisConsumer(Channel channel, String rabbitMqExchangeName) throws IOException {
+	public RabbitMQMyTardisConsumer(Channel channel, RabbitMQClient rabbitmqClient, String rabbitMqExchangeName) throws IOException {
 		super(channel);
+		this.rabbitmqClient = rabbitmqClient;
 		this.rabbitmqExchangeName = rabbitMqExchangeName;
 	}
 	
 	/**
 	 * Handles a request for retrieving a single MyTardis data file.
+	 * I/O errors (download or publishing of the response) are rethrown so that the delivery gets rejected.
+	 * The delivery is acknowledged only once the broker confirmed the response.
 	 */
     @Override
     public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
@@ -75,57 +97,209 @@ public class RabbitMQMyTardisConsumer extends DefaultConsumer {
     	TardisClient client = new TardisClient(myTardisHost, myTardisUser, myTardisPassword, myTardisProtocol);
     	
     	
-    	DatasetFile datasetFile = null;
-    	byte[] myTardisDatafileContent = null;
     	try {
-    		final Boolean trustSelfSigned = (System.getenv("SSL_AUTOTRUST_SELFSIGNED") != null) ? Boolean.valueOf(System.getenv("SSL_AUTOTRUST_SELFSIGNED")) : DEFAULT_SSL_AUTOTRUST_SELFSIGNED;
-    		
-        	// Trusts self-signed certificate
-        	if (myTardisProtocol.equals("https") && trustSelfSigned == true) {
-        		HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> hostname.equals(myTardisHost));
-        		InstallCert.installCert(myTardisHost);
-        	}
+    		trustSelfSignedCertificate(myTardisProtocol, myTardisHost);
         	
-    		// Retrieves file details with MyTardis API 
-    		logger.debug("Sending MyTardis request to " + myTardisHost);
-    		datasetFile = (DatasetFile) client.getObjectById(DatasetFile.class, datafileId);
-    		logger.debug("Received MyTardis Datasetfile.");
-    		
-    		// Builds the map of headers to attach to the response
-    		Map<String, Object> headers = buildHeaders(datasetFile, client);
-    		
-    		// Retrieves file content with MyTardis API
-        	logger.debug("Downloading MyTardis datafile content from " + myTardisHost);
-    		myTardisDatafileContent = client.getDatasetFileContentById(datafileId);
-    		logger.debug("Downloaded datafile content.");
-            
-            byte[] encodedData = Base64.encodeBase64(myTardisDatafileContent);
+            String returnRoutingKey = getReturnRoutingKey(envelope);
             
-   		 	// Trims the routing key to keep only the routing key to return
-            String returnRoutingKey = envelope.getRoutingKey()
-            		.replaceAll("estored.", "")
-            		.replaceAll("ds.", "")
-            		.replaceAll(".recompute", "");
+            String requestKey = getRequestKey(myTardisProtocol, myTardisHost, myTardisUser, myTardisPassword, datafileId, envelope);
         	
-            // Sends response back to new routing key, with the meta-data as message headers and the file content as message body
-            sendMessage(this.rabbitmqExchangeName, returnRoutingKey, datasetFile.getMimetype(), encodedData, headers);
+            // Sends response back to new routing key, with the meta-data as message headers and the file content as message body,
+            // streamed from MyTardis chunk by chunk. Identical requests in flight share the same MyTardis requests and download.
+            CompletableFuture<Void> confirmation = sendMessage(this.rabbitmqExchangeName, returnRoutingKey, requestKey, () -> {
+        		// Retrieves file details with MyTardis API 
+        		logger.debug("Sending MyTardis request to " + myTardisHost);
+        		DatasetFile datasetFile = (DatasetFile) client.getObjectById(DatasetFile.class, datafileId);
+        		logger.debug("Received MyTardis Datasetfile.");
+        		
+        		// Builds the map of headers to attach to the response
+        		Map<String, Object> headers = buildHeaders(datasetFile, client, myTardisHost);
+        		
+        		// Reads the content from the disk cache, unless a recomputation is requested
+        		final MyTardisFileCache cache = fileCache;
+        		String checksum = MyTardisFileCache.getChecksum(datasetFile);
+        		if (cache != null && !envelope.getRoutingKey().contains(".recompute")) {
+        			InputStream cached = cache.get(myTardisHost, datafileId, checksum);
+        			if (cached != null) {
+        				logger.debug("Reading MyTardis datafile content from the disk cache: " + cache);
+        				return new RabbitMQReplySource(cached, datasetFile.getMimetype(), getSize(datasetFile), headers);
+        			}
+        		}
+        		
+            	logger.debug("Downloading MyTardis datafile content from " + myTardisHost);
+            	MyTardisDownloader downloader = new MyTardisDownloader(myTardisHost, myTardisUser, myTardisPassword, myTardisProtocol);
+            	InputStream content = downloader.openStream(datafileId);
+            	if (cache != null)
+            		content = cache.capture(myTardisHost, datafileId, checksum, getSize(datasetFile), content);
+            	return new RabbitMQReplySource(content, datasetFile.getMimetype(), getSize(datasetFile), headers);
+            }, properties);
+            
+            // Acknowledges the request only once the broker confirmed the response, rejects it otherwise
+            RabbitMQClient.awaitConfirmation(confirmation);
     	
+    	} catch (IOException e) {
+    		logger.error(e.getMessage());
+    		throw e;
     	} catch (Exception e) {
     		logger.error(e.getMessage());
     	}            	
     }
     
+	/**
+	 * Handles a request for retrieving a single MyTardis data file without waiting for its content: the meta-data are still
+	 * retrieved with the MyTardis client, but the content is downloaded with the non-blocking HTTP client, and published
+	 * as it arrives, by the threads of a reply dispatcher rather than the I/O threads of the HTTP client (see MyTardisDownloader#downloadAsync).
+	 * I/O errors (download or publishing of the response) complete the future exceptionally so that the delivery gets rejected.
+	 */
+    @Override
+    public CompletableFuture<Void> handleDeliveryAsync(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+    	
+    	try {
+	    	// Extracts content of the received message body
+	    	String message = new String(body, "UTF-8");
+	    	logger.info("[handleDeliveryAsync] Received:'" + message + "'");
+	    	
+	    	// Extracts data from received message headers
+	    	Map<String, Object> receivedHeader = properties.getHeaders();
+	    	String myTardisHost = getStringFromHeader(receivedHeader.get("myTardisHost"));
+	    	String myTardisUser = getStringFromHeader(receivedHeader.get("myTardisUser"));
+	    	String myTardisPassword = getStringFromHeader(receivedHeader.get("myTardisPassword"));
+	    	String myTardisProtocol = getStringFromHeader(receivedHeader.get("myTardisProtocol"));
+	    	Integer datafileId = Integer.valueOf(getStringFromHeader(receivedHeader.get("datafileId")));
+	    	
+	    	TardisClient client = new TardisClient(myTardisHost, myTardisUser, myTardisPassword, myTardisProtocol);
+	    	
+    		trustSelfSignedCertificate(myTardisProtocol, myTardisHost);
+        	
+            String returnRoutingKey = getReturnRoutingKey(envelope);
+            
+            String requestKey = getRequestKey(myTardisProtocol, myTardisHost, myTardisUser, myTardisPassword, datafileId, envelope);
+            
+            CompletableFuture<Void> confirmation = this.rabbitmqClient.sendReplyAsync(this.rabbitmqExchangeName, returnRoutingKey, properties, requestKey, (receiver) -> {
+            	// The meta-data are retrieved by the worker, with the blocking MyTardis client
+        		logger.debug("Sending MyTardis request to " + myTardisHost);
+        		DatasetFile datasetFile = (DatasetFile) client.getObjectById(DatasetFile.class, datafileId);
+        		logger.debug("Received MyTardis Datasetfile.");
+        		
+        		Map<String, Object> headers = buildHeaders(datasetFile, client, myTardisHost);
+        		
+        		// Reads the content from the disk cache, unless a recomputation is requested
+        		final MyTardisFileCache cache = fileCache;
+        		String checksum = MyTardisFileCache.getChecksum(datasetFile);
+        		if (cache != null && !envelope.getRoutingKey().contains(".recompute")) {
+        			InputStream cached = cache.get(myTardisHost, datafileId, checksum);
+        			if (cached != null) {
+        				logger.debug("Reading MyTardis datafile content from the disk cache: " + cache);
+        				new RabbitMQReplySource(cached, datasetFile.getMimetype(), getSize(datasetFile), headers).transferTo(receiver);
+        				return;
+        			}
+        		}
+        		
+            	logger.debug("Downloading MyTardis datafile content from " + myTardisHost);
+            	MyTardisDownloader downloader = new MyTardisDownloader(myTardisHost, myTardisUser, myTardisPassword, myTardisProtocol);
+            	RabbitMQReplySource head = new RabbitMQReplySource(null, datasetFile.getMimetype(), getSize(datasetFile), headers);
+            	downloader.downloadAsync(datafileId, head, (cache != null) ? cache.capture(myTardisHost, datafileId, checksum, getSize(datasetFile), receiver) : receiver);
+            });
+            
+            confirmation.whenComplete((confirmed, error) -> {
+            	if (error != null)
+            		logger.error("[handleDeliveryAsync] Message to routing key '" + returnRoutingKey + "' not sent: " + error.getMessage());
+            	else
+            		logger.info("[handleDeliveryAsync] Sent message to routing key '" + returnRoutingKey + "'");
+            });
+            return confirmation;
+    	
+    	} catch (IOException e) {
+    		logger.error(e.getMessage());
+    		CompletableFuture<Void> failed = new CompletableFuture<Void>();
+    		failed.completeExceptionally(e);
+    		return failed;
+    	} catch (Exception e) {
+    		logger.error(e.getMessage());
+    		return CompletableFuture.completedFuture(null);
+    	}
+    }
+    
+    /**
+     * Trusts the self-signed certificate of a MyTardis instance, if enabled
+     * 
+     * @param myTardisProtocol: the protocol used (http or https)
+     * @param myTardisHost: the host name of the MyTardis instance
+     * 
+     * @throws Exception: if the certificate could not be installed
+     */
+    private void trustSelfSignedCertificate(String myTardisProtocol, String myTardisHost) throws Exception {
+		final Boolean trustSelfSigned = (System.getenv("SSL_AUTOTRUST_SELFSIGNED") != null) ? Boolean.valueOf(System.getenv("SSL_AUTOTRUST_SELFSIGNED")) : DEFAULT_SSL_AUTOTRUST_SELFSIGNED;
+		
+    	// Trusts self-signed certificate
+    	if (myTardisProtocol.equals("https") && trustSelfSigned == true) {
+    		InstallCert.installCert(myTardisHost);
+    	}
+    }
+    
+    /**
+     * Builds the key identifying identical requests, which share the same MyTardis requests and download: identical requests
+     * are for the same data file, on the same MyTardis instance, with the same credentials, and either all or none of them
+     * request a recomputation, so that a recomputation never gets the content of the disk cache, nor the reverse
+     * 
+     * @param myTardisProtocol: the protocol used (http or https)
+     * @param myTardisHost: the host name of the MyTardis instance
+     * @param myTardisUser: the name of the MyTardis user
+     * @param myTardisPassword: the password of the MyTardis user
+     * @param datafileId: the identifier of the data file
+     * @param envelope: the envelope of the request
+     * @return the key of the request
+     */
+    private String getRequestKey(String myTardisProtocol, String myTardisHost, String myTardisUser, String myTardisPassword, 
+    		Integer datafileId, Envelope envelope) {
+    	String requestKey = myTardisProtocol + "://" + myTardisUser + ":" + DigestUtils.sha256Hex(myTardisPassword) 
+    			+ "@" + myTardisHost + "/" + datafileId;
+    	return envelope.getRoutingKey().contains(".recompute") ? requestKey + "#recompute" : requestKey;
+    }
+    
+    /**
+     * Trims the routing key of a request to keep only the routing key to return
+     * 
+     * @param envelope: the envelope of the request
+     * @return the routing key to send the response to
+     */
+    private String getReturnRoutingKey(Envelope envelope) {
+        return envelope.getRoutingKey()
+        		.replaceAll("estored.", "")
+        		.replaceAll("ds.", "")
+        		.replaceAll(".recompute", "");
+    }
+    
+	/**
+	 * Sets the disk cache of the data files content, shared by all the consumers
+	 * 
+	 * @param cache: the cache of the data files content, or null not to cache data files
+	 */
+	public static void setFileCache(MyTardisFileCache cache) {
+		fileCache = cache;
+	}
+	
+	/**
+	 * Sets the cache of the parameter names, shared by all the consumers
+	 * 
+	 * @param cache: the cache of the parameter names, or null to request the parameter names for each data file
+	 */
+	public static void setParameternameCache(MyTardisParameternameCache cache) {
+		parameternameCache = cache;
+	}
+	
     /**
      * Prepares the headers for a given DatasetFile, retrieving existing meta-data of this DatasetFile on MyTardis
      * 
      * @param datasetFile: the DatasetFile to get meta-data from
      * @param client: the instance of MyTardis client where the DatasetFile is located
+     * @param myTardisHost: the host name of the MyTardis instance, under which the parameter names are cached
      * 
      * @return the map of headers to be sent along with the given DatasetFile
      * 
      * @throws Exception
      */
-	private Map<String, Object> buildHeaders(DatasetFile datasetFile, TardisClient client) throws Exception {
+	private Map<String, Object> buildHeaders(DatasetFile datasetFile, TardisClient client, String myTardisHost) throws Exception {
 		Map<String, Object> headers = new HashMap<String, Object>();
 		
 		// Adds basic headers with file info
@@ -138,6 +312,8 @@ public class RabbitMQMyTardisConsumer extends DefaultConsumer {
 		@SuppressWarnings("unchecked")
 		ArrayList<AbstractMap<Object, Object>> parameterSets = (ArrayList<AbstractMap<Object, Object>>) datasetFile.getParameterSets();
 
+		final MyTardisParameternameCache cache = parameternameCache;
+		
 		// Iterates through the parameters sets
 		for (AbstractMap<Object, Object> parameterSet : parameterSets) {
 			
@@ -150,7 +326,12 @@ public class RabbitMQMyTardisConsumer extends DefaultConsumer {
 				
 				// For each parameter, 
 				String parameterNameUri = (String)parameter.get("name");
-				Parametername parameterName = (Parametername) client.getObjectByUri(Parametername.class, parameterNameUri);
+				Parametername parameterName = (cache != null) ? cache.get(myTardisHost, parameterNameUri) : null;
+				if (parameterName == null) {
+					parameterName = (Parametername) client.getObjectByUri(Parametername.class, parameterNameUri);
+					if (cache != null)
+						cache.put(myTardisHost, parameterNameUri, parameterName);
+				}
 				
 				headers.put(parameterName.getFullName(), (String)parameter.get("string_value"));  
 				logger.debug("Adding Header: " + parameterName.getFullName() + " = " + (String)parameter.get("string_value"));
@@ -160,6 +341,20 @@ public class RabbitMQMyTardisConsumer extends DefaultConsumer {
 		return headers;
 	}
 	
+	/**
+	 * Gets the size of a DatasetFile as declared by MyTardis
+	 * 
+	 * @param datasetFile: the DatasetFile to get the size of
+	 * @return the size of the DatasetFile in bytes, or -1 if unknown
+	 */
+	private long getSize(DatasetFile datasetFile) {
+		try {
+			return Long.parseLong(datasetFile.getSize());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
 	/**
 	 * Extract a String from RabbitMQ header value Object
 	 * 
@@ -175,31 +370,31 @@ public class RabbitMQMyTardisConsumer extends DefaultConsumer {
 	}
 	
 	/**
-	 * Sends a message to the given routing key using the given content type, message body, and message headers
+	 * Sends a message to the given routing key, with the content, content type and headers retrieved from the given source.
+	 * The content is published in chunks as soon as it is read (see RabbitMQChunkedReplyStream), on pooled channels, 
+	 * so this can be called concurrently by several workers. Identical requests in flight share a single retrieval of the content.
 	 * 
 	 * @param exchangeName: the RabbitMQ exhange to which send the message to
 	 * @param routingKey: the routing key to send to message to
-	 * @param contentType: content-type of the message to send
-	 * @param message: body of the message to send
-	 * @param headers: headers of the message to send
+	 * @param requestKey: key identifying identical requests, or null if the content cannot be shared with other requests
+	 * @param sourceOpener: opens the source of the content of the message to send
+	 * @param requestProperties: properties of the request, giving the correlation id and accepted encodings of the message
+	 * @return a future completed once all the chunks are confirmed by the broker (see RabbitMQClient#publish)
+	 * 
+	 * @throws Exception: if the content could not be retrieved or the message could not be published
 	 */
-	public void sendMessage(String exchangeName, String routingKey, String contentType, byte[] message, Map<String, Object> headers) {
+	public CompletableFuture<Void> sendMessage(String exchangeName, String routingKey, String requestKey, 
+			RabbitMQReplySource.Opener sourceOpener, AMQP.BasicProperties requestProperties) throws Exception {
     	
-        try {
-        	this.getChannel().exchangeDeclare(exchangeName, RabbitMQClient.EXCHANGE_TYPE_TOPIC, true);
-        	
-        	this.getChannel().basicPublish(exchangeName, routingKey, new AMQP.BasicProperties.Builder()
-	                .contentType(contentType)
-	                .headers(headers)
-	                .build(), 
-	                message);
-	        
-	        logger.debug("[handleDelivery] Sent message to routing key '" + routingKey + "'");
-	        
-	    } catch (FileNotFoundException e) {
-	  		e.printStackTrace();
-	  	} catch (IOException e) {
-			e.printStackTrace();
-		}
+    	CompletableFuture<Void> confirmation = this.rabbitmqClient.sendReply(exchangeName, routingKey, requestProperties, requestKey, sourceOpener);
+        
+        logger.debug("[handleDelivery] Sent message to routing key '" + routingKey + "'");
+        
+        // Reports the responses lost by the broker instead of dropping them silently
+        confirmation.whenComplete((confirmed, error) -> {
+        	if (error != null)
+        		logger.error("[handleDelivery] Message to routing key '" + routingKey + "' not confirmed: " + error.getMessage());
+        });
+        return confirmation;
     }
 }
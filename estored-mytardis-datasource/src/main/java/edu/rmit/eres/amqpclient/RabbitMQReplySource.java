@@ -0,0 +1,128 @@
+package edu.rmit.eres.amqpclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content of a reply as retrieved from an upstream source (web service, MyTardis...): the stream of its
+ * content, along with its content type, length and the headers to send with it. Closing the source closes
+ * the stream, releasing the upstream connection.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQReplyCoalescer
+ */
+public class RabbitMQReplySource implements Closeable {
+
+	/**
+	 * Opens the source of a reply, e.g. by sending a request to a web service
+	 */
+	@FunctionalInterface
+	public interface Opener {
+		RabbitMQReplySource open() throws Exception;
+	}
+	
+	/**
+	 * Opens the source of a reply asynchronously, e.g. by sending a request to a web service with a non-blocking client:
+	 * returns as soon as the request is sent, the content being pushed to the receiver as it arrives
+	 */
+	@FunctionalInterface
+	public interface AsyncOpener {
+		void open(RabbitMQReplyReceiver receiver) throws Exception;
+	}
+
+	/**
+	 * Size of the blocks in which the content is pushed to a receiver, in bytes
+	 */
+	private final static int TRANSFER_BLOCK_SIZE = 64 * 1024;
+	
+	private InputStream content;
+
+	private String contentType;
+
+	private long contentLength;
+
+	private Map<String, Object> headers;
+
+	/**
+	 * Constructor of the reply source
+	 *
+	 * @param content: the stream of the content of the reply, or null if the content is pushed (see RabbitMQReplyReceiver)
+	 * @param contentType: content-type of the reply
+	 * @param contentLength: length of the content in bytes, or -1 if unknown
+	 * @param headers: headers to send with the reply
+	 */
+	public RabbitMQReplySource(InputStream content, String contentType, long contentLength, Map<String, Object> headers) {
+		this.content = content;
+		this.contentType = contentType;
+		this.contentLength = contentLength;
+		this.headers = (headers != null) ? headers : new HashMap<String, Object>();
+	}
+
+	/**
+	 * Getter for the stream of the content of the reply
+	 * @return the stream of the content of the reply, or null if the content is pushed
+	 */
+	public InputStream getContent() {
+		return this.content;
+	}
+
+	/**
+	 * Getter for the content-type of the reply
+	 * @return the content-type of the reply
+	 */
+	public String getContentType() {
+		return this.contentType;
+	}
+
+	/**
+	 * Getter for the length of the content of the reply
+	 * @return the length of the content in bytes, or -1 if unknown
+	 */
+	public long getContentLength() {
+		return this.contentLength;
+	}
+
+	/**
+	 * Getter for the headers to send with the reply
+	 * @return the headers to send with the reply
+	 */
+	public Map<String, Object> getHeaders() {
+		return this.headers;
+	}
+
+	/**
+	 * Pushes the whole content of the reply to a receiver, reading it on the calling thread
+	 * 
+	 * @param receiver: the receiver of the reply
+	 */
+	public void transferTo(RabbitMQReplyReceiver receiver) {
+		byte[] block = null;
+		try {
+			receiver.start(this);
+			block = RabbitMQBufferPool.getDefault().lease(TRANSFER_BLOCK_SIZE);
+			int read;
+			while ((read = this.content.read(block)) >= 0)
+				receiver.write(block, 0, read);
+			receiver.finish();
+		} catch (IOException e) {
+			receiver.fail(e);
+		} finally {
+			RabbitMQBufferPool.getDefault().release(block);
+			try {
+				this.close();
+			} catch (IOException e) {
+				// Content already read
+			}
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (this.content != null)
+			this.content.close();
+	}
+}
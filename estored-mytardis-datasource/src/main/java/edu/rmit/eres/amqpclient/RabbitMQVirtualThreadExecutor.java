@@ -0,0 +1,116 @@
+package edu.rmit.eres.amqpclient;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor starting a virtual thread for each delivery, so that the blocking handlers (HTTP downloads, MyTardis client,
+ * certificate installation) do not hold a platform thread while waiting for I/O. The number of deliveries handled
+ * at the same time is bounded by a semaphore, acquired by the virtual thread itself so that the AMQP dispatch thread
+ * never blocks.
+ *
+ * Virtual threads require Java 21 or later, while the connectors still run on Java 8: they are created by reflection,
+ * and #create returns null on older runtimes, in which case the listener falls back to a pool of platform threads.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQListener#getWorkerPool()
+ */
+public class RabbitMQVirtualThreadExecutor extends AbstractExecutorService {
+
+	private static final Logger logger = LoggerFactory.getLogger(RabbitMQVirtualThreadExecutor.class);
+
+	/**
+	 * Executor starting a new virtual thread for each task
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Permits for the tasks running at the same time
+	 */
+	private final Semaphore permits;
+
+	private RabbitMQVirtualThreadExecutor(ExecutorService executor, int maxConcurrency) {
+		this.executor = executor;
+		this.permits = new Semaphore(Math.max(1, maxConcurrency));
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread for each task, if the runtime supports virtual threads
+	 *
+	 * @param namePrefix: the prefix of the names of the virtual threads, followed by a counter
+	 * @param maxConcurrency: the maximum number of tasks running at the same time
+	 * @return the executor, or null if the runtime does not support virtual threads (before Java 21)
+	 */
+	public static RabbitMQVirtualThreadExecutor create(String namePrefix, int maxConcurrency) {
+		try {
+			// Thread.ofVirtual().name(namePrefix, 1).factory()
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+			ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+			// Executors.newThreadPerTaskExecutor(threadFactory)
+			Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			ExecutorService executor = (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+			return new RabbitMQVirtualThreadExecutor(executor, maxConcurrency);
+		} catch (ReflectiveOperationException e) {
+			logger.debug("Virtual threads not supported by Java " + System.getProperty("java.version") + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the task on a new virtual thread, which waits for a permit before running it
+	 */
+	@Override
+	public void execute(Runnable task) {
+		this.executor.execute(() -> {
+			try {
+				this.permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try {
+				task.run();
+			} finally {
+				this.permits.release();
+			}
+		});
+	}
+
+	@Override
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return this.executor.shutdownNow();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return this.executor.isShutdown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return this.executor.isTerminated();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return this.executor.awaitTermination(timeout, unit);
+	}
+}
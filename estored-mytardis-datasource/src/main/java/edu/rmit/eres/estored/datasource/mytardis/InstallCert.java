@@ -38,14 +38,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.net.Socket;
 import java.security.KeyStore;
 import java.security.MessageDigest;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Class used to add the server's certificate to the KeyStore with your trusted certificates.
  * Based on : http://nodsw.com/blog/leeland/2006/12/06-no-more-unable-find-valid-certification-path-requested-target
+ * 
+ * Each host is probed only once per process: the certificate chain it presents is pinned in memory, and trusted
+ * from then on by the shared SSL context of the connectors (see #getTrustManager and SSLConnections), which also
+ * trusts the certificates of the KeyStore. The KeyStore is loaded from disk once, and written back once per host imported, in the background.
  */
 public class InstallCert {
 
@@ -56,6 +67,31 @@ public class InstallCert {
 	private static final Integer DEFAULT_PORT = 443;
 	private static final String CERT_PATH = "/lib/security/cacerts";
 	
+	/**
+	 * Probes of the hosts, by host and port: completed once the certificate of the host is trusted
+	 */
+	private static final Map<String, CompletableFuture<Void>> probes = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+	
+	/**
+	 * Certificate chains accepted for the hosts whose certificate is not trusted by the KeyStore, by host name
+	 */
+	private static final Map<String, X509Certificate[]> pinnedChains = new ConcurrentHashMap<String, X509Certificate[]>();
+	
+	/**
+	 * Writes the KeyStore back to disk, in the background
+	 */
+	private static final ExecutorService keyStoreWriter = Executors.newSingleThreadExecutor((runnable) -> {
+		Thread thread = new Thread(runnable, "estored-keystore-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	private static KeyStore keyStore = null;
+	
+	private static X509TrustManager defaultTrustManager = null;
+	
+	private static X509TrustManager pinningTrustManager = null;
+	
 	public static void installCert(String host) throws Exception {
 		installCert(host, DEFAULT_PORT, DEFAULT_PASSPHRASE);
 	}
@@ -68,31 +104,72 @@ public class InstallCert {
 		installCert(host, DEFAULT_PORT, passphrase);
 	}
 	
+	/**
+	 * Trusts the certificate of a host, probing the host on the first call only: later calls return at once,
+	 * or wait for the probe in progress. A failed probe is retried on the next call.
+	 */
 	public static void installCert(String host, Integer port, String passphraseStr) throws Exception {
-		char[] passphrase = passphraseStr.toCharArray();
-		String certName = System.getProperty("java.home") + CERT_PATH;
+		CompletableFuture<Void> probe = new CompletableFuture<Void>();
+		CompletableFuture<Void> inProgress = probes.putIfAbsent(host + ":" + port, probe);
+		if (inProgress != null) {
+			try {
+				inProgress.join();
+				return;
+			} catch (Exception e) {
+				// Failed probe: probes again
+				probes.remove(host + ":" + port, inProgress);
+				installCert(host, port, passphraseStr);
+				return;
+			}
+		}
+		
+		try {
+			probe(host, port, passphraseStr.toCharArray());
+			probe.complete(null);
+		} catch (Exception e) {
+			probe.completeExceptionally(e);
+			probes.remove(host + ":" + port, probe);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Getter for the trust manager trusting the certificates of the KeyStore, and the certificates pinned for each host
+	 * @return the trust manager shared by the connections to the hosts
+	 */
+	public static synchronized X509TrustManager getTrustManager() {
+		if (pinningTrustManager == null) {
+			try {
+				pinningTrustManager = new PinningTrustManager();
+			} catch (Exception e) {
+				throw new IllegalStateException("Could not initialise the trust manager", e);
+			}
+		}
+		return pinningTrustManager;
+	}
+	
+	/**
+	 * Checks whether a certificate is the one accepted for a host when probing it
+	 * 
+	 * @param host: the host name
+	 * @param certificate: the certificate presented by the host
+	 * @return true if the certificate is pinned for the host
+	 */
+	public static boolean isPinned(String host, X509Certificate certificate) {
+		X509Certificate[] pinned = (host != null) ? pinnedChains.get(host) : null;
+		try {
+			return pinned != null && pinned.length > 0 && certificate != null
+					&& Arrays.equals(pinned[0].getEncoded(), certificate.getEncoded());
+		} catch (CertificateException e) {
+			return false;
+		}
+	}
+	
+	private static void probe(String host, Integer port, char[] passphrase) throws Exception {
+		X509TrustManager trustManager = getDefaultTrustManager(passphrase);
 		
-		File file = new File(certName);
-        if (file.isFile() == false) {
-            char SEP = File.separatorChar;
-            File dir = new File(System.getProperty("java.home") + SEP + "lib" + SEP + "security");
-            file = new File(dir, certName);
-            if (file.isFile() == false) {
-                file = new File(dir, "cacerts");
-            }
-        }
-        logger.debug("Loading KeyStore " + file + "...");
-        InputStream in = new FileInputStream(file);
-        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
-        ks.load(in, passphrase);
-        in.close();
-        
         SSLContext context = SSLContext.getInstance("TLS");
-        TrustManagerFactory tmf =
-                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-        tmf.init(ks);
-        X509TrustManager defaultTrustManager = (X509TrustManager) tmf.getTrustManagers()[0];
-        SavingTrustManager tm = new SavingTrustManager(defaultTrustManager);
+        SavingTrustManager tm = new SavingTrustManager(trustManager);
         context.init(null, new TrustManager[]{tm}, null);
         SSLSocketFactory factory = context.getSocketFactory();
 
@@ -116,33 +193,83 @@ public class InstallCert {
         // If there was an error, import the SSL certificate to the trust store
         X509Certificate[] chain = tm.chain;
         if (chain == null) {
-        	logger.error("Could not obtain server certificate chain");
-            return;
+        	// Failed probe: the host is probed again on the next call
+        	throw new SSLException("Could not obtain server certificate chain of " + host + ":" + port);
         }
 
         logger.debug("Server sent " + chain.length + " certificate(s):");
         MessageDigest sha1 = MessageDigest.getInstance("SHA1");
         MessageDigest md5 = MessageDigest.getInstance("MD5");
-        for (int i = 0; i < chain.length; i++) {
-            X509Certificate cert = chain[i];
-            logger.debug(" " + (i + 1) + " Subject " + cert.getSubjectDN());
-            logger.debug("   Issuer  " + cert.getIssuerDN());
-            sha1.update(cert.getEncoded());
-            logger.debug("   sha1    " + toHexString(sha1.digest()));
-            md5.update(cert.getEncoded());
-            logger.debug("   md5     " + toHexString(md5.digest()));
-            
-            String alias = host + "-" + (i + 1);
-            ks.setCertificateEntry(alias, cert);
-
-            OutputStream out = new FileOutputStream(certName);
-            ks.store(out, passphrase);
-            out.close();
-
-            logger.debug(cert.toString());
-            logger.info("Added certificate to keystore '" + certName + "' using alias '" + alias + "'");
+        synchronized (InstallCert.class) {
+	        for (int i = 0; i < chain.length; i++) {
+	            X509Certificate cert = chain[i];
+	            logger.debug(" " + (i + 1) + " Subject " + cert.getSubjectDN());
+	            logger.debug("   Issuer  " + cert.getIssuerDN());
+	            sha1.update(cert.getEncoded());
+	            logger.debug("   sha1    " + toHexString(sha1.digest()));
+	            md5.update(cert.getEncoded());
+	            logger.debug("   md5     " + toHexString(md5.digest()));
+	            
+	            String alias = host + "-" + (i + 1);
+	            keyStore.setCertificateEntry(alias, cert);
+	            logger.debug(cert.toString());
+	        }
         }
-	}    
+        pinnedChains.put(host, chain);
+        logger.info("Trusting the certificate of " + host + " from now on");
+        
+        // Persists the KeyStore once for the whole chain, without delaying the request
+        keyStoreWriter.execute(() -> storeKeyStore(host, passphrase));
+	}
+	
+	/**
+	 * Loads the KeyStore from disk on first use
+	 * @return the trust manager of the certificates of the KeyStore
+	 */
+	private static synchronized X509TrustManager getDefaultTrustManager(char[] passphrase) throws Exception {
+		if (defaultTrustManager != null)
+			return defaultTrustManager;
+		
+		File file = getKeyStoreFile();
+        logger.debug("Loading KeyStore " + file + "...");
+        InputStream in = new FileInputStream(file);
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(in, passphrase);
+        in.close();
+        
+        TrustManagerFactory tmf =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        keyStore = ks;
+        defaultTrustManager = (X509TrustManager) tmf.getTrustManagers()[0];
+        return defaultTrustManager;
+	}
+	
+	private static File getKeyStoreFile() {
+		String certName = System.getProperty("java.home") + CERT_PATH;
+		File file = new File(certName);
+        if (file.isFile() == false) {
+            char SEP = File.separatorChar;
+            File dir = new File(System.getProperty("java.home") + SEP + "lib" + SEP + "security");
+            file = new File(dir, certName);
+            if (file.isFile() == false) {
+                file = new File(dir, "cacerts");
+            }
+        }
+        return file;
+	}
+	
+	private static void storeKeyStore(String host, char[] passphrase) {
+		String certName = System.getProperty("java.home") + CERT_PATH;
+		synchronized (InstallCert.class) {
+			try (OutputStream out = new FileOutputStream(certName)) {
+				keyStore.store(out, passphrase);
+				logger.info("Added the certificate of " + host + " to keystore '" + certName + "'");
+			} catch (Exception e) {
+				logger.warn("Could not write keystore '" + certName + "', the certificate of " + host + " is only trusted until restart: " + e.getMessage());
+			}
+		}
+	}
     
     private static final char[] HEXDIGITS = "0123456789abcdef".toCharArray();
 
@@ -187,4 +314,82 @@ public class InstallCert {
             this.tm.checkServerTrusted(chain, authType);
         }
     }
-}
\ No newline at end of file
+    
+    /**
+     * Trust manager accepting the certificates trusted by the KeyStore, and the certificate chain pinned for the host
+     * connected to. Before any host is probed, it only trusts the default trust store of the JVM.
+     */
+    private static class PinningTrustManager extends X509ExtendedTrustManager {
+    	
+        private final X509TrustManager jvmTrustManager;
+        
+        PinningTrustManager() throws Exception {
+        	TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        	tmf.init((KeyStore) null);
+        	this.jvmTrustManager = (X509TrustManager) tmf.getTrustManagers()[0];
+        }
+        
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return this.jvmTrustManager.getAcceptedIssuers();
+        }
+        
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        	this.checkServerTrusted(chain, authType, (String) null);
+        }
+        
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        	SSLSession session = (socket instanceof SSLSocket) ? ((SSLSocket) socket).getHandshakeSession() : null;
+        	this.checkServerTrusted(chain, authType, (session != null) ? session.getPeerHost() : null);
+        }
+        
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        	this.checkServerTrusted(chain, authType, (engine != null) ? engine.getPeerHost() : null);
+        }
+        
+        /**
+         * Checks a chain against the pinned chain of the host, or of any host if the host is unknown, then against the trust stores
+         */
+        private void checkServerTrusted(X509Certificate[] chain, String authType, String host) throws CertificateException {
+        	if (chain != null && chain.length > 0) {
+        		if (host != null) {
+        			if (isPinned(host, chain[0]))
+        				return;
+        		} else {
+        			for (X509Certificate[] pinned : pinnedChains.values())
+        				if (pinned.length > 0 && Arrays.equals(pinned[0].getEncoded(), chain[0].getEncoded()))
+        					return;
+        		}
+        	}
+        	try {
+        		this.jvmTrustManager.checkServerTrusted(chain, authType);
+        	} catch (CertificateException e) {
+        		X509TrustManager keyStoreTrustManager;
+        		synchronized (InstallCert.class) {
+        			keyStoreTrustManager = defaultTrustManager;
+        		}
+        		if (keyStoreTrustManager == null)
+        			throw e;
+        		keyStoreTrustManager.checkServerTrusted(chain, authType);
+        	}
+        }
+    }
+}
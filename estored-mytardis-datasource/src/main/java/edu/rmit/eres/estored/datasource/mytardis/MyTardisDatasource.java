@@ -1,9 +1,18 @@
 package edu.rmit.eres.estored.datasource.mytardis;
 
+import java.nio.file.Paths;
+
+import javax.net.ssl.HttpsURLConnection;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.rmit.eres.amqpclient.RabbitMQBufferPool;
+import edu.rmit.eres.amqpclient.RabbitMQChunkedReplyStream;
+import edu.rmit.eres.amqpclient.RabbitMQMyTardisConsumer;
 import edu.rmit.eres.amqpclient.RabbitMQListener;
+import edu.rmit.eres.amqpclient.RabbitMQReplyCoalescer;
+import edu.rmit.eres.amqpclient.RabbitMQReplyDispatcher;
 
 /**
  * This programs creates a listener for RabbitMQ binding key on a given 
@@ -27,6 +36,30 @@ public class MyTardisDatasource {
 	private static final String DEFAULT_RABBITMQ_PASSWORD = "estored-user-pw";
 	private static final String DEFAULT_RABBITMQ_VHOST = "/estored";
 	private static final String DEFAULT_RABBITMQ_SSL_PROTOCOL = "tlsv1.2";
+	private static final int DEFAULT_RABBITMQ_PREFETCH_COUNT = RabbitMQListener.DEFAULT_PREFETCH_COUNT;
+	private static final int DEFAULT_WORKER_POOL_SIZE = RabbitMQListener.DEFAULT_WORKER_POOL_SIZE;
+	private static final Boolean DEFAULT_VIRTUAL_THREADS = false;
+	private static final Boolean DEFAULT_RABBITMQ_PUBLISHER_CONFIRMS = false;
+	private static final int DEFAULT_RABBITMQ_RECONNECT_MAX_ATTEMPTS = RabbitMQListener.DEFAULT_RECONNECT_MAX_ATTEMPTS;
+	private static final long DEFAULT_RABBITMQ_RECONNECT_INITIAL_DELAY = RabbitMQListener.DEFAULT_RECONNECT_INITIAL_DELAY;
+	private static final long DEFAULT_RABBITMQ_RECONNECT_MAX_DELAY = RabbitMQListener.DEFAULT_RECONNECT_MAX_DELAY;
+	private static final Boolean DEFAULT_RABBITMQ_COMPETING_CONSUMERS = false;
+	private static final String DEFAULT_RABBITMQ_WORK_QUEUE = "estored.ds.mytardis";
+	private static final int DEFAULT_RABBITMQ_CONNECTION_COUNT = 1;
+	private static final int DEFAULT_RABBITMQ_REPLY_CHUNK_SIZE = RabbitMQChunkedReplyStream.DEFAULT_CHUNK_SIZE;
+	private static final int DEFAULT_RABBITMQ_REPLY_COMPRESSION_THRESHOLD = RabbitMQChunkedReplyStream.DEFAULT_COMPRESSION_THRESHOLD;
+	private static final long DEFAULT_BUFFER_POOL_SIZE = RabbitMQBufferPool.DEFAULT_MAX_RETAINED_SIZE;
+	private static final Boolean DEFAULT_REQUEST_COALESCING = true;
+	private static final String DEFAULT_MYTARDIS_CACHE_DIRECTORY = MyTardisFileCache.DEFAULT_DIRECTORY;
+	private static final long DEFAULT_MYTARDIS_CACHE_QUOTA = MyTardisFileCache.DEFAULT_QUOTA;
+	private static final int DEFAULT_PARAMETERNAME_CACHE_SIZE = MyTardisParameternameCache.DEFAULT_MAX_ENTRIES;
+	private static final long DEFAULT_PARAMETERNAME_CACHE_TTL = MyTardisParameternameCache.DEFAULT_TTL;
+	private static final Boolean DEFAULT_ASYNC_DELIVERIES = false;
+	private static final int DEFAULT_SSL_SESSION_CACHE_SIZE = SSLConnections.DEFAULT_SESSION_CACHE_SIZE;
+	private static final int DEFAULT_SSL_SESSION_TIMEOUT = SSLConnections.DEFAULT_SESSION_TIMEOUT;
+	private static final int DEFAULT_DOWNLOAD_SEGMENTS = SegmentedDownload.DEFAULT_SEGMENT_COUNT;
+	private static final long DEFAULT_DOWNLOAD_MIN_SEGMENT_SIZE = SegmentedDownload.DEFAULT_MIN_SEGMENT_SIZE;
+	private static final int DEFAULT_DOWNLOAD_MAX_RETRIES = ResumableDownload.DEFAULT_MAX_RETRIES;
 	
 	/**
 	 * Start of the eStoRED MyTardis Datasource program
@@ -41,20 +74,100 @@ public class MyTardisDatasource {
 			final String rabbitmqPassword = (System.getenv("RABBITMQ_USER_PASSWORD") != null) ? System.getenv("RABBITMQ_USER_PASSWORD") : DEFAULT_RABBITMQ_PASSWORD;
 			final String rabbitmqVhost = (System.getenv("DEFAULT_RABBITMQ_VHOST") != null) ? System.getenv("DEFAULT_RABBITMQ_VHOST") : DEFAULT_RABBITMQ_VHOST;
 			final String rabbitmqSslprotocol = DEFAULT_RABBITMQ_SSL_PROTOCOL;
+			final int rabbitmqPrefetchCount = (System.getenv("RABBITMQ_PREFETCH_COUNT") != null) ? new Integer(System.getenv("RABBITMQ_PREFETCH_COUNT")) : DEFAULT_RABBITMQ_PREFETCH_COUNT;
+			final int workerPoolSize = (System.getenv("WORKER_POOL_SIZE") != null) ? new Integer(System.getenv("WORKER_POOL_SIZE")) : DEFAULT_WORKER_POOL_SIZE;
+			final Boolean virtualThreads = (System.getenv("VIRTUAL_THREADS") != null) ? Boolean.valueOf(System.getenv("VIRTUAL_THREADS")) : DEFAULT_VIRTUAL_THREADS;
+			// By default, one publishing channel per worker so that workers never wait for a channel
+			final int rabbitmqChannelPoolSize = (System.getenv("RABBITMQ_CHANNEL_POOL_SIZE") != null) ? new Integer(System.getenv("RABBITMQ_CHANNEL_POOL_SIZE")) : workerPoolSize;
+			final Boolean rabbitmqPublisherConfirms = (System.getenv("RABBITMQ_PUBLISHER_CONFIRMS") != null) ? Boolean.valueOf(System.getenv("RABBITMQ_PUBLISHER_CONFIRMS")) : DEFAULT_RABBITMQ_PUBLISHER_CONFIRMS;
+			final int rabbitmqReconnectMaxAttempts = (System.getenv("RABBITMQ_RECONNECT_MAX_ATTEMPTS") != null) ? new Integer(System.getenv("RABBITMQ_RECONNECT_MAX_ATTEMPTS")) : DEFAULT_RABBITMQ_RECONNECT_MAX_ATTEMPTS;
+			final long rabbitmqReconnectInitialDelay = (System.getenv("RABBITMQ_RECONNECT_INITIAL_DELAY") != null) ? new Long(System.getenv("RABBITMQ_RECONNECT_INITIAL_DELAY")) : DEFAULT_RABBITMQ_RECONNECT_INITIAL_DELAY;
+			final long rabbitmqReconnectMaxDelay = (System.getenv("RABBITMQ_RECONNECT_MAX_DELAY") != null) ? new Long(System.getenv("RABBITMQ_RECONNECT_MAX_DELAY")) : DEFAULT_RABBITMQ_RECONNECT_MAX_DELAY;
+			final Boolean rabbitmqCompetingConsumers = (System.getenv("RABBITMQ_COMPETING_CONSUMERS") != null) ? Boolean.valueOf(System.getenv("RABBITMQ_COMPETING_CONSUMERS")) : DEFAULT_RABBITMQ_COMPETING_CONSUMERS;
+			final String rabbitmqWorkQueue = (System.getenv("RABBITMQ_WORK_QUEUE") != null) ? System.getenv("RABBITMQ_WORK_QUEUE") : DEFAULT_RABBITMQ_WORK_QUEUE;
+			final String rabbitmqAddresses = System.getenv("RABBITMQ_BROKER_ADDRESSES");
+			final int rabbitmqConnectionCount = (System.getenv("RABBITMQ_CONNECTION_COUNT") != null) ? new Integer(System.getenv("RABBITMQ_CONNECTION_COUNT")) : DEFAULT_RABBITMQ_CONNECTION_COUNT;
+			final int rabbitmqReplyChunkSize = (System.getenv("RABBITMQ_REPLY_CHUNK_SIZE") != null) ? new Integer(System.getenv("RABBITMQ_REPLY_CHUNK_SIZE")) : DEFAULT_RABBITMQ_REPLY_CHUNK_SIZE;
+			final int rabbitmqReplyCompressionThreshold = (System.getenv("RABBITMQ_REPLY_COMPRESSION_THRESHOLD") != null) ? new Integer(System.getenv("RABBITMQ_REPLY_COMPRESSION_THRESHOLD")) : DEFAULT_RABBITMQ_REPLY_COMPRESSION_THRESHOLD;
+			final long bufferPoolSize = (System.getenv("BUFFER_POOL_SIZE") != null) ? new Long(System.getenv("BUFFER_POOL_SIZE")) : DEFAULT_BUFFER_POOL_SIZE;
+			final Boolean requestCoalescing = (System.getenv("REQUEST_COALESCING") != null) ? Boolean.valueOf(System.getenv("REQUEST_COALESCING")) : DEFAULT_REQUEST_COALESCING;
+			final String myTardisCacheDirectory = (System.getenv("MYTARDIS_CACHE_DIRECTORY") != null) ? System.getenv("MYTARDIS_CACHE_DIRECTORY") : DEFAULT_MYTARDIS_CACHE_DIRECTORY;
+			final long myTardisCacheQuota = (System.getenv("MYTARDIS_CACHE_QUOTA") != null) ? new Long(System.getenv("MYTARDIS_CACHE_QUOTA")) : DEFAULT_MYTARDIS_CACHE_QUOTA;
+			final int parameternameCacheSize = (System.getenv("PARAMETERNAME_CACHE_SIZE") != null) ? new Integer(System.getenv("PARAMETERNAME_CACHE_SIZE")) : DEFAULT_PARAMETERNAME_CACHE_SIZE;
+			final long parameternameCacheTtl = (System.getenv("PARAMETERNAME_CACHE_TTL") != null) ? new Long(System.getenv("PARAMETERNAME_CACHE_TTL")) : DEFAULT_PARAMETERNAME_CACHE_TTL;
+			final Boolean asyncDeliveries = (System.getenv("ASYNC_DELIVERIES") != null) ? Boolean.valueOf(System.getenv("ASYNC_DELIVERIES")) : DEFAULT_ASYNC_DELIVERIES;
+			final int sslSessionCacheSize = (System.getenv("SSL_SESSION_CACHE_SIZE") != null) ? new Integer(System.getenv("SSL_SESSION_CACHE_SIZE")) : DEFAULT_SSL_SESSION_CACHE_SIZE;
+			final int sslSessionTimeout = (System.getenv("SSL_SESSION_TIMEOUT") != null) ? new Integer(System.getenv("SSL_SESSION_TIMEOUT")) : DEFAULT_SSL_SESSION_TIMEOUT;
+			final int downloadSegments = (System.getenv("DOWNLOAD_SEGMENTS") != null) ? new Integer(System.getenv("DOWNLOAD_SEGMENTS")) : DEFAULT_DOWNLOAD_SEGMENTS;
+			final long downloadMinSegmentSize = (System.getenv("DOWNLOAD_MIN_SEGMENT_SIZE") != null) ? new Long(System.getenv("DOWNLOAD_MIN_SEGMENT_SIZE")) : DEFAULT_DOWNLOAD_MIN_SEGMENT_SIZE;
+			final int downloadThreads = (System.getenv("DOWNLOAD_THREADS") != null) ? new Integer(System.getenv("DOWNLOAD_THREADS")) : workerPoolSize * Math.max(1, downloadSegments);
+			final int downloadMaxRetries = (System.getenv("DOWNLOAD_MAX_RETRIES") != null) ? new Integer(System.getenv("DOWNLOAD_MAX_RETRIES")) : DEFAULT_DOWNLOAD_MAX_RETRIES;
 			
 			try {
 				logger.info("Trying to connect: " + rabbitmqUsername + ":" + rabbitmqPassword + "@" + rabbitmqHost + ":" + rabbitmqPort + "/" + rabbitmqVhost + " (" + rabbitmqSslprotocol + ")");
-				RabbitMQListener listener = new RabbitMQListener(
-						rabbitmqHost,
-						rabbitmqPort, 
-						rabbitmqSslprotocol, 
-						rabbitmqVhost, 
-						rabbitmqUsername, 
-						rabbitmqPassword);
-		    	listener.openConnection();
-				listener.listen("amq.topic", "estored.ds.mytardis.#");
+				// Identical requests share a single download, whichever connection they are received on
+				final RabbitMQReplyCoalescer replyCoalescer = requestCoalescing ? new RabbitMQReplyCoalescer(RabbitMQReplyCoalescer.DEFAULT_REPLAY_LIMIT) : null;
+				// Data files requested again are read from the local disk instead of being downloaded again
+				if (myTardisCacheQuota > 0)
+					RabbitMQMyTardisConsumer.setFileCache(new MyTardisFileCache(Paths.get(myTardisCacheDirectory), myTardisCacheQuota));
+				// Parameter names are requested once per MyTardis instance instead of once per data file
+				if (parameternameCacheSize > 0)
+					RabbitMQMyTardisConsumer.setParameternameCache(new MyTardisParameternameCache(parameternameCacheSize, parameternameCacheTtl));
+				
+				// TLS sessions with MyTardis are resumed by the following connections, whose host names are verified one by one
+				SSLConnections.configureSessionCache(sslSessionCacheSize, sslSessionTimeout);
+				HttpsURLConnection.setDefaultHostnameVerifier(SSLConnections.getHostnameVerifier());
+				// Large data files are downloaded as several byte ranges in parallel
+				MyTardisDownloader.configureSegmentedDownloads(downloadSegments, downloadMinSegmentSize);
+				SegmentedDownload.configureThreads(downloadThreads);
+				// Interrupted downloads restart from the last byte received
+				MyTardisDownloader.configureResumableDownloads(downloadMaxRetries);
+				
+				// Reply buffers are reused from one request to the next instead of being allocated for each request
+				RabbitMQBufferPool.setDefault(new RabbitMQBufferPool(bufferPoolSize));
+				// Non-blocking downloads are published by as many threads as there are channels to publish with
+				RabbitMQReplyDispatcher.configureThreads(rabbitmqChannelPoolSize);
+				
+				// Opens one connection per shard, each with its own consumer, spread across the cluster nodes
+				for (int shard = 0; shard < rabbitmqConnectionCount; shard++) {
+					RabbitMQListener listener = new RabbitMQListener(
+							rabbitmqHost,
+							rabbitmqPort, 
+							rabbitmqSslprotocol, 
+							rabbitmqVhost, 
+							rabbitmqUsername, 
+							rabbitmqPassword);
+					if (rabbitmqAddresses != null)
+						listener.setBrokerAddresses(RabbitMQListener.parseBrokerAddresses(rabbitmqAddresses, rabbitmqPort), shard);
+					listener.setPrefetchCount(rabbitmqPrefetchCount);
+					listener.setWorkerPoolSize(workerPoolSize);
+					listener.setVirtualThreads(virtualThreads);
+					listener.setChannelPoolSize(rabbitmqChannelPoolSize);
+					listener.setPublisherConfirms(rabbitmqPublisherConfirms);
+					listener.setReconnectMaxAttempts(rabbitmqReconnectMaxAttempts);
+					listener.setReconnectDelays(rabbitmqReconnectInitialDelay, rabbitmqReconnectMaxDelay);
+					// Exits rather than staying up without consuming, once the connection cannot be recovered anymore
+					listener.setReconnectionFailureHandler(() -> {
+						logger.error("Could not reconnect to the RabbitMQ broker, exiting");
+						System.exit(1);
+					});
+					listener.setReplyChunkSize(rabbitmqReplyChunkSize);
+					listener.setReplyCompressionThreshold(rabbitmqReplyCompressionThreshold);
+					listener.setReplyCoalescer(replyCoalescer);
+					listener.setAsyncDeliveries(asyncDeliveries);
+				
+					// Retries with exponential backoff, then keeps reconnecting whenever the connection is lost
+					if (!listener.connect()) {
+						logger.error("Could not connect to the RabbitMQ broker, exiting");
+						System.exit(1);
+					}
+					// In competing consumers mode, all the instances share one durable work queue and split the requests.
+					// Several connections of the same instance also have to share it, so as not to receive every request several times.
+					listener.listen("amq.topic", "estored.ds.mytardis.#", (rabbitmqCompetingConsumers || rabbitmqConnectionCount > 1) ? rabbitmqWorkQueue : null);
+				}
 	    	} catch (Exception e) {
 				e.printStackTrace();
+				System.exit(1);
 			}
 	  }
 }
\ No newline at end of file
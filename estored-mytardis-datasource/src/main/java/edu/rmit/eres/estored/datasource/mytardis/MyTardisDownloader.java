@@ -0,0 +1,357 @@
+package edu.rmit.eres.estored.datasource.mytardis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.rmit.eres.amqpclient.RabbitMQReplyDispatcher;
+import edu.rmit.eres.amqpclient.RabbitMQReplyReceiver;
+import edu.rmit.eres.amqpclient.RabbitMQReplySource;
+
+/**
+ * Downloads the content of MyTardis data files as a stream, so that they can be sent while being downloaded
+ * instead of being loaded in memory as a whole, like TardisClient#getDatasetFileContentById does.
+ * Uses the same MyTardis API endpoint and HTTP Basic authentication as the MyTardis client.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see org.mytardis.api.client.TardisClient
+ */
+public class MyTardisDownloader {
+
+	private static final Logger logger = LoggerFactory.getLogger(MyTardisDownloader.class);
+
+	/**
+	 * Timeout for connecting to MyTardis, in milliseconds
+	 */
+	public final static int CONNECT_TIMEOUT_MS = 30000;
+
+	/**
+	 * Timeout between two reads from MyTardis, in milliseconds
+	 */
+	public final static int READ_TIMEOUT_MS = 60000;
+
+	/**
+	 * Non-blocking HTTP client shared by the asynchronous downloads (see #downloadAsync), started on first use
+	 */
+	private static CloseableHttpAsyncClient asyncHttpClient = null;
+
+	private static int segmentCount = SegmentedDownload.DEFAULT_SEGMENT_COUNT;
+
+	private static long minSegmentSize = SegmentedDownload.DEFAULT_MIN_SEGMENT_SIZE;
+
+	private static int maxRetries = ResumableDownload.DEFAULT_MAX_RETRIES;
+
+	private String myTardisHost;
+
+	private String myTardisProtocol;
+
+	/**
+	 * Value of the Authorization header sent to MyTardis
+	 */
+	private String authorization;
+
+	/**
+	 * Constructor of the downloader
+	 *
+	 * @param myTardisHost: the host name of the MyTardis instance
+	 * @param myTardisUser: the name of the MyTardis user
+	 * @param myTardisPassword: the password of the MyTardis user
+	 * @param myTardisProtocol: the protocol to use (http or https)
+	 */
+	public MyTardisDownloader(String myTardisHost, String myTardisUser, String myTardisPassword, String myTardisProtocol) {
+		this.myTardisHost = myTardisHost;
+		this.myTardisProtocol = myTardisProtocol;
+		this.authorization = "Basic " + Base64.encodeBase64String((myTardisUser + ":" + myTardisPassword).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sets how the large data files are downloaded, when MyTardis accepts byte ranges (see SegmentedDownload)
+	 *
+	 * @param segmentCount: the maximum number of ranges downloaded in parallel for a single data file (1 to download every data file as a single stream)
+	 * @param minSegmentSize: the minimum size of a range, in bytes
+	 */
+	public static synchronized void configureSegmentedDownloads(int segmentCount, long minSegmentSize) {
+		MyTardisDownloader.segmentCount = segmentCount;
+		MyTardisDownloader.minSegmentSize = minSegmentSize;
+	}
+
+	/**
+	 * Sets how many times a download is resumed from its last byte received after a failure, when MyTardis accepts byte ranges
+	 *
+	 * @param maxRetries: the maximum number of resumptions of a download (0 to never resume)
+	 */
+	public static synchronized void configureResumableDownloads(int maxRetries) {
+		MyTardisDownloader.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Builds the URL of the content of a data file
+	 *
+	 * @param datafileId: the identifier of the data file
+	 * @return the URL of the content of the data file
+	 */
+	public String getDownloadUrl(Integer datafileId) {
+		return this.myTardisProtocol + "://" + this.myTardisHost + "/api/v1/dataset_file/" + datafileId + "/download/";
+	}
+
+	/**
+	 * Opens a connection downloading the content of a data file
+	 *
+	 * @param datafileId: the identifier of the data file
+	 * @return the connection, already checked for a successful response
+	 *
+	 * @throws IOException: if the connection failed or MyTardis answered with an error
+	 */
+	public HttpURLConnection openConnection(Integer datafileId) throws IOException {
+		String url = this.getDownloadUrl(datafileId);
+		logger.debug("Opening " + url);
+
+		HttpURLConnection connection = SSLConnections.secure((HttpURLConnection) new URL(url).openConnection());
+		connection.setRequestProperty("Authorization", this.authorization);
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		connection.setReadTimeout(READ_TIMEOUT_MS);
+
+		int responseCode = connection.getResponseCode();
+		if (responseCode >= 400) {
+			connection.disconnect();
+			throw new IOException("MyTardis answered " + responseCode + " for " + url);
+		}
+		return connection;
+	}
+
+	/**
+	 * Opens the stream of the content of a data file, to be read as it is downloaded.
+	 * If MyTardis accepts byte ranges and validates them (strong ETag or Last-Modified), large data files are downloaded
+	 * as several ranges in parallel (see SegmentedDownload), and the download is resumed from the last byte received if the
+	 * connection fails (see ResumableDownload). Otherwise, the content is read as a single stream.
+	 *
+	 * @param datafileId: the identifier of the data file
+	 * @return the stream of the content of the data file, to be closed by the caller
+	 *
+	 * @throws IOException: if the content could not be retrieved
+	 */
+	public InputStream openStream(Integer datafileId) throws IOException {
+		HttpURLConnection connection = this.openConnection(datafileId);
+		long contentLength = connection.getContentLengthLong();
+		if (contentLength > 0 && connection.getResponseCode() == HttpURLConnection.HTTP_OK
+				&& "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")) && connection.getContentEncoding() == null
+				&& getRangeValidator(connection) != null) {
+			InputStream head = SegmentedDownload.abortable(connection.getInputStream(), connection::disconnect);
+			SegmentedDownload.RangeSource ranges = (first, last) -> this.openRange(connection, first, last);
+			int segments = SegmentedDownload.getSegmentCount(contentLength, segmentCount, minSegmentSize);
+			if (segments > 1)
+				return new SegmentedDownload(head, contentLength, segments, ranges, maxRetries);
+			if (maxRetries > 0)
+				return new ResumableDownload(head, 0, contentLength, ranges, maxRetries);
+		}
+		return connection.getInputStream();
+	}
+
+	/**
+	 * Opens a connection downloading a byte range of a data file, only if the data file has not changed since the original request
+	 *
+	 * @param original: the connection of the original request
+	 * @param first: the position of the first byte of the range
+	 * @param last: the position of the last byte of the range, included
+	 * @return the stream of the range, aborting the connection if closed before its end
+	 *
+	 * @throws IOException: if the range could not be retrieved
+	 */
+	private InputStream openRange(HttpURLConnection original, long first, long last) throws IOException {
+		URL url = original.getURL();
+		HttpURLConnection connection = SSLConnections.secure((HttpURLConnection) url.openConnection());
+		connection.setRequestProperty("Authorization", this.authorization);
+		connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+		connection.setRequestProperty("If-Range", getRangeValidator(original));
+		connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+		connection.setReadTimeout(READ_TIMEOUT_MS);
+
+		int responseCode = connection.getResponseCode();
+		String contentRange = connection.getHeaderField("Content-Range");
+		if (responseCode != HttpURLConnection.HTTP_PARTIAL || contentRange == null || !contentRange.startsWith("bytes " + first + "-" + last + "/")) {
+			connection.disconnect();
+			throw new IOException("MyTardis answered " + responseCode + " instead of bytes " + first + "-" + last + " for " + url);
+		}
+		return SegmentedDownload.abortable(connection.getInputStream(), connection::disconnect);
+	}
+
+	/**
+	 * Validator sent with If-Range, so that the ranges of a data file changed since the original request are never mixed
+	 *
+	 * @param original: the connection of the original request
+	 * @return the strong ETag of the data file, or else its last modification date, or null if ranges cannot be validated
+	 */
+	private static String getRangeValidator(HttpURLConnection original) {
+		// Weak ETags cannot validate a range
+		String eTag = original.getHeaderField("ETag");
+		return (eTag != null && !eTag.startsWith("W/")) ? eTag : original.getHeaderField("Last-Modified");
+	}
+
+	/**
+	 * Downloads the content of a data file without waiting for it: the content is pushed to the receiver as it arrives,
+	 * by the threads of a reply dispatcher rather than the I/O threads of the non-blocking HTTP client, so that the receiver
+	 * may block; the connection is suspended while the content received waits to be written (see RabbitMQReplyDispatcher)
+	 *
+	 * @param datafileId: the identifier of the data file
+	 * @param head: the content type, length and headers of the reply, started once MyTardis answered successfully
+	 * @param receiver: the receiver of the content, failed if the content could not be retrieved
+	 */
+	public void downloadAsync(Integer datafileId, RabbitMQReplySource head, RabbitMQReplyReceiver receiver) {
+		String url = this.getDownloadUrl(datafileId);
+		logger.debug("Downloading " + url);
+
+		HttpGet request = new HttpGet(url);
+		request.setHeader("Authorization", this.authorization);
+
+		AsyncDownload download = new AsyncDownload(url, head, receiver);
+		getAsyncHttpClient().execute(HttpAsyncMethods.create(request), download, new FutureCallback<Void>() {
+
+			@Override
+			public void completed(Void result) {
+				download.complete();
+			}
+
+			@Override
+			public void failed(Exception cause) {
+				download.abort(cause);
+			}
+
+			@Override
+			public void cancelled() {
+				download.abort(new IOException("Download of " + url + " cancelled"));
+			}
+		});
+	}
+
+	private static synchronized CloseableHttpAsyncClient getAsyncHttpClient() {
+		if (asyncHttpClient == null) {
+			asyncHttpClient = HttpAsyncClients.custom()
+					.setSSLContext(SSLConnections.getSSLContext())
+					.setHostnameVerifier(SSLConnections.getHostnameVerifier())
+					.setDefaultRequestConfig(RequestConfig.custom()
+							.setConnectTimeout(CONNECT_TIMEOUT_MS)
+							.setConnectionRequestTimeout(CONNECT_TIMEOUT_MS)
+							.setSocketTimeout(READ_TIMEOUT_MS)
+							.build())
+					.build();
+			asyncHttpClient.start();
+		}
+		return asyncHttpClient;
+	}
+
+	/**
+	 * Consumer of the content of a data file, handing it over to the dispatcher which pushes it to the receiver
+	 */
+	private static class AsyncDownload extends AsyncByteConsumer<Void> {
+
+		private final String url;
+
+		private final RabbitMQReplySource head;
+
+		private final RabbitMQReplyReceiver receiver;
+
+		/**
+		 * Runs the receiver in order, suspending the connection while the content received waits to be written
+		 */
+		private final RabbitMQReplyDispatcher dispatcher = new RabbitMQReplyDispatcher(
+				() -> this.ioControl.suspendInput(), () -> this.ioControl.requestInput());
+
+		private volatile IOControl ioControl = null;
+
+		/**
+		 * Whether the content could not be written: the download is then aborted
+		 */
+		private volatile boolean failed = false;
+
+		/**
+		 * Whether the receiver was finished or failed, only used by the dispatcher
+		 */
+		private boolean done = false;
+
+		AsyncDownload(String url, RabbitMQReplySource head, RabbitMQReplyReceiver receiver) {
+			this.url = url;
+			this.head = head;
+			this.receiver = receiver;
+		}
+
+		@Override
+		protected void onResponseReceived(HttpResponse response) throws IOException {
+			int responseCode = response.getStatusLine().getStatusCode();
+			if (responseCode >= 400)
+				throw new IOException("MyTardis answered " + responseCode + " for " + this.url);
+			this.dispatcher.execute(() -> {
+				try {
+					this.receiver.start(this.head);
+				} catch (IOException e) {
+					this.fail(e);
+				}
+			});
+		}
+
+		@Override
+		protected void onByteReceived(ByteBuffer buffer, IOControl ioControl) throws IOException {
+			if (this.failed)
+				throw new IOException("Reply of " + this.url + " failed, download aborted");
+			this.ioControl = ioControl;
+			this.dispatcher.write(buffer, (block, length) -> {
+				if (this.done)
+					return;
+				try {
+					this.receiver.write(block, 0, length);
+				} catch (IOException e) {
+					this.fail(e);
+				}
+			});
+		}
+
+		@Override
+		protected Void buildResult(HttpContext context) {
+			return null;
+		}
+
+		void complete() {
+			this.dispatcher.execute(() -> {
+				if (this.done)
+					return;
+				this.done = true;
+				try {
+					this.receiver.finish();
+				} catch (IOException e) {
+					this.receiver.fail(e);
+				}
+			});
+		}
+
+		void abort(Exception cause) {
+			this.dispatcher.execute(() -> {
+				if (!this.done)
+					this.fail(cause);
+			});
+		}
+
+		private void fail(Exception cause) {
+			this.done = true;
+			this.failed = true;
+			this.receiver.fail(cause);
+		}
+	}
+}
@@ -0,0 +1,515 @@
+package edu.rmit.eres.estored.datasource.mytardis;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.mytardis.api.model.DatasetFile;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.rmit.eres.amqpclient.RabbitMQReplyReceiver;
+import edu.rmit.eres.amqpclient.RabbitMQReplySource;
+
+/**
+ * Disk cache of the content of MyTardis data files, which do not change once ingested, so that the data files
+ * requested again are read from the local disk instead of being downloaded again from MyTardis.
+ *
+ * Contents are stored by checksum (content-addressed): under blobs/{algorithm}/{first 2 digits}/{checksum}.
+ * The checksum exposed by MyTardis (SHA-512, or else MD5) is used when there is one, and the downloaded content
+ * is verified against it. Otherwise the SHA-256 of the content is computed while downloading, and a reference
+ * from the MyTardis host and data file identifier to the content is kept under refs/.
+ * The downloaded content is also checked against the size of the data file: a content whose end cannot be verified
+ * (neither checksum nor size) is never cached, as a download ending early would go unnoticed.
+ *
+ * The cache is bounded by a disk quota: the least recently read contents are evicted first. Files larger than an
+ * eighth of the quota are not cached, so that a single large data file cannot flush the whole cache.
+ * Contents are read through a FileChannel, and are cached while they are streamed to the first requester (see #capture).
+ *
+ * The cache is only consulted after the data file details have been retrieved from MyTardis with the credentials of
+ * the request, so that it never serves a data file to a user who could not download it.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQMyTardisConsumer
+ */
+public class MyTardisFileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(MyTardisFileCache.class);
+
+	/**
+	 * Default disk quota of the cache, in bytes
+	 */
+	public final static long DEFAULT_QUOTA = 10L * 1024 * 1024 * 1024;
+
+	/**
+	 * Default directory of the cache
+	 */
+	public final static String DEFAULT_DIRECTORY = System.getProperty("java.io.tmpdir") + "/estored-mytardis-cache";
+
+	private final Path blobsDirectory;
+
+	private final Path refsDirectory;
+
+	private final Path tmpDirectory;
+
+	private final long quota;
+
+	private final long maxFileSize;
+
+	/**
+	 * Sizes of the cached contents by blob name (e.g. sha512-0a1b...), from the least to the most recently read
+	 */
+	private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/**
+	 * Total size of the cached contents, in bytes
+	 */
+	private long size = 0;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	private long evictionCount = 0;
+
+	/**
+	 * Constructor of the cache, loading the contents already cached in the directory
+	 *
+	 * @param directory: the directory of the cache, created if needed
+	 * @param quota: the maximum total size of the cached contents, in bytes
+	 *
+	 * @throws IOException: if the directory could not be created or read
+	 */
+	public MyTardisFileCache(Path directory, long quota) throws IOException {
+		this.blobsDirectory = Files.createDirectories(directory.resolve("blobs"));
+		this.refsDirectory = Files.createDirectories(directory.resolve("refs"));
+		this.tmpDirectory = Files.createDirectories(directory.resolve("tmp"));
+		this.quota = quota;
+		this.maxFileSize = quota / 8;
+
+		// Downloads interrupted by a previous stop
+		try (Stream<Path> leftovers = Files.list(this.tmpDirectory)) {
+			for (Path leftover : leftovers.collect(Collectors.toList()))
+				Files.deleteIfExists(leftover);
+		}
+
+		// Least recently read first, the last modification time being updated on every read
+		List<Path> files;
+		try (Stream<Path> walk = Files.walk(this.blobsDirectory)) {
+			files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+		}
+		files.sort((a, b) -> getLastModifiedTime(a).compareTo(getLastModifiedTime(b)));
+		for (Path file : files) {
+			String algorithm = file.getParent().getParent().getFileName().toString();
+			long fileSize = Files.size(file);
+			this.blobs.put(algorithm + "-" + file.getFileName(), fileSize);
+			this.size += fileSize;
+		}
+		this.evict();
+		logger.info("Disk cache of MyTardis data files in " + directory + ": " + this);
+	}
+
+	/**
+	 * Builds the name under which the content of a data file is stored, from the checksum exposed by MyTardis
+	 *
+	 * @param datasetFile: the data file
+	 * @return the blob name of the content (e.g. sha512-0a1b...), or null if MyTardis does not expose a valid checksum
+	 */
+	public static String getChecksum(DatasetFile datasetFile) {
+		if (isHex(datasetFile.getSha512sum()))
+			return "sha512-" + datasetFile.getSha512sum().toLowerCase();
+		if (isHex(datasetFile.getMd5sum()))
+			return "md5-" + datasetFile.getMd5sum().toLowerCase();
+		return null;
+	}
+
+	/**
+	 * Opens the cached content of a data file
+	 *
+	 * @param host: the host name of the MyTardis instance
+	 * @param datafileId: the identifier of the data file
+	 * @param checksum: the blob name built from the checksum exposed by MyTardis (see #getChecksum), or null
+	 * @return the stream of the cached content, to be closed by the caller, or null if the content is not cached
+	 */
+	public InputStream get(String host, Integer datafileId, String checksum) {
+		Path ref = this.getRefPath(host, datafileId);
+		String blob = checksum;
+		try {
+			if (blob == null && Files.exists(ref))
+				blob = new String(Files.readAllBytes(ref), StandardCharsets.UTF_8);
+
+			synchronized (this) {
+				if (blob == null || this.blobs.get(blob) == null) {
+					this.missCount++;
+					return null;
+				}
+				this.hitCount++;
+			}
+			Path path = this.getBlobPath(blob);
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+		} catch (NoSuchFileException e) {
+			// Evicted in the meantime
+			return null;
+		} catch (IOException e) {
+			logger.warn("Could not read the cached content of data file " + datafileId + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Wraps the stream of the content of a data file downloaded from MyTardis, so that the content gets cached once it has been read entirely
+	 *
+	 * @param host: the host name of the MyTardis instance
+	 * @param datafileId: the identifier of the data file
+	 * @param checksum: the blob name built from the checksum exposed by MyTardis (see #getChecksum), or null
+	 * @param contentLength: the size of the data file in bytes, or -1 if unknown
+	 * @param content: the stream of the content, as downloaded from MyTardis
+	 * @return the stream to read the content from instead
+	 */
+	public InputStream capture(String host, Integer datafileId, String checksum, long contentLength, InputStream content) {
+		if (!this.isCacheable(checksum, contentLength))
+			return content;
+		try {
+			return new CapturingInputStream(content, new Capture(host, datafileId, checksum, contentLength));
+		} catch (IOException | NoSuchAlgorithmException e) {
+			logger.warn("Could not cache the content of data file " + datafileId + ": " + e.getMessage());
+			return content;
+		}
+	}
+
+	/**
+	 * Wraps the receiver of the content of a data file pushed by an asynchronous download, so that the content
+	 * gets cached once it has been received entirely, and its checksum verified
+	 *
+	 * @param host: the host name of the MyTardis instance
+	 * @param datafileId: the identifier of the data file
+	 * @param checksum: the checksum of the content (see #getChecksum), or null
+	 * @param contentLength: the size of the content in bytes, or -1 if unknown
+	 * @param receiver: the receiver of the content
+	 * @return the receiver to push the content to instead
+	 */
+	public RabbitMQReplyReceiver capture(String host, Integer datafileId, String checksum, long contentLength, RabbitMQReplyReceiver receiver) {
+		if (!this.isCacheable(checksum, contentLength))
+			return receiver;
+		try {
+			return new CapturingReceiver(receiver, new Capture(host, datafileId, checksum, contentLength));
+		} catch (IOException | NoSuchAlgorithmException e) {
+			logger.warn("Could not cache the content of data file " + datafileId + ": " + e.getMessage());
+			return receiver;
+		}
+	}
+
+	/**
+	 * Getter for the number of data files read from the cache
+	 * @return the number of data files read from the cache
+	 */
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * Getter for the number of data files not found in the cache
+	 * @return the number of data files not found in the cache
+	 */
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Getter for the number of contents evicted to stay under the quota
+	 * @return the number of contents evicted
+	 */
+	public synchronized long getEvictionCount() {
+		return this.evictionCount;
+	}
+
+	/**
+	 * Getter for the total size of the cached contents
+	 * @return the total size of the cached contents, in bytes
+	 */
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.blobs.size() + " files cached (" + this.size + "/" + this.quota + " bytes), "
+				+ this.hitCount + " hits, " + this.missCount + " misses, " + this.evictionCount + " evictions";
+	}
+
+	/**
+	 * Adds a downloaded content to the cache, evicting the least recently read contents if over the quota
+	 *
+	 * @param blob: the blob name of the content
+	 * @param file: the temporary file of the content
+	 * @param fileSize: the size of the content in bytes
+	 *
+	 * @throws IOException: if the content could not be moved into the cache
+	 */
+	private void add(String blob, Path file, long fileSize) throws IOException {
+		Path path = this.getBlobPath(blob);
+		Files.createDirectories(path.getParent());
+		try {
+			Files.move(file, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(file, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		synchronized (this) {
+			Long replaced = this.blobs.put(blob, fileSize);
+			this.size += fileSize - ((replaced != null) ? replaced : 0);
+			this.evict();
+		}
+	}
+
+	private synchronized void evict() {
+		List<String> evicted = new ArrayList<String>();
+		Iterator<Map.Entry<String, Long>> eldest = this.blobs.entrySet().iterator();
+		while (this.size > this.quota && eldest.hasNext()) {
+			Map.Entry<String, Long> entry = eldest.next();
+			this.size -= entry.getValue();
+			evicted.add(entry.getKey());
+			eldest.remove();
+			this.evictionCount++;
+		}
+		// References to evicted contents are left behind, and ignored as the contents are not in the cache anymore
+		for (String blob : evicted) {
+			try {
+				Files.deleteIfExists(this.getBlobPath(blob));
+			} catch (IOException e) {
+				logger.warn("Could not evict " + blob + " from the cache: " + e.getMessage());
+			}
+		}
+	}
+
+	private Path getBlobPath(String blob) {
+		String algorithm = blob.substring(0, blob.indexOf('-'));
+		String checksum = blob.substring(blob.indexOf('-') + 1);
+		return this.blobsDirectory.resolve(algorithm).resolve(checksum.substring(0, 2)).resolve(checksum);
+	}
+
+	private Path getRefPath(String host, Integer datafileId) {
+		return this.refsDirectory.resolve(DigestUtils.sha256Hex(host + "/" + datafileId));
+	}
+
+	private static boolean isHex(String checksum) {
+		return checksum != null && checksum.length() >= 32 && checksum.matches("[0-9a-fA-F]+");
+	}
+
+	private static FileTime getLastModifiedTime(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	/**
+	 * Checks whether a content can be cached: it must fit in the cache, and its end must be verifiable,
+	 * either with its checksum or with its length, so that a truncated download is never cached
+	 *
+	 * @param checksum: the checksum of the content (see #getChecksum), or null
+	 * @param contentLength: the size of the content in bytes, or -1 if unknown
+	 * @return true if the content can be cached
+	 */
+	private boolean isCacheable(String checksum, long contentLength) {
+		return contentLength <= this.maxFileSize && (checksum != null || contentLength >= 0);
+	}
+
+	/**
+	 * Copy of a content written to a temporary file, added to the cache once the end of the content is reached
+	 * and its checksum and length verified. Failing to write the copy never fails the retrieval of the content: the copy is just dropped.
+	 */
+	private class Capture {
+
+		private final String host;
+
+		private final Integer datafileId;
+
+		private final String checksum;
+
+		/**
+		 * Size of the content in bytes, or -1 if unknown
+		 */
+		private final long contentLength;
+
+		private final MessageDigest digest;
+
+		private Path file;
+
+		private FileChannel channel;
+
+		private long copied = 0;
+
+		Capture(String host, Integer datafileId, String checksum, long contentLength) throws IOException, NoSuchAlgorithmException {
+			this.host = host;
+			this.datafileId = datafileId;
+			this.checksum = checksum;
+			this.contentLength = contentLength;
+			String algorithm = (checksum != null) ? checksum.substring(0, checksum.indexOf('-')) : "sha256";
+			this.digest = MessageDigest.getInstance(algorithm.equals("sha512") ? "SHA-512" : algorithm.equals("md5") ? "MD5" : "SHA-256");
+			this.file = Files.createTempFile(MyTardisFileCache.this.tmpDirectory, "datafile-", ".tmp");
+			this.channel = FileChannel.open(this.file, StandardOpenOption.WRITE);
+		}
+
+		void copy(byte[] bytes, int offset, int length) {
+			if (this.channel == null)
+				return;
+			if (this.copied + length > MyTardisFileCache.this.maxFileSize) {
+				this.drop();
+				return;
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+				while (buffer.hasRemaining())
+					this.channel.write(buffer);
+				this.digest.update(bytes, offset, length);
+				this.copied += length;
+			} catch (IOException e) {
+				logger.warn("Could not cache the content of data file " + this.datafileId + ": " + e.getMessage());
+				this.drop();
+			}
+		}
+
+		void complete() {
+			if (this.channel == null)
+				return;
+			try {
+				this.channel.close();
+				this.channel = null;
+
+				String algorithm = (this.checksum != null) ? this.checksum.substring(0, this.checksum.indexOf('-')) : "sha256";
+				String blob = algorithm + "-" + Hex.encodeHexString(this.digest.digest());
+				if (this.contentLength >= 0 && this.copied != this.contentLength) {
+					logger.warn("Content of data file " + this.datafileId + " truncated at " + this.copied + " of " + this.contentLength + " bytes, not cached");
+				} else if (this.checksum != null && !this.checksum.equals(blob)) {
+					logger.warn("Content of data file " + this.datafileId + " does not match its checksum, not cached");
+				} else {
+					MyTardisFileCache.this.add(blob, this.file, this.copied);
+					if (this.checksum == null)
+						Files.write(MyTardisFileCache.this.getRefPath(this.host, this.datafileId), blob.getBytes(StandardCharsets.UTF_8));
+					logger.debug("Cached the content of data file " + this.datafileId + " as " + blob);
+				}
+			} catch (IOException e) {
+				logger.warn("Could not cache the content of data file " + this.datafileId + ": " + e.getMessage());
+			}
+			this.drop();
+		}
+
+		/**
+		 * Drops the copy, if not added to the cache
+		 */
+		void drop() {
+			try {
+				if (this.channel != null)
+					this.channel.close();
+				this.channel = null;
+				Files.deleteIfExists(this.file);
+			} catch (IOException e) {
+				logger.debug("Could not delete " + this.file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Stream writing a copy of the content read to the cache
+	 */
+	private class CapturingInputStream extends FilterInputStream {
+
+		private final Capture capture;
+
+		CapturingInputStream(InputStream content, Capture capture) {
+			super(content);
+			this.capture = capture;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (read >= 0)
+				this.capture.copy(new byte[] { (byte) read }, 0, 1);
+			else
+				this.capture.complete();
+			return read;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			int read = super.read(bytes, offset, length);
+			if (read > 0)
+				this.capture.copy(bytes, offset, read);
+			else if (read < 0)
+				this.capture.complete();
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.capture.drop();
+			super.close();
+		}
+	}
+
+	/**
+	 * Receiver writing a copy of the content pushed to another receiver to the cache
+	 */
+	private class CapturingReceiver implements RabbitMQReplyReceiver {
+
+		private final RabbitMQReplyReceiver receiver;
+
+		private final Capture capture;
+
+		CapturingReceiver(RabbitMQReplyReceiver receiver, Capture capture) {
+			this.receiver = receiver;
+			this.capture = capture;
+		}
+
+		@Override
+		public void start(RabbitMQReplySource source) throws IOException {
+			this.receiver.start(source);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			this.capture.copy(bytes, offset, length);
+			this.receiver.write(bytes, offset, length);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			this.capture.complete();
+			this.receiver.finish();
+		}
+
+		@Override
+		public void fail(Exception cause) {
+			this.capture.drop();
+			this.receiver.fail(cause);
+		}
+	}
+}
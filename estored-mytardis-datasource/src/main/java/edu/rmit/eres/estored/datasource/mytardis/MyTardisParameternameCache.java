@@ -0,0 +1,139 @@
+package edu.rmit.eres.estored.datasource.mytardis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mytardis.api.model.Parametername;
+
+/**
+ * In-memory cache of the parameter names of the MyTardis instances, by host and URI, so that the headers of a data file
+ * are built without requesting the name of each of its parameters again: the parameter-name schema almost never changes.
+ * The cache is bounded by its number of entries, the least recently used being evicted first, and each entry expires
+ * after the time-to-live.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.amqpclient.RabbitMQMyTardisConsumer
+ */
+public class MyTardisParameternameCache {
+
+	/**
+	 * Default maximum number of parameter names cached, all MyTardis instances together
+	 */
+	public final static int DEFAULT_MAX_ENTRIES = 10000;
+
+	/**
+	 * Default time-to-live of the cached parameter names, in seconds
+	 */
+	public final static long DEFAULT_TTL = 3600;
+
+	/**
+	 * Cached parameter names by host and URI, from the least to the most recently used
+	 */
+	private final LinkedHashMap<String, Entry> entries;
+
+	private final long ttlMillis;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	/**
+	 * Constructor of the cache
+	 *
+	 * @param maxEntries: the maximum number of parameter names cached
+	 * @param ttl: the time-to-live of the cached parameter names, in seconds
+	 */
+	public MyTardisParameternameCache(int maxEntries, long ttl) {
+		this.ttlMillis = ttl * 1000;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return this.size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Retrieves a cached parameter name
+	 *
+	 * @param host: the host name of the MyTardis instance
+	 * @param uri: the URI of the parameter name on the MyTardis API
+	 * @return the parameter name, or null if it is not cached or has expired
+	 */
+	public synchronized Parametername get(String host, String uri) {
+		String key = host + uri;
+		Entry entry = this.entries.get(key);
+		if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+			this.entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			this.missCount++;
+			return null;
+		}
+		this.hitCount++;
+		return entry.parameterName;
+	}
+
+	/**
+	 * Caches a parameter name retrieved from MyTardis
+	 *
+	 * @param host: the host name of the MyTardis instance
+	 * @param uri: the URI of the parameter name on the MyTardis API
+	 * @param parameterName: the parameter name
+	 */
+	public synchronized void put(String host, String uri, Parametername parameterName) {
+		this.entries.put(host + uri, new Entry(parameterName, System.currentTimeMillis() + this.ttlMillis));
+	}
+
+	/**
+	 * Getter for the number of parameter names read from the cache
+	 * @return the number of parameter names read from the cache
+	 */
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * Getter for the number of parameter names not found in the cache
+	 * @return the number of parameter names not found in the cache, including the expired ones
+	 */
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Getter for the number of parameter names cached
+	 * @return the number of parameter names cached, including the expired ones not evicted yet
+	 */
+	public synchronized int getSize() {
+		return this.entries.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.entries.size() + " parameter names cached, " + this.hitCount + " hits, " + this.missCount + " misses";
+	}
+
+	/**
+	 * A cached parameter name
+	 */
+	private static class Entry {
+
+		final Parametername parameterName;
+
+		/**
+		 * Time at which the parameter name expires, in milliseconds since the epoch
+		 */
+		final long expiresAt;
+
+		Entry(Parametername parameterName, long expiresAt) {
+			this.parameterName = parameterName;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package edu.rmit.eres.estored.datasource.mytardis;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS layer shared by all the connections to the upstream hosts: a single SSL context, whose client session cache
+ * keeps the sessions of each host so that the following connections resume them (with a session ticket when the JVM
+ * supports it) instead of performing a full handshake.
+ *
+ * The host names are verified for each connection: a connection is accepted if the certificate of the host matches
+ * the host name, or if it is the self-signed certificate accepted for that host by InstallCert. No global state is
+ * changed from one request to the next.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.estored.datasource.mytardis.InstallCert
+ */
+public class SSLConnections {
+
+	private static final Logger logger = LoggerFactory.getLogger(SSLConnections.class);
+
+	/**
+	 * Default maximum number of TLS sessions kept for resumption
+	 */
+	public final static int DEFAULT_SESSION_CACHE_SIZE = 1024;
+
+	/**
+	 * Default time after which a TLS session is not resumed anymore, in seconds
+	 */
+	public final static int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+	/**
+	 * Verifier of the host names, deciding for each connection on its own
+	 */
+	private final static X509HostnameVerifier hostnameVerifier = new ConnectionHostnameVerifier();
+
+	private static int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+
+	private static int sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+
+	private static SSLContext sslContext = null;
+
+	static {
+		// Resumes the sessions with stateless tickets as well as session identifiers (JDK 13 or later)
+		if (System.getProperty("jdk.tls.client.enableSessionTicketExtension") == null)
+			System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+	}
+
+	/**
+	 * Sets the size of the TLS session cache, before or after the first connection
+	 *
+	 * @param cacheSize: the maximum number of sessions kept for resumption (0 for no limit)
+	 * @param timeout: the time after which a session is not resumed anymore, in seconds (0 for no limit)
+	 */
+	public static synchronized void configureSessionCache(int cacheSize, int timeout) {
+		sessionCacheSize = cacheSize;
+		sessionTimeout = timeout;
+		if (sslContext != null)
+			configureSessionContext(sslContext.getClientSessionContext());
+	}
+
+	/**
+	 * Getter for the SSL context shared by all the connections
+	 * @return the SSL context, trusting the trust store of the JVM and the self-signed certificates accepted by InstallCert
+	 */
+	public static synchronized SSLContext getSSLContext() {
+		if (sslContext == null) {
+			try {
+				SSLContext context = SSLContext.getInstance("TLS");
+				context.init(null, new TrustManager[] { InstallCert.getTrustManager() }, null);
+				configureSessionContext(context.getClientSessionContext());
+				sslContext = context;
+			} catch (Exception e) {
+				throw new IllegalStateException("Could not initialise the SSL context", e);
+			}
+		}
+		return sslContext;
+	}
+
+	/**
+	 * Getter for the verifier of the host names
+	 * @return the verifier shared by all the connections
+	 */
+	public static X509HostnameVerifier getHostnameVerifier() {
+		return hostnameVerifier;
+	}
+
+	/**
+	 * Makes a connection use the shared SSL context and verify its host name on its own, if it is an HTTPS connection
+	 *
+	 * @param connection: the connection, not connected yet
+	 * @return the connection
+	 */
+	public static HttpURLConnection secure(HttpURLConnection connection) {
+		if (connection instanceof HttpsURLConnection) {
+			HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+			httpsConnection.setSSLSocketFactory(getSSLContext().getSocketFactory());
+			httpsConnection.setHostnameVerifier(hostnameVerifier);
+		}
+		return connection;
+	}
+
+	private static void configureSessionContext(SSLSessionContext sessionContext) {
+		sessionContext.setSessionCacheSize(sessionCacheSize);
+		sessionContext.setSessionTimeout(sessionTimeout);
+		logger.debug("TLS session cache: " + sessionCacheSize + " sessions, " + sessionTimeout + " s");
+	}
+
+	/**
+	 * Accepts the host names matching the certificate of the connection, or whose self-signed certificate is pinned
+	 */
+	private static class ConnectionHostnameVerifier implements X509HostnameVerifier {
+
+		private final X509HostnameVerifier delegate = SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+
+		@Override
+		public boolean verify(String host, SSLSession session) {
+			try {
+				Certificate[] certificates = session.getPeerCertificates();
+				this.verify(host, (X509Certificate) certificates[0]);
+				return true;
+			} catch (SSLException e) {
+				logger.warn("Host name " + host + " rejected: " + e.getMessage());
+				return false;
+			}
+		}
+
+		@Override
+		public void verify(String host, SSLSocket socket) throws IOException {
+			SSLSession session = socket.getSession();
+			if (session == null)
+				throw new SSLPeerUnverifiedException("No TLS session with " + host);
+			this.verify(host, (X509Certificate) session.getPeerCertificates()[0]);
+		}
+
+		@Override
+		public void verify(String host, X509Certificate certificate) throws SSLException {
+			if (InstallCert.isPinned(host, certificate))
+				return;
+			this.delegate.verify(host, certificate);
+		}
+
+		@Override
+		public void verify(String host, String[] cns, String[] subjectAlts) throws SSLException {
+			this.delegate.verify(host, cns, subjectAlts);
+		}
+	}
+}
@@ -0,0 +1,367 @@
+package edu.rmit.eres.estored.datasource.mytardis;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.rmit.eres.amqpclient.RabbitMQBufferPool;
+
+/**
+ * Stream of a large content downloaded as several byte ranges in parallel, so that the download is not limited by
+ * the window of a single TCP connection on high-latency links. Each range is written at its position in a temporary
+ * file sized to the content, with positional writes, and the content is read back in order as soon as it is available:
+ * the first range can be sent while the following ones are still being downloaded.
+ *
+ * The first range is read from the response to the original request, which is aborted once the range is read;
+ * the other ranges are requested with a Range header (see RangeSource). A range whose connection fails is resumed
+ * from its last byte received (see ResumableDownload). The temporary file is deleted on close.
+ *
+ * @since 18 Oct. 2026
+ *
+ * @see edu.rmit.eres.estored.datasource.mytardis.MyTardisDownloader#openStream(Integer)
+ */
+public class SegmentedDownload extends InputStream {
+
+	private static final Logger logger = LoggerFactory.getLogger(SegmentedDownload.class);
+
+	/**
+	 * Default maximum number of ranges downloaded in parallel for a single content
+	 */
+	public final static int DEFAULT_SEGMENT_COUNT = 4;
+
+	/**
+	 * Default minimum size of a range, in bytes: smaller contents are downloaded as a single stream
+	 */
+	public final static long DEFAULT_MIN_SEGMENT_SIZE = 16L * 1024 * 1024;
+
+	/**
+	 * Default maximum number of threads downloading ranges, all the downloads together
+	 */
+	public final static int DEFAULT_THREAD_COUNT = 32;
+
+	/**
+	 * Size of the blocks read from the connections and written to the file at once, in bytes
+	 */
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Threads downloading the ranges, shared by all the downloads: the ranges beyond the maximum number of threads
+	 * wait for a thread to be free, and the idle threads are stopped after a minute
+	 */
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_THREAD_COUNT, DEFAULT_THREAD_COUNT,
+			60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), (runnable) -> {
+		Thread thread = new Thread(runnable, "estored-segmented-download");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Source of the byte ranges of a content
+	 */
+	public interface RangeSource {
+
+		/**
+		 * Requests a byte range of the content
+		 *
+		 * @param first: the position of the first byte of the range
+		 * @param last: the position of the last byte of the range, included
+		 * @return the stream of the range, aborting the request if closed before its end (see #abortable)
+		 *
+		 * @throws IOException: if the range could not be retrieved, or the server answered with another range
+		 */
+		InputStream open(long first, long last) throws IOException;
+	}
+
+	private final FileChannel file;
+
+	private final long length;
+
+	private final long segmentSize;
+
+	/**
+	 * Number of bytes written to the file for each range
+	 */
+	private final long[] written;
+
+	/**
+	 * Streams of the ranges being downloaded, aborted on close
+	 */
+	private final List<InputStream> sources = new ArrayList<InputStream>();
+
+	private IOException failure = null;
+
+	private long position = 0;
+
+	private boolean closed = false;
+
+	/**
+	 * Starts downloading the ranges of a content in parallel
+	 *
+	 * @param head: the stream of the whole content, from which the first range is read before it is aborted
+	 * @param length: the length of the content in bytes
+	 * @param segmentCount: the number of ranges to download in parallel
+	 * @param ranges: the source of the other ranges
+	 * @param maxRetries: the maximum number of times the download of each range is resumed after a failure
+	 *
+	 * @throws IOException: if the temporary file could not be created
+	 */
+	public SegmentedDownload(InputStream head, long length, int segmentCount, RangeSource ranges, int maxRetries) throws IOException {
+		this.length = length;
+		this.segmentSize = (length + segmentCount - 1) / segmentCount;
+		this.written = new long[segmentCount];
+
+		Path path = Files.createTempFile("estored-download-", ".part");
+		this.file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		// Sizes the file to the content, so that each range is written at its own position
+		this.file.write(ByteBuffer.wrap(new byte[1]), length - 1);
+
+		logger.debug("Downloading " + length + " bytes as " + segmentCount + " ranges of " + this.segmentSize + " bytes");
+		for (int segment = 0; segment < segmentCount; segment++) {
+			long start = segment * this.segmentSize;
+			long end = Math.min(this.length, start + this.segmentSize);
+			// The ranges after the first one are requested by their own thread, on their first read
+			ResumableDownload source = new ResumableDownload((segment == 0) ? head : null, start, end, ranges, maxRetries);
+			final int index = segment;
+			try {
+				executor.execute(() -> this.fetch(index, source));
+			} catch (RejectedExecutionException e) {
+				this.closeQuietly(source);
+				this.fail(new IOException("Range " + start + "-" + (end - 1) + " not downloaded: " + e.getMessage(), e));
+			}
+		}
+	}
+
+	/**
+	 * Sets the maximum number of threads downloading ranges, all the downloads together, before or after the first download
+	 *
+	 * @param threadCount: the maximum number of ranges downloaded at the same time
+	 */
+	public static synchronized void configureThreads(int threadCount) {
+		// The core size may never exceed the maximum size, whichever way it changes
+		if (threadCount > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threadCount);
+			executor.setCorePoolSize(threadCount);
+		} else {
+			executor.setCorePoolSize(threadCount);
+			executor.setMaximumPoolSize(threadCount);
+		}
+	}
+
+	/**
+	 * Number of ranges to download a content with
+	 *
+	 * @param contentLength: the length of the content in bytes, or -1 if unknown
+	 * @param maxSegmentCount: the maximum number of ranges downloaded in parallel
+	 * @param minSegmentSize: the minimum size of a range, in bytes
+	 * @return the number of ranges, 1 to download the content as a single stream
+	 */
+	public static int getSegmentCount(long contentLength, int maxSegmentCount, long minSegmentSize) {
+		if (contentLength <= 0 || maxSegmentCount <= 1 || minSegmentSize <= 0)
+			return 1;
+		return (int) Math.max(1, Math.min(maxSegmentCount, contentLength / minSegmentSize));
+	}
+
+	/**
+	 * Wraps the stream of a response so that closing it before its end aborts the connection,
+	 * instead of reading the rest of the content to keep the connection alive
+	 *
+	 * @param content: the stream of the content of the response
+	 * @param abort: aborts the connection of the response when closed
+	 * @return the stream to read the content from instead
+	 */
+	public static InputStream abortable(InputStream content, Closeable abort) {
+		return new FilterInputStream(content) {
+
+			private boolean ended = false;
+
+			@Override
+			public int read() throws IOException {
+				int read = super.read();
+				this.ended |= (read < 0);
+				return read;
+			}
+
+			@Override
+			public int read(byte[] bytes, int offset, int length) throws IOException {
+				int read = super.read(bytes, offset, length);
+				this.ended |= (read < 0);
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (this.ended)
+					super.close();
+				else
+					abort.close();
+			}
+		};
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] single = new byte[1];
+		int read = this.read(single, 0, 1);
+		return (read < 0) ? -1 : (single[0] & 0xff);
+	}
+
+	/**
+	 * Reads the content in order, waiting for the range being read to be downloaded
+	 */
+	@Override
+	public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+		if (this.closed)
+			throw new IOException("Stream closed");
+		if (this.position >= this.length)
+			return -1;
+		if (length == 0)
+			return 0;
+
+		long available;
+		while ((available = this.getAvailable()) <= 0) {
+			if (this.failure != null)
+				throw this.failure;
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the download");
+			}
+			if (this.closed)
+				throw new IOException("Stream closed");
+		}
+
+		int count = (int) Math.min(length, available);
+		int total = 0;
+		while (total < count) {
+			int read = this.file.read(ByteBuffer.wrap(bytes, offset + total, count - total), this.position + total);
+			if (read < 0)
+				throw new EOFException("Download truncated at " + (this.position + total));
+			total += read;
+		}
+		this.position += count;
+		return count;
+	}
+
+	@Override
+	public synchronized int available() {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(0, this.getAvailable()));
+	}
+
+	/**
+	 * Aborts the ranges still being downloaded and deletes the temporary file
+	 */
+	@Override
+	public void close() throws IOException {
+		List<InputStream> aborted;
+		synchronized (this) {
+			if (this.closed)
+				return;
+			this.closed = true;
+			this.notifyAll();
+			aborted = new ArrayList<InputStream>(this.sources);
+			this.sources.clear();
+		}
+		for (InputStream source : aborted) {
+			try {
+				source.close();
+			} catch (IOException e) {
+				logger.debug("Could not abort a range: " + e.getMessage());
+			}
+		}
+		this.file.close();
+	}
+
+	/**
+	 * Number of bytes downloaded and not read yet in the range being read
+	 */
+	private long getAvailable() {
+		int segment = (int) (this.position / this.segmentSize);
+		return segment * this.segmentSize + this.written[segment] - this.position;
+	}
+
+	/**
+	 * Downloads a range into the file
+	 *
+	 * @param segment: the index of the range
+	 * @param source: the stream of the range
+	 */
+	private void fetch(int segment, ResumableDownload source) {
+		synchronized (this) {
+			if (this.closed) {
+				this.closeQuietly(source);
+				return;
+			}
+			this.sources.add(source);
+		}
+
+		long start = segment * this.segmentSize;
+		long end = Math.min(this.length, start + this.segmentSize);
+		byte[] block = RabbitMQBufferPool.getDefault().lease(BLOCK_SIZE);
+		try {
+			long position = start;
+			while (position < end) {
+				int read = source.read(block, 0, (int) Math.min(block.length, end - position));
+				if (read < 0)
+					throw new EOFException("Range " + start + "-" + (end - 1) + " truncated at " + position);
+				ByteBuffer buffer = ByteBuffer.wrap(block, 0, read);
+				while (buffer.hasRemaining())
+					position += this.file.write(buffer, position);
+				synchronized (this) {
+					this.written[segment] = position - start;
+					this.notifyAll();
+				}
+			}
+		} catch (IOException e) {
+			this.fail(e);
+		} catch (RuntimeException e) {
+			// Fails the download anyway, so that the reader does not wait for the range forever
+			this.fail(new IOException("Range " + start + "-" + (end - 1) + " failed: " + e, e));
+		} finally {
+			RabbitMQBufferPool.getDefault().release(block);
+			synchronized (this) {
+				this.sources.remove(source);
+			}
+			this.closeQuietly(source);
+		}
+	}
+
+	private synchronized void fail(IOException cause) {
+		if (this.closed)
+			return;
+		if (this.failure == null) {
+			logger.warn("Segmented download failed: " + cause.getMessage());
+			this.failure = cause;
+		}
+		this.notifyAll();
+	}
+
+	private void closeQuietly(InputStream source) {
+		try {
+			source.close();
+		} catch (IOException e) {
+			logger.debug("Could not close a range: " + e.getMessage());
+		}
+	}
+}
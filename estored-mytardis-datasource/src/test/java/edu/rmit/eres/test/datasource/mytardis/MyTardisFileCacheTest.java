@@ -0,0 +1,100 @@
+package edu.rmit.eres.test.datasource.mytardis;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.rmit.eres.estored.datasource.mytardis.MyTardisFileCache;
+
+public class MyTardisFileCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+    public void contentIsCachedByChecksumOnceReadEntirelyTest() throws IOException {
+		MyTardisFileCache cache = new MyTardisFileCache(this.folder.getRoot().toPath(), 8000);
+		byte[] content = "Hello, World!".getBytes();
+		String checksum = "md5-" + DigestUtils.md5Hex(content);
+
+		Assert.assertNull(cache.get("mytardis.example.org", 42, checksum));
+		try (InputStream captured = cache.capture("mytardis.example.org", 42, checksum, content.length, new ByteArrayInputStream(content))) {
+			Assert.assertArrayEquals(content, IOUtils.toByteArray(captured));
+		}
+
+		// Same content, whatever the data file and host
+		try (InputStream cached = cache.get("other.example.org", 7, checksum)) {
+			Assert.assertArrayEquals(content, IOUtils.toByteArray(cached));
+		}
+		Assert.assertEquals(content.length, cache.getSize());
+
+		// Still cached after a restart
+		MyTardisFileCache reloaded = new MyTardisFileCache(this.folder.getRoot().toPath(), 8000);
+		Assert.assertEquals(content.length, reloaded.getSize());
+	}
+
+	@Test
+    public void contentWithoutChecksumIsCachedByDataFileTest() throws IOException {
+		MyTardisFileCache cache = new MyTardisFileCache(this.folder.getRoot().toPath(), 8000);
+		byte[] content = "Hello, World!".getBytes();
+
+		try (InputStream captured = cache.capture("mytardis.example.org", 42, null, content.length, new ByteArrayInputStream(content))) {
+			IOUtils.toByteArray(captured);
+		}
+		try (InputStream cached = cache.get("mytardis.example.org", 42, null)) {
+			Assert.assertArrayEquals(content, IOUtils.toByteArray(cached));
+		}
+		Assert.assertNull(cache.get("mytardis.example.org", 43, null));
+	}
+
+	@Test
+    public void corruptedOrPartialContentIsNotCachedTest() throws IOException {
+		MyTardisFileCache cache = new MyTardisFileCache(this.folder.getRoot().toPath(), 8000);
+		byte[] content = "Hello, World!".getBytes();
+		String checksum = "md5-" + DigestUtils.md5Hex("Something else");
+
+		try (InputStream captured = cache.capture("mytardis.example.org", 42, checksum, -1, new ByteArrayInputStream(content))) {
+			IOUtils.toByteArray(captured);
+		}
+		Assert.assertNull(cache.get("mytardis.example.org", 42, checksum));
+
+		try (InputStream captured = cache.capture("mytardis.example.org", 43, null, content.length, new ByteArrayInputStream(content))) {
+			captured.read(new byte[4]);
+		}
+		Assert.assertNull(cache.get("mytardis.example.org", 43, null));
+
+		// Download ended early without any error: only the length or the checksum can tell
+		try (InputStream captured = cache.capture("mytardis.example.org", 44, null, content.length + 10, new ByteArrayInputStream(content))) {
+			IOUtils.toByteArray(captured);
+		}
+		Assert.assertNull(cache.get("mytardis.example.org", 44, null));
+		try (InputStream captured = cache.capture("mytardis.example.org", 45, null, -1, new ByteArrayInputStream(content))) {
+			IOUtils.toByteArray(captured);
+		}
+		Assert.assertNull(cache.get("mytardis.example.org", 45, null));
+		Assert.assertEquals(0, cache.getSize());
+	}
+
+	@Test
+    public void leastRecentlyReadContentIsEvictedTest() throws IOException {
+		MyTardisFileCache cache = new MyTardisFileCache(this.folder.getRoot().toPath(), 8000);
+		for (int i = 0; i < 9; i++) {
+			byte[] content = new byte[1000];
+			content[0] = (byte) i;
+			try (InputStream captured = cache.capture("mytardis.example.org", i, null, content.length, new ByteArrayInputStream(content))) {
+				IOUtils.toByteArray(captured);
+			}
+			if (i == 0)
+				cache.get("mytardis.example.org", 0, null).close();
+		}
+		Assert.assertEquals(1, cache.getEvictionCount());
+		Assert.assertEquals(8000, cache.getSize());
+	}
+}
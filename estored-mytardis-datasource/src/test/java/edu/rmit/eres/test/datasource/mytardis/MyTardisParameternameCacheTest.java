@@ -0,0 +1,38 @@
+package edu.rmit.eres.test.datasource.mytardis;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mytardis.api.model.Parametername;
+
+import edu.rmit.eres.estored.datasource.mytardis.MyTardisParameternameCache;
+
+public class MyTardisParameternameCacheTest {
+
+	@Test
+    public void parameterNamesAreCachedByHostAndUriTest() {
+		MyTardisParameternameCache cache = new MyTardisParameternameCache(2, 3600);
+		Parametername parameterName = new Parametername();
+		parameterName.setFullName("Instrument");
+
+		Assert.assertNull(cache.get("mytardis.example.org", "/api/v1/parametername/1/"));
+		cache.put("mytardis.example.org", "/api/v1/parametername/1/", parameterName);
+		Assert.assertSame(parameterName, cache.get("mytardis.example.org", "/api/v1/parametername/1/"));
+		Assert.assertNull(cache.get("other.example.org", "/api/v1/parametername/1/"));
+
+		// The least recently used parameter name is evicted first
+		cache.put("mytardis.example.org", "/api/v1/parametername/2/", new Parametername());
+		cache.get("mytardis.example.org", "/api/v1/parametername/1/");
+		cache.put("mytardis.example.org", "/api/v1/parametername/3/", new Parametername());
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertNull(cache.get("mytardis.example.org", "/api/v1/parametername/2/"));
+		Assert.assertSame(parameterName, cache.get("mytardis.example.org", "/api/v1/parametername/1/"));
+	}
+
+	@Test
+    public void expiredParameterNamesAreRequestedAgainTest() {
+		MyTardisParameternameCache cache = new MyTardisParameternameCache(10, 0);
+		cache.put("mytardis.example.org", "/api/v1/parametername/1/", new Parametername());
+		Assert.assertNull(cache.get("mytardis.example.org", "/api/v1/parametername/1/"));
+		Assert.assertEquals(0, cache.getSize());
+	}
+}